@@ -0,0 +1,83 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.locator.SimpleSnitch;
+
+/**
+ * Wires a {@link UnixSocketClient} to an in-memory channel that discards everything written to it,
+ * so the benchmarks measure the agent's own encoding cost rather than the socket or collectd.
+ */
+final class BenchmarkClients
+{
+    private static final Supplier<UnixSocketClient> CLIENT = Suppliers.memoize(() -> {
+        System.setProperty("ds-metric-collector.config", "metric-collector.yaml");
+        DatabaseDescriptor.clientInitialization();
+        DatabaseDescriptor.setEndpointSnitch(new SimpleSnitch());
+
+        UnixSocketClient client = new UnixSocketClient();
+        client.start(new EmbeddedChannel(new Sink(), new StringEncoder(CharsetUtil.US_ASCII)));
+        return client;
+    });
+
+    private BenchmarkClients()
+    {
+    }
+
+    /**
+     * The shared started client, every metric registered in
+     * {@link UnixSocketClient#agentAddedMetricsRegistry} gets a processor on it.
+     */
+    static UnixSocketClient client()
+    {
+        return CLIENT.get();
+    }
+
+    /**
+     * Metric names shaped like the ones Cassandra registers for each table.
+     */
+    static List<String> tableMetricNames(int keyspaces, int tablesPerKeyspace)
+    {
+        String[] metrics = { "LiveSSTableCount", "LiveDiskSpaceUsed", "ReadLatency", "WriteLatency",
+                "CoordinatorReadLatency", "TombstoneScannedHistogram", "EstimatedPartitionSizeHistogram",
+                "PendingCompactions", "MemtableOnHeapSize", "BloomFilterFalseRatio" };
+
+        List<String> names = new ArrayList<>(keyspaces * tablesPerKeyspace * metrics.length);
+        for (int k = 0; k < keyspaces; k++)
+        {
+            for (int t = 0; t < tablesPerKeyspace; t++)
+            {
+                for (String metric : metrics)
+                {
+                    names.add("org.apache.cassandra.metrics.Table." + metric + ".keyspace_" + k + ".table_" + t);
+                }
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Releases everything written so nothing accumulates in the channel.
+     */
+    static final class Sink extends ChannelOutboundHandlerAdapter
+    {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+        {
+            ReferenceCountUtil.release(msg);
+            promise.trySuccess();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.datastax.mcac;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a Cassandra metric name into the name reported to collectd,
+ * paid on every metric registration and again on every filter refresh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CleanBenchmark
+{
+    private UnixSocketClient client;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        client = BenchmarkClients.client();
+        List<String> corpus = BenchmarkClients.tableMetricNames(10, 40);
+        names = corpus.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public String clean()
+    {
+        String name = names[next];
+        next = next + 1 == names.length ? 0 : next + 1;
+        return client.clean(name);
+    }
+
+    @Benchmark
+    public String uncached()
+    {
+        String name = names[next];
+        next = next + 1 == names.length ? 0 : next + 1;
+        return MetricNames.clean(name);
+    }
+}
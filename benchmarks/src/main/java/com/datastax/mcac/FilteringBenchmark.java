@@ -0,0 +1,75 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resolving the filtering rule for one metric name, done twice per registered metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilteringBenchmark
+{
+    @Param({ "3", "15", "60" })
+    public int ruleCount;
+
+    private List<FilteringRule> rules;
+    private CompiledFilteringRules compiled;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        // Same shape as the sample rules in metric-collector.yaml: deny the table metrics then allow a few back
+        String[] allowed = { "LiveSSTableCount", "live_ss_table_count", "LiveDiskSpaceUsed", "live_disk_space_used",
+                "Pending", "Memtable", "Compaction", "read", "write", "range", "coordinator", "DroppedMutations" };
+
+        rules = new ArrayList<>(ruleCount);
+        rules.add(new FilteringRule(FilteringRule.DENY, "org.apache.cassandra.metrics.table", FilteringRule.GLOBAL));
+        for (int i = 1; i < ruleCount; i++)
+        {
+            String metric = allowed[i % allowed.length];
+            String pattern = i < allowed.length
+                    ? "org.apache.cassandra.metrics.table." + metric
+                    : "org.apache.cassandra.metrics.table." + metric + ".keyspace_" + i;
+            rules.add(new FilteringRule(FilteringRule.ALLOW, pattern, FilteringRule.GLOBAL));
+        }
+
+        compiled = CompiledFilteringRules.compile(rules);
+        names = BenchmarkClients.tableMetricNames(10, 40).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public FilteringRule.FilteringRuleMatch applyFilters()
+    {
+        String name = names[next];
+        next = next + 1 == names.length ? 0 : next + 1;
+        return FilteringRule.applyFilters(name, rules);
+    }
+
+    @Benchmark
+    public FilteringRule.FilteringRuleMatch compiled()
+    {
+        String name = names[next];
+        next = next + 1 == names.length ? 0 : next + 1;
+        return compiled.apply(name);
+    }
+}
@@ -0,0 +1,62 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of re-bucketing a Cassandra latency snapshot into the prometheus buckets, excluding the snapshot itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrometheusTimerBenchmark
+{
+    @Param({ "default", "coarse", "fine" })
+    public String layout;
+
+    private UnixSocketClient client;
+    private MetricLinePrefixes metric;
+    private Snapshot snapshot;
+    private long count;
+    private LatencyBuckets buckets;
+
+    @Setup
+    public void setup()
+    {
+        client = BenchmarkClients.client();
+        metric = new MetricLinePrefixes("org.apache.cassandra.metrics.table.read_latency.keyspace.table", new ReportingTier(0, null));
+
+        Timer timer = new Timer(new DecayingEstimatedHistogramReservoir());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 10000; i++)
+            timer.update(random.nextLong(50, 50000), TimeUnit.MICROSECONDS);
+
+        snapshot = timer.getSnapshot();
+        count = timer.getCount();
+        buckets = LatencyBuckets.of(layout, null);
+    }
+
+    @Benchmark
+    public boolean reportPrometheusTimer()
+    {
+        return client.reportPrometheusTimer(metric, "mcac_filtered=true", count, snapshot, buckets, null);
+    }
+}
@@ -0,0 +1,118 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.apache.cassandra.utils.EstimatedHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one reporting pass over a single metric, i.e. what {@code writeGroup} pays per entry.
+ *
+ * Run with {@code -prof gc} to see the bytes allocated per metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteMetricBenchmark
+{
+    public enum MetricType
+    {
+        GAUGE,
+        COUNTER,
+        METER,
+        TIMER,
+        HISTOGRAM,
+        ESTIMATED_HISTOGRAM_GAUGE
+    }
+
+    @Param({ "GAUGE", "COUNTER", "METER", "TIMER", "HISTOGRAM", "ESTIMATED_HISTOGRAM_GAUGE" })
+    public MetricType type;
+
+    /**
+     * When true the metric insights are written too, as they are every few intervals.
+     */
+    @Param({ "false", "true" })
+    public boolean insights;
+
+    private Function<String, Integer> processor;
+    private String tags;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        UnixSocketClient client = BenchmarkClients.client();
+        String name = "org.apache.cassandra.metrics.Table.Benchmark" + type.name() + ".keyspace.table";
+
+        UnixSocketClient.agentAddedMetricsRegistry.remove(name);
+        UnixSocketClient.agentAddedMetricsRegistry.register(name, create(type));
+
+        processor = client.processors.entry(name).processor;
+        tags = insights ? "" : "mcac_filtered=true";
+    }
+
+    private static Metric create(MetricType type)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (type)
+        {
+            case GAUGE:
+                return (Gauge<Double>) () -> 1234.5678;
+            case COUNTER:
+                Counter counter = new Counter();
+                counter.inc(random.nextInt(1 << 20));
+                return counter;
+            case METER:
+                Meter meter = new Meter();
+                meter.mark(random.nextInt(1 << 20));
+                return meter;
+            case TIMER:
+                Timer timer = new Timer(new DecayingEstimatedHistogramReservoir());
+                for (int i = 0; i < 10000; i++)
+                    timer.update(random.nextLong(50, 50000), TimeUnit.MICROSECONDS);
+                return timer;
+            case HISTOGRAM:
+                Histogram histogram = new Histogram(new DecayingEstimatedHistogramReservoir());
+                for (int i = 0; i < 10000; i++)
+                    histogram.update(random.nextLong(1, 1 << 16));
+                return histogram;
+            case ESTIMATED_HISTOGRAM_GAUGE:
+                EstimatedHistogram estimated = new EstimatedHistogram(90);
+                for (int i = 0; i < 10000; i++)
+                    estimated.add(random.nextLong(1, 1 << 20));
+                long[] buckets = estimated.getBuckets(false);
+                return (Gauge<long[]>) () -> buckets;
+            default:
+                throw new AssertionError(type);
+        }
+    }
+
+    @Benchmark
+    public int writeMetric()
+    {
+        return processor.apply(tags);
+    }
+}
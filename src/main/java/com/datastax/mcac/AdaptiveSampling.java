@@ -0,0 +1,107 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs metric reporting off while the node is busy, see adaptive_sampling_enabled in metric-collector.yaml.
+ *
+ * The node counts as busy when the last full pass took more than the configured fraction of the interval it
+ * was reported at, or when Cassandra's thread pools have more than the configured number of tasks pending. The
+ * metrics are then fully reported every other pass, then every fourth one and so on up to the configured
+ * maximum, and the interval halves back each full pass that fits in a quarter of its budget. The passes in
+ * between only report the essential metrics, see adaptive_sampling_essential_rules.
+ *
+ * Only used from the event loop.
+ */
+final class AdaptiveSampling
+{
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveSampling.class);
+
+    private final int intervalInSeconds;
+    private final long intervalNanos;
+    private final double busyFraction;
+    private final long pendingTasksThreshold;
+    private final int maxBackoff;
+    private final LongSupplier pendingTasks;
+
+    // Full passes are reported every backoff passes
+    private int backoff = 1;
+    private long lastFullPass = -1;
+    private long previousFullPass = -1;
+    private long lastPassNanos = 0;
+
+    AdaptiveSampling(int intervalInSeconds, double busyFraction, long pendingTasksThreshold, int maxBackoff, LongSupplier pendingTasks)
+    {
+        this.intervalInSeconds = intervalInSeconds;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalInSeconds);
+        this.busyFraction = busyFraction;
+        this.pendingTasksThreshold = pendingTasksThreshold;
+        this.maxBackoff = maxBackoff;
+        this.pendingTasks = pendingTasks;
+    }
+
+    /**
+     * @return whether the given pass reports every metric, or only the essential ones
+     */
+    boolean isFullPass(long pass)
+    {
+        if (lastFullPass >= 0 && pass - lastFullPass < backoff)
+            return false;
+
+        adjust();
+
+        if (lastFullPass >= 0 && pass - lastFullPass < backoff)
+            return false;
+
+        previousFullPass = lastFullPass;
+        lastFullPass = pass;
+        return true;
+    }
+
+    /**
+     * @return whether a multiple of every was passed since the full pass before the last one, so the last one can
+     * make up for what the skipped passes would have reported
+     */
+    boolean passedMultipleOf(long every)
+    {
+        return Math.floorDiv(lastFullPass, every) > Math.floorDiv(previousFullPass, every);
+    }
+
+    /**
+     * Records the time a full pass took, the essential ones don't count
+     */
+    void passCompleted(long nanos)
+    {
+        lastPassNanos = nanos;
+    }
+
+    int backoff()
+    {
+        return backoff;
+    }
+
+    private void adjust()
+    {
+        long budgetNanos = (long) (busyFraction * intervalNanos * backoff);
+        boolean loaded = pendingTasksThreshold > 0 && pendingTasks.getAsLong() > pendingTasksThreshold;
+
+        if (loaded || lastPassNanos > budgetNanos)
+        {
+            if (backoff == maxBackoff)
+                return;
+
+            backoff = Math.min(backoff * 2, maxBackoff);
+            logger.info("Node busy ({}), reporting all metrics every {} sec", loaded ? "tasks pending" : "slow reporting pass",
+                    (long) backoff * intervalInSeconds);
+        }
+        else if (backoff > 1 && lastPassNanos <= budgetNanos / 4)
+        {
+            backoff /= 2;
+            logger.info("Node load dropped, reporting all metrics every {} sec", (long) backoff * intervalInSeconds);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * What is given up when collectd can't keep up and a reporting pass is still waiting on the channel
+ * at the start of the next interval. Whatever was left of the late pass is always dropped, the policy
+ * decides what the following passes write until one completes on time again.
+ */
+enum BackpressureDropPolicy
+{
+    /**
+     * Every pass writes everything
+     */
+    OLDEST_PASS,
+
+    /**
+     * Only write the metrics shipped to insights, the insight filtered ones are skipped
+     */
+    INSIGHTS_ONLY,
+
+    /**
+     * Only write a rotating sample of 1 in (intervals behind + 1) metrics
+     */
+    SAMPLING;
+
+    private static final int MAX_SAMPLING_RATIO = 8;
+
+    static BackpressureDropPolicy fromString(String policy)
+    {
+        for (BackpressureDropPolicy p : values())
+        {
+            if (p.name().equalsIgnoreCase(policy))
+                return p;
+        }
+
+        throw new IllegalArgumentException(String.format("Backpressure drop policy must be '%s', '%s' or '%s'",
+                OLDEST_PASS.name().toLowerCase(), INSIGHTS_ONLY.name().toLowerCase(), SAMPLING.name().toLowerCase()));
+    }
+
+    List<Function<String, Integer>> select(
+            Collection<Function<String, Integer>> group,
+            boolean insightFiltered,
+            int intervalsBehind,
+            long interval)
+    {
+        if (intervalsBehind == 0 || this == OLDEST_PASS)
+            return new ArrayList<>(group);
+
+        if (this == INSIGHTS_ONLY)
+            return insightFiltered ? new ArrayList<>() : new ArrayList<>(group);
+
+        int every = Math.min(intervalsBehind + 1, MAX_SAMPLING_RATIO);
+        int offset = (int) (interval % every);
+        List<Function<String, Integer>> sample = new ArrayList<>(group.size() / every + 1);
+
+        int i = 0;
+        for (Function<String, Integer> processor : group)
+        {
+            if (i++ % every == offset)
+                sample.add(processor);
+        }
+
+        return sample;
+    }
+}
@@ -0,0 +1,152 @@
+package com.datastax.mcac;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encodes value lists in collectd's binary network protocol, the one spoken by the network plugin.
+ *
+ * Each value list carries all of its identifier parts, since the parser keeps them from one value list
+ * to the next, so value lists can be concatenated into a packet in any order. The time part is left
+ * out and collectd stamps the values on receipt, the same as N in a PUTVAL line.
+ *
+ * The protocol has no room for the meta data PUTVAL lines carry as tags. Value lists which aren't
+ * meant for insights get {@link #FILTERED_HOST_SUFFIX} appended to their host instead, the PreCache
+ * chain in collectd.conf.tmpl turns it back into the mcac_filtered meta data.
+ *
+ * See https://collectd.org/wiki/index.php/Binary_protocol
+ */
+final class CollectdBinaryEncoder
+{
+    static final String FILTERED_HOST_SUFFIX = ".mcac_filtered";
+
+    // Part types
+    static final int TYPE_HOST = 0x0000;
+    static final int TYPE_PLUGIN = 0x0002;
+    static final int TYPE_PLUGIN_INSTANCE = 0x0003;
+    static final int TYPE_TYPE = 0x0004;
+    static final int TYPE_TYPE_INSTANCE = 0x0005;
+    static final int TYPE_VALUES = 0x0006;
+    static final int TYPE_INTERVAL = 0x0007;
+
+    // Data source types, as found in types.db
+    static final byte DS_COUNTER = 0;
+    static final byte DS_GAUGE = 1;
+    static final byte DS_DERIVE = 2;
+    static final byte DS_ABSOLUTE = 3;
+
+    // The network plugin's default receive buffer, larger packets are truncated
+    static final int MAX_PACKET_SIZE = 1452;
+
+    private static final String PLUGIN = "mcac";
+    private static final int HEADER_SIZE = 4;
+
+    private CollectdBinaryEncoder()
+    {
+    }
+
+    /**
+     * Everything up to the values part, for the same identifier as {@code PUTVAL <host>/mcac-<name>/<type>}
+     */
+    static byte[] valueListPrefix(String host, String name, String type, int interval, boolean filtered)
+    {
+        int dash = type.indexOf('-');
+        String typeInstance = dash < 0 ? "" : type.substring(dash + 1);
+        type = dash < 0 ? type : type.substring(0, dash);
+
+        ByteBuf buf = Unpooled.buffer(128);
+        writeString(buf, TYPE_HOST, filtered ? host + FILTERED_HOST_SUFFIX : host);
+        writeNumber(buf, TYPE_INTERVAL, interval);
+        writeString(buf, TYPE_PLUGIN, PLUGIN);
+        writeString(buf, TYPE_PLUGIN_INSTANCE, name);
+        writeString(buf, TYPE_TYPE, type);
+        writeString(buf, TYPE_TYPE_INSTANCE, typeInstance);
+
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * The header of the values part, which is followed by {@code dsTypes.length} calls to writeValue
+     */
+    static void writeValuesHeader(ByteBuf buf, byte[] dsTypes)
+    {
+        buf.writeShort(TYPE_VALUES);
+        buf.writeShort(HEADER_SIZE + 2 + dsTypes.length * 9);
+        buf.writeShort(dsTypes.length);
+        buf.writeBytes(dsTypes);
+    }
+
+    static void writeValue(ByteBuf buf, byte dsType, long value)
+    {
+        if (dsType == DS_GAUGE)
+            writeGauge(buf, value);
+        else
+            buf.writeLong(value);
+    }
+
+    static void writeValue(ByteBuf buf, byte dsType, double value)
+    {
+        if (dsType == DS_GAUGE)
+            writeGauge(buf, value);
+        else
+            buf.writeLong((long) value);
+    }
+
+    // Gauges are the only doubles, in x86 byte order
+    private static void writeGauge(ByteBuf buf, double value)
+    {
+        buf.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(value)));
+    }
+
+    static void writeValue(ByteBuf buf, byte dsType, Number value)
+    {
+        if (dsType == DS_GAUGE)
+            writeValue(buf, dsType, value.doubleValue());
+        else
+            writeValue(buf, dsType, value.longValue());
+    }
+
+    static byte dsType(String type)
+    {
+        switch (type.toUpperCase())
+        {
+            case "COUNTER": return DS_COUNTER;
+            case "GAUGE": return DS_GAUGE;
+            case "DERIVE": return DS_DERIVE;
+            case "ABSOLUTE": return DS_ABSOLUTE;
+            default: throw new IllegalArgumentException("Unknown data source type " + type);
+        }
+    }
+
+    static String dsTypeName(byte dsType)
+    {
+        switch (dsType)
+        {
+            case DS_COUNTER: return "COUNTER";
+            case DS_GAUGE: return "GAUGE";
+            case DS_DERIVE: return "DERIVE";
+            case DS_ABSOLUTE: return "ABSOLUTE";
+            default: throw new IllegalArgumentException("Unknown data source type " + dsType);
+        }
+    }
+
+    private static void writeString(ByteBuf buf, int partType, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        buf.writeShort(partType);
+        buf.writeShort(HEADER_SIZE + bytes.length + 1);
+        buf.writeBytes(bytes);
+        buf.writeByte(0);
+    }
+
+    private static void writeNumber(ByteBuf buf, int partType, long value)
+    {
+        buf.writeShort(partType);
+        buf.writeShort(HEADER_SIZE + 8);
+        buf.writeLong(value);
+    }
+}
@@ -17,6 +17,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -232,6 +234,8 @@ public class CollectdController
                 .withCollectdRoot(collectdRoot().get())
                 .withSocketFile(socketFile)
                 .withLogDir(configuration.log_dir)
+                .withNetworkPort(configuration.binaryMetricTransport() ? configuration.metric_transport_port : null)
+                .withLatencyBuckets(configuration.latencyBucketLayouts())
                 .build();
 
         return collectdConfig;
@@ -273,7 +277,13 @@ public class CollectdController
         return scribeConfig;
     }
 
-    public synchronized ProcessState start(String socketFile, Configuration insightsConfig)
+    /**
+     * @param startupConfig the configuration the agent was started with, collectd.conf and the latency bucket
+     *                      types are generated from it so a restart keeps the metric transport the agent sends to
+     *                      and the layout types its timers are mapped to
+     * @param insightsConfig the current configuration, the scribe config is generated from it
+     */
+    public synchronized ProcessState start(String socketFile, Configuration startupConfig, Configuration insightsConfig)
     {
 
         if (DSE_OVERRIDE_SOCKET_FILE_PROP != null)
@@ -283,7 +293,7 @@ public class CollectdController
             return currentState;
         }
 
-        CollectdConfig collectdConfig = generateCollectdConf(socketFile, insightsConfig);
+        CollectdConfig collectdConfig = generateCollectdConf(socketFile, startupConfig);
         collectdPid = findCollectdPid();
 
         //Check if collectd is already running, if so it's an old version then
@@ -444,14 +454,24 @@ public class CollectdController
         public final String cluster = DatabaseDescriptor.getClusterName();
         public final File configFile;
         public final File scribeConfigFile;
+        // Port the network plugin listens on for the binary metric transport, null when not used
+        public final Integer networkPort;
+        // Extra types.db with the type of each latency bucket layout, null when only the default one is used
+        public final String latencyTypesDb;
 
+        private final Collection<LatencyBuckets> latencyBuckets;
+        private final File latencyTypesDbFile;
 
-        private CollectdConfig(String collectdRoot, String logDir, String socketFile)
+
+        private CollectdConfig(String collectdRoot, String logDir, String socketFile, Integer networkPort,
+                Collection<LatencyBuckets> latencyBuckets)
         {
             this.collectdRoot = collectdRoot;
             this.logDir = logDir;
             this.pidFile = Paths.get(logDir, "mcac-collectd.pid").toFile().getAbsolutePath();
             this.socketFile = socketFile;
+            this.networkPort = networkPort;
+            this.latencyBuckets = latencyBuckets;
 
 
             Mustache m = null;
@@ -506,6 +526,24 @@ public class CollectdController
                 ).toFile();
                 this.scribeConfigFile.deleteOnExit();
                 this.configFile.deleteOnExit();
+
+                if (latencyBuckets.isEmpty())
+                {
+                    this.latencyTypesDbFile = null;
+                }
+                else
+                {
+                    this.latencyTypesDbFile = Files.createTempFile(
+                            "mcac-collectd-types-",
+                            ".db",
+                            PosixFilePermissions.asFileAttribute(ImmutableSet.of(
+                                    PosixFilePermission.OWNER_READ,
+                                    PosixFilePermission.OWNER_WRITE
+                            ))
+                    ).toFile();
+                    this.latencyTypesDbFile.deleteOnExit();
+                }
+                this.latencyTypesDb = latencyTypesDbFile == null ? null : latencyTypesDbFile.getAbsolutePath();
             }
             catch (IOException e)
             {
@@ -515,6 +553,27 @@ public class CollectdController
 
         synchronized File generate() throws IOException
         {
+            if (latencyTypesDbFile != null)
+            {
+                // The layout types get the data source types of the bundled micros type
+                byte[] microsDsTypes = null;
+                try
+                {
+                    microsDsTypes = CollectdTypes.load(Paths.get(collectdRoot, "usr", "share", "collectd", "types.db"))
+                            .get(LatencyBuckets.DEFAULT.type);
+                }
+                catch (IOException | IllegalArgumentException e)
+                {
+                    logger.warn("Not able to read the micros type from collectd's types.db, using defaults", e);
+                }
+
+                try (FileWriter writer = new FileWriter(latencyTypesDbFile))
+                {
+                    for (LatencyBuckets buckets : latencyBuckets)
+                        writer.write(buckets.typesDbEntry(microsDsTypes) + "\n");
+                }
+            }
+
             try (FileWriter writer = new FileWriter(configFile))
             {
                 collectdConf.execute(writer, this);
@@ -528,6 +587,8 @@ public class CollectdController
             private String collectdRoot;
             private String logDir;
             private String socketFile;
+            private Integer networkPort;
+            private Collection<LatencyBuckets> latencyBuckets = Collections.emptyList();
 
             Builder withCollectdRoot(String collectdRoot)
             {
@@ -573,9 +634,21 @@ public class CollectdController
                 return this;
             }
 
+            Builder withNetworkPort(Integer networkPort)
+            {
+                this.networkPort = networkPort;
+                return this;
+            }
+
+            Builder withLatencyBuckets(Collection<LatencyBuckets> latencyBuckets)
+            {
+                this.latencyBuckets = latencyBuckets;
+                return this;
+            }
+
             CollectdConfig build()
             {
-                return new CollectdConfig(collectdRoot, logDir, socketFile);
+                return new CollectdConfig(collectdRoot, logDir, socketFile, networkPort, latencyBuckets);
             }
         }
     }
@@ -0,0 +1,89 @@
+package com.datastax.mcac;
+
+import java.net.InetSocketAddress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+/**
+ * Packs the value lists written to the network channel, one per {@link DatagramPacket}, into as few
+ * datagrams as collectd's receive buffer allows. Value lists are self contained so any of them can
+ * share a packet. A pending packet goes out once the next value list doesn't fit, or on flush.
+ */
+final class CollectdPacketAggregator extends ChannelOutboundHandlerAdapter
+{
+    private final int maxPacketSize;
+
+    private ByteBuf pending;
+    private InetSocketAddress recipient;
+
+    CollectdPacketAggregator(int maxPacketSize)
+    {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (!(msg instanceof DatagramPacket))
+        {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        DatagramPacket packet = (DatagramPacket) msg;
+        ByteBuf valueList = packet.content();
+
+        try
+        {
+            if (pending != null && (pending.readableBytes() + valueList.readableBytes() > maxPacketSize
+                    || !packet.recipient().equals(recipient)))
+                writePending(ctx);
+
+            if (pending == null)
+            {
+                pending = ctx.alloc().directBuffer(maxPacketSize);
+                recipient = packet.recipient();
+            }
+
+            pending.writeBytes(valueList);
+        }
+        finally
+        {
+            packet.release();
+        }
+
+        promise.trySuccess();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception
+    {
+        writePending(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
+    {
+        if (pending != null)
+        {
+            pending.release();
+            pending = null;
+        }
+
+        ctx.close(promise);
+    }
+
+    private void writePending(ChannelHandlerContext ctx)
+    {
+        if (pending == null)
+            return;
+
+        ctx.write(new DatagramPacket(pending, recipient), ctx.voidPromise());
+        pending = null;
+    }
+}
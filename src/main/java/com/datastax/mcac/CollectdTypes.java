@@ -0,0 +1,107 @@
+package com.datastax.mcac;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data source types of each type in collectd's types.db.
+ *
+ * A PUTVAL line leaves it to collectd to parse each value as its data source requires, the binary
+ * protocol has to encode each value as what collectd will read it as. The names of the data sources
+ * make the series names the embedded prometheus endpoint exposes, see {@link PrometheusScrape}.
+ *
+ * Each line is {@code <type> <ds-name>:<ds-type>:<min>:<max>[, <ds-name>:<ds-type>:<min>:<max> ...]}
+ */
+final class CollectdTypes
+{
+    private final Map<String, byte[]> dsTypes;
+    private final Map<String, String[]> dsNames;
+
+    private CollectdTypes(Map<String, byte[]> dsTypes, Map<String, String[]> dsNames)
+    {
+        this.dsTypes = dsTypes;
+        this.dsNames = dsNames;
+    }
+
+    static CollectdTypes load(Path typesDb) throws IOException
+    {
+        return parse(Files.readAllLines(typesDb, StandardCharsets.UTF_8));
+    }
+
+    static CollectdTypes parse(List<String> lines)
+    {
+        Map<String, byte[]> dsTypes = new HashMap<>();
+        Map<String, String[]> dsNames = new HashMap<>();
+
+        for (String line : lines)
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] typeAndSources = line.split("\\s+", 2);
+            if (typeAndSources.length != 2)
+                continue;
+
+            String[] sources = typeAndSources[1].split(",");
+            byte[] types = new byte[sources.length];
+            String[] names = new String[sources.length];
+            for (int i = 0; i < sources.length; i++)
+            {
+                String[] ds = sources[i].trim().split(":");
+                if (ds.length != 4)
+                    throw new IllegalArgumentException("Malformed types.db entry: " + line);
+
+                names[i] = ds[0];
+                types[i] = CollectdBinaryEncoder.dsType(ds[1]);
+            }
+
+            dsTypes.put(typeAndSources[0], types);
+            dsNames.put(typeAndSources[0], names);
+        }
+
+        return new CollectdTypes(dsTypes, dsNames);
+    }
+
+    /**
+     * @return these types and the one of each latency bucket layout
+     */
+    CollectdTypes withLatencyBuckets(Collection<LatencyBuckets> layouts)
+    {
+        Map<String, byte[]> withLayoutTypes = new HashMap<>(dsTypes);
+        Map<String, String[]> withLayoutNames = new HashMap<>(dsNames);
+        for (LatencyBuckets buckets : layouts)
+        {
+            withLayoutTypes.put(buckets.type, buckets.dsTypes(dsTypes.get(LatencyBuckets.DEFAULT.type)));
+            withLayoutNames.put(buckets.type, buckets.dsNames());
+        }
+
+        return new CollectdTypes(withLayoutTypes, withLayoutNames);
+    }
+
+    /**
+     * @param type the type, optionally followed by -type_instance
+     * @return the data source types of each value, or null if the type is unknown
+     */
+    byte[] get(String type)
+    {
+        int dash = type.indexOf('-');
+        return dsTypes.get(dash < 0 ? type : type.substring(0, dash));
+    }
+
+    /**
+     * @param type the type, optionally followed by -type_instance
+     * @return the name of each data source, or null if the type is unknown
+     */
+    String[] names(String type)
+    {
+        int dash = type.indexOf('-');
+        return dsNames.get(dash < 0 ? type : type.substring(0, dash));
+    }
+}
@@ -0,0 +1,179 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The filtering rules compiled into a single matcher giving the same answer as
+ * {@link FilteringRule#applyFilters(String, List)}, the last matching rule wins.
+ *
+ * Most rules are plain metric name prefixes like {@code org.apache.cassandra.metrics.table.read} where the dots
+ * are regex wildcards. Those are merged into a trie, with wildcard edges for the dots, walked once from each
+ * position of the name. The rules needing a real regex are only tried when they come after the best trie
+ * match, from the last one down, so most names never run a regex at all.
+ */
+public final class CompiledFilteringRules
+{
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    private final List<FilteringRule> rules;
+    // Rules matched from any position, or from the start of the name only for patterns starting with ^
+    private final Node unanchored = new Node();
+    private final Node anchored = new Node();
+    private final int[] regexRules;
+
+    private CompiledFilteringRules(List<FilteringRule> rules)
+    {
+        this.rules = rules;
+
+        List<Integer> regexes = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++)
+        {
+            String pattern = rules.get(i).pattern;
+            boolean isAnchored = pattern.startsWith("^");
+            String literal = isAnchored ? pattern.substring(1) : pattern;
+
+            if (isLiteral(literal))
+            {
+                (isAnchored ? anchored : unanchored).add(literal, i);
+            }
+            else
+            {
+                // Compiled now so an invalid pattern is refused on load, not skipped while a trie match wins
+                rules.get(i).matches("");
+                regexes.add(i);
+            }
+        }
+
+        this.regexRules = regexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if a pattern isn't a valid regex
+     */
+    public static CompiledFilteringRules compile(List<FilteringRule> rules)
+    {
+        return new CompiledFilteringRules(new ArrayList<>(rules));
+    }
+
+    /**
+     * Returns the most applicable filtering rule for this name, see {@link FilteringRule#applyFilters(String, List)}
+     */
+    public FilteringRule.FilteringRuleMatch apply(String name)
+    {
+        int best = anchored.walk(name, 0, -1);
+        for (int start = 0; start <= name.length(); start++)
+            best = unanchored.walk(name, start, best);
+
+        for (int i = regexRules.length - 1; i >= 0 && regexRules[i] > best; i--)
+        {
+            if (rules.get(regexRules[i]).matches(name))
+            {
+                best = regexRules[i];
+                break;
+            }
+        }
+
+        if (best < 0)
+            return new FilteringRule.FilteringRuleMatch(0, FilteringRule.ALLOWED_GLOBALLY);
+
+        return new FilteringRule.FilteringRuleMatch(best, rules.get(best));
+    }
+
+    private static boolean isLiteral(String pattern)
+    {
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+            if (c > 127 || (c != '.' && REGEX_META.indexOf(c) >= 0))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Patterns are case insensitive, ASCII only as Pattern.CASE_INSENSITIVE without UNICODE_CASE
+    private static char lower(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    // What a regex . doesn't match
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static final class Node
+    {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // Taken by a . in the pattern
+        private Node any;
+        // Highest index of the rules whose pattern ends here
+        private int rule = -1;
+
+        void add(String pattern, int index)
+        {
+            Node node = this;
+            for (int i = 0; i < pattern.length(); i++)
+            {
+                char c = pattern.charAt(i);
+                if (c == '.')
+                {
+                    if (node.any == null)
+                        node.any = new Node();
+
+                    node = node.any;
+                }
+                else
+                {
+                    node = node.child(lower(c));
+                }
+            }
+
+            node.rule = Math.max(node.rule, index);
+        }
+
+        private Node child(char c)
+        {
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (keys[i] == c)
+                    return children[i];
+            }
+
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            return children[children.length - 1] = new Node();
+        }
+
+        /**
+         * @return the highest rule index matching the name from this position, or best if none is higher
+         */
+        int walk(String name, int position, int best)
+        {
+            best = Math.max(best, rule);
+            if (position == name.length())
+                return best;
+
+            char c = name.charAt(position);
+            char lower = lower(c);
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (keys[i] == lower)
+                {
+                    best = children[i].walk(name, position + 1, best);
+                    break;
+                }
+            }
+
+            if (any != null && !isLineTerminator(c))
+                best = any.walk(name, position + 1, best);
+
+            return best;
+        }
+    }
+}
@@ -5,7 +5,10 @@ import org.apache.cassandra.config.DatabaseDescriptor;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 
@@ -13,6 +16,12 @@ public class Configuration
 {
     public static final long MAX_METRIC_UPDATE_GAP_IN_SECONDS = TimeUnit.MINUTES.toSeconds(5);
     public static final long MAX_EVENT_INTERVAL = (int) TimeUnit.MINUTES.toSeconds(5);
+    public static final String TEXT_TRANSPORT = "text";
+    public static final String BINARY_TRANSPORT = "binary";
+    public static final String BURST_SCHEDULE = "burst";
+    public static final String SPREAD_SCHEDULE = "spread";
+    public static final String DENSE_BUCKETS = "dense";
+    public static final String SPARSE_BUCKETS = "sparse";
 
     public String log_dir = System.getProperty("cassandra.logdir", System.getProperty("mcac.collectd.logdir", "/tmp"));
 
@@ -23,6 +32,93 @@ public class Configuration
 
     public Integer metric_sampling_interval_in_seconds = 30;
 
+    /**
+     * Threads snapshotting metrics each interval. With 1 the whole pass runs on the
+     * event loop, more splits it into shards written out in order once they're done.
+     */
+    public Integer metric_reporting_threads = 1;
+
+    /**
+     * "burst" reports every metric at the start of each interval, "spread" reports a slice of them every second
+     * from an offset into the interval derived from the host id.
+     */
+    public String metric_reporting_schedule = BURST_SCHEDULE;
+
+    /**
+     * Reports every metric less often while the node is busy, see {@link AdaptiveSampling}: when a pass takes more
+     * than adaptive_sampling_busy_fraction of the interval, or more than adaptive_sampling_pending_tasks tasks are
+     * pending in Cassandra's thread pools (0 ignores them). The interval doubles up to adaptive_sampling_max_backoff
+     * times metric_sampling_interval_in_seconds and comes back down as the load drops.
+     */
+    public boolean adaptive_sampling_enabled = false;
+
+    public Double adaptive_sampling_busy_fraction = 0.1;
+
+    public Long adaptive_sampling_pending_tasks = 1000L;
+
+    public Integer adaptive_sampling_max_backoff = 8;
+
+    /**
+     * Filtering rules picking the metrics still reported every interval while the adaptive sampling backs off,
+     * only their policy counts. Without any, nothing is reported in between.
+     */
+    public List<FilteringRule> adaptive_sampling_essential_rules = new ArrayList<>();
+
+    /**
+     * When enabled a reporting pass stops as soon as the channel to collectd is no longer writable
+     * and carries on from where it left off once collectd catches up, rather than forcing flushes.
+     */
+    public boolean write_backpressure_enabled = false;
+
+    /**
+     * What to give up when collectd is still behind at the next interval, see {@link BackpressureDropPolicy}
+     */
+    public String write_backpressure_drop_policy = "oldest_pass";
+
+    /**
+     * Only send gauges and counters when their value changes, or every
+     * delta_reporting_heartbeat_intervals so collectd doesn't expire them.
+     * Values shipped to insights are always sent.
+     */
+    public boolean delta_reporting_enabled = false;
+
+    /**
+     * Needs to be at least 2 and stay below collectd's Timeout (10 intervals, see collectd.conf.tmpl)
+     */
+    public Integer delta_reporting_heartbeat_intervals = 5;
+
+    /**
+     * How metrics are sent to collectd, read on startup:
+     * "text" PUTVAL lines over the unix socket, or "binary" value lists in
+     * collectd's network protocol over UDP to metric_transport_port on localhost.
+     */
+    public String metric_transport = TEXT_TRANSPORT;
+
+    public Integer metric_transport_port = 25826;
+
+    /**
+     * How many connections metrics are written to collectd's unix socket over, read on startup. collectd reads
+     * each one on its own thread, the lines of a metric always go over the same one.
+     */
+    public Integer metric_transport_connections = 1;
+
+    /**
+     * Serves the metrics to prometheus straight from the agent on prometheus_exporter_address:prometheus_exporter_port,
+     * read on startup. Series are named as collectd's write_prometheus plugin (port 9103) names them, which keeps
+     * serving the OS metrics.
+     */
+    public boolean prometheus_exporter_enabled = false;
+
+    public String prometheus_exporter_address = "0.0.0.0";
+
+    public Integer prometheus_exporter_port = 9104;
+
+    /**
+     * How long a rendered scrape is served to the next scrapes of the same format, read on startup. Scrapes
+     * arriving while one is rendered share it either way once this is set, 0 renders each scrape.
+     */
+    public Integer prometheus_exporter_cache_ttl_in_ms = 0;
+
     public Integer upload_interval_in_seconds = (int)MAX_METRIC_UPDATE_GAP_IN_SECONDS;
 
     public Integer event_interval_in_seconds = (int)MAX_EVENT_INTERVAL;
@@ -33,6 +129,24 @@ public class Configuration
 
     public List<FilteringRule> filtering_rules = new ArrayList<>();
 
+    /**
+     * The prometheus bucket layout of each timer, read on startup, see {@link LatencyBucketRule}.
+     * Timers no rule matches get the default layout.
+     */
+    public List<LatencyBucketRule> latency_bucket_rules = new ArrayList<>();
+
+    /**
+     * How often the metrics matching each pattern are reported, read on startup, see {@link ReportingIntervalRule}.
+     * Metrics no rule matches are reported every metric_sampling_interval_in_seconds.
+     */
+    public List<ReportingIntervalRule> reporting_interval_rules = new ArrayList<>();
+
+    /**
+     * How timer insights carry their latency buckets as tags: "dense" every bucket, or "sparse"
+     * only the non empty ones along with a bucket_encoding tag, see {@link MetricInsight#SPARSE_BUCKETS_V1}.
+     */
+    public String insight_bucket_encoding = DENSE_BUCKETS;
+
     public boolean insights_upload_enabled = false;
 
     public boolean write_to_disk_enabled = true;
@@ -66,6 +180,82 @@ public class Configuration
             return upload_interval_in_seconds;
     }
 
+    public BackpressureDropPolicy backpressureDropPolicy()
+    {
+        return BackpressureDropPolicy.fromString(write_backpressure_drop_policy);
+    }
+
+    public boolean binaryMetricTransport()
+    {
+        if (!(TEXT_TRANSPORT.equalsIgnoreCase(metric_transport) || BINARY_TRANSPORT.equalsIgnoreCase(metric_transport)))
+            throw new IllegalArgumentException(String.format("Metric transport must be '%s' or '%s'", TEXT_TRANSPORT, BINARY_TRANSPORT));
+
+        return BINARY_TRANSPORT.equalsIgnoreCase(metric_transport);
+    }
+
+    public boolean spreadReporting()
+    {
+        if (!(BURST_SCHEDULE.equalsIgnoreCase(metric_reporting_schedule) || SPREAD_SCHEDULE.equalsIgnoreCase(metric_reporting_schedule)))
+            throw new IllegalArgumentException(String.format("Metric reporting schedule must be '%s' or '%s'", BURST_SCHEDULE, SPREAD_SCHEDULE));
+
+        return SPREAD_SCHEDULE.equalsIgnoreCase(metric_reporting_schedule);
+    }
+
+    public int metricTransportConnections()
+    {
+        if (metric_transport_connections == null || metric_transport_connections < 1)
+            throw new IllegalArgumentException("Metric transport connections must be at least 1: " + metric_transport_connections);
+
+        return metric_transport_connections;
+    }
+
+    public void validateDeltaReporting()
+    {
+        // collectd.conf.tmpl expires a value after Timeout (10) intervals without one
+        if (delta_reporting_heartbeat_intervals == null || delta_reporting_heartbeat_intervals < 2 || delta_reporting_heartbeat_intervals >= 10)
+            throw new IllegalArgumentException("Delta reporting heartbeat intervals must be within [2, 10): " + delta_reporting_heartbeat_intervals);
+    }
+
+    public void validateAdaptiveSampling()
+    {
+        if (adaptive_sampling_busy_fraction == null || adaptive_sampling_busy_fraction <= 0 || adaptive_sampling_busy_fraction > 1)
+            throw new IllegalArgumentException("Adaptive sampling busy fraction must be within (0, 1]: " + adaptive_sampling_busy_fraction);
+
+        if (adaptive_sampling_pending_tasks == null || adaptive_sampling_pending_tasks < 0)
+            throw new IllegalArgumentException("Adaptive sampling pending tasks must be at least 0: " + adaptive_sampling_pending_tasks);
+
+        if (adaptive_sampling_max_backoff == null || adaptive_sampling_max_backoff < 1)
+            throw new IllegalArgumentException("Adaptive sampling max backoff must be at least 1: " + adaptive_sampling_max_backoff);
+    }
+
+    public boolean sparseInsightBuckets()
+    {
+        if (!(DENSE_BUCKETS.equalsIgnoreCase(insight_bucket_encoding) || SPARSE_BUCKETS.equalsIgnoreCase(insight_bucket_encoding)))
+            throw new IllegalArgumentException(String.format("Insight bucket encoding must be '%s' or '%s'", DENSE_BUCKETS, SPARSE_BUCKETS));
+
+        return SPARSE_BUCKETS.equalsIgnoreCase(insight_bucket_encoding);
+    }
+
+    /**
+     * The layouts of the latency bucket rules, other than the default one, each one a type collectd has to know
+     */
+    Collection<LatencyBuckets> latencyBucketLayouts()
+    {
+        Map<String, LatencyBuckets> layouts = new LinkedHashMap<>();
+        for (LatencyBucketRule rule : latency_bucket_rules)
+        {
+            LatencyBuckets buckets = rule.buckets();
+            if (buckets == LatencyBuckets.DEFAULT)
+                continue;
+
+            LatencyBuckets previous = layouts.putIfAbsent(buckets.layout, buckets);
+            if (previous != null && !previous.sameOffsets(buckets))
+                throw new IllegalArgumentException("Latency bucket layout defined twice with different offsets: " + buckets.layout);
+        }
+
+        return layouts.values();
+    }
+
     private static final String getDataDir()
     {
         try
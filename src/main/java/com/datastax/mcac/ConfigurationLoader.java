@@ -96,6 +96,32 @@ public class ConfigurationLoader {
                 rule.init();
             }
 
+            // Compiled now so an invalid pattern is refused on load, not by the client using the rules
+            CompiledFilteringRules.compile(result.filtering_rules);
+
+            for (LatencyBucketRule rule : result.latency_bucket_rules) {
+                rule.init();
+            }
+
+            for (ReportingIntervalRule rule : result.reporting_interval_rules) {
+                rule.init();
+            }
+
+            for (FilteringRule rule : result.adaptive_sampling_essential_rules) {
+                rule.init();
+            }
+
+            CompiledFilteringRules.compile(result.adaptive_sampling_essential_rules);
+
+            result.backpressureDropPolicy();
+            result.binaryMetricTransport();
+            result.spreadReporting();
+            result.metricTransportConnections();
+            result.latencyBucketLayouts();
+            result.sparseInsightBuckets();
+            result.validateDeltaReporting();
+            result.validateAdaptiveSampling();
+
             return result;
         } catch (YAMLException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,232 @@
+package com.datastax.mcac;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.datastax.mcac.insights.Insight;
+import com.datastax.mcac.insights.InsightMetadata;
+import com.datastax.mcac.insights.metrics.MetricSerializers;
+import com.datastax.mcac.utils.JacksonUtil;
+import io.netty.buffer.ByteBuf;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.core.SerializableString;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.core.io.SerializedString;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes {@code PUTINSIGHT <json>} lines straight into a {@link ByteBuf}, the JSON being what
+ * {@link JacksonUtil#writeValueAsString(Object)} gives for the insight.
+ *
+ * The metadata is written around pre-serialized fragments: the global tags every metric insight carries
+ * are serialized once, as is the insight type. Only the data goes through the object mapper. The generator
+ * writes no whitespace between tokens and escapes line breaks in strings, so the line is newline free.
+ *
+ * Timers, meters and histograms can also be written from a reused {@link MetricInsight}, without building
+ * the insight objects at all.
+ *
+ * Not thread safe, the generator and its buffers are reused from one insight to the next.
+ */
+final class InsightJsonWriter
+{
+    private static final SerializedString PUTINSIGHT = new SerializedString("PUTINSIGHT ");
+    private static final SerializedString METADATA_NAME = new SerializedString("{\"metadata\":{\"name\":");
+    private static final SerializedString TIMESTAMP = new SerializedString(",\"timestamp\":");
+    private static final SerializedString TAGS = new SerializedString(",\"tags\":");
+    private static final SerializedString INSIGHT_MAPPING_ID = new SerializedString(",\"insightMappingId\":");
+    private static final SerializedString DATA = new SerializedString("},\"data\":");
+    private static final SerializedString END = new SerializedString("}\n");
+    private static final SerializedString COMMA = new SerializedString(",");
+    private static final SerializedString QUOTED_VALUE_START = new SerializedString(":\"");
+    private static final SerializedString QUOTE = new SerializedString("\"");
+    private static final SerializedString END_OBJECT = new SerializedString("}");
+    private static final SerializedString BUCKET_ENCODING = new SerializedString("\"" + MetricInsight.BUCKET_ENCODING_TAG + "\":");
+
+    private final ObjectMapper mapper = JacksonUtil.getObjectMapper();
+    private final Map<String, String> globalTags;
+    // ,"tags":{...global tags...},"insightType":"<type>" for each type
+    private final Map<InsightMetadata.InsightType, SerializableString> globalTagsAndTypes = new EnumMap<>(InsightMetadata.InsightType.class);
+    // ,"tags":{...global tags... with the closing brace left out
+    private final SerializableString globalTagsOpen;
+    // ,"insightType":"<type>" for each type
+    private final Map<InsightMetadata.InsightType, SerializableString> types = new EnumMap<>(InsightMetadata.InsightType.class);
+
+    private final Sink out = new Sink();
+    private JsonGenerator generator;
+
+    InsightJsonWriter(Map<String, String> globalTags) throws IOException
+    {
+        this.globalTags = globalTags;
+
+        String tagsJson = mapper.writeValueAsString(globalTags);
+        this.globalTagsOpen = new SerializedString(TAGS.getValue() + tagsJson.substring(0, tagsJson.length() - 1));
+        for (InsightMetadata.InsightType type : InsightMetadata.InsightType.values())
+        {
+            String typeJson = ",\"insightType\":" + mapper.writeValueAsString(type);
+            types.put(type, new SerializedString(typeJson));
+            globalTagsAndTypes.put(type, new SerializedString(TAGS.getValue() + tagsJson + typeJson));
+        }
+
+        this.generator = createGenerator();
+    }
+
+    private JsonGenerator createGenerator() throws IOException
+    {
+        JsonGenerator generator = mapper.getFactory().createGenerator(out);
+        // Values are written one after the other at the root, without anything in between
+        generator.setRootValueSeparator(null);
+        return generator;
+    }
+
+    void write(ByteBuf buf, Insight insight) throws IOException
+    {
+        InsightMetadata metadata = insight.metadata;
+        out.buf = buf;
+
+        try
+        {
+            writeStart(metadata.name, metadata.timestamp);
+
+            if (metadata.tags == globalTags)
+            {
+                generator.writeRaw(globalTagsAndTypes.get(metadata.insightType));
+            }
+            else
+            {
+                generator.writeRaw(TAGS);
+                mapper.writeValue(generator, metadata.tags);
+                generator.writeRaw(types.get(metadata.insightType));
+            }
+
+            if (metadata.insightMappingId != null)
+            {
+                generator.writeRaw(INSIGHT_MAPPING_ID);
+                generator.writeString(metadata.insightMappingId);
+            }
+
+            generator.writeRaw(DATA);
+            mapper.writeValue(generator, insight.data);
+            generator.writeRaw(END);
+            generator.flush();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Whatever is left buffered belongs to this insight
+            generator = createGenerator();
+            throw e;
+        }
+        finally
+        {
+            out.buf = null;
+        }
+    }
+
+    /**
+     * Writes a reused metric insight, the JSON is the same as for the insight object with the global tags
+     */
+    void write(ByteBuf buf, MetricInsight insight) throws IOException
+    {
+        out.buf = buf;
+
+        try
+        {
+            writeStart(insight.name, insight.timestamp);
+
+            if (insight.buckets() == 0 && insight.bucketEncoding == null)
+            {
+                generator.writeRaw(globalTagsAndTypes.get(insight.type));
+            }
+            else
+            {
+                generator.writeRaw(globalTagsOpen);
+                boolean first = globalTags.isEmpty();
+                if (insight.bucketEncoding != null)
+                {
+                    if (!first)
+                        generator.writeRaw(COMMA);
+                    generator.writeRaw(BUCKET_ENCODING);
+                    generator.writeString(insight.bucketEncoding);
+                    first = false;
+                }
+
+                for (int i = 0; i < insight.buckets(); i++)
+                {
+                    // A tag value is a string, e.g. "bucket_35":"12"
+                    if (!first)
+                        generator.writeRaw(COMMA);
+                    first = false;
+                    generator.writeString(insight.bucketName(i));
+                    generator.writeRaw(QUOTED_VALUE_START);
+                    generator.writeNumber(insight.bucketCount(i));
+                    generator.writeRaw(QUOTE);
+                }
+                generator.writeRaw(END_OBJECT);
+                generator.writeRaw(types.get(insight.type));
+            }
+
+            generator.writeRaw(DATA);
+            generator.writeStartObject();
+            generator.writeNumberField("count", insight.count);
+
+            if (insight.hasSamplingStats)
+            {
+                generator.writeObjectFieldStart("samplingStats");
+                MetricSerializers.writeSamplingStats(generator, insight.min, insight.max, insight.mean, insight.median,
+                        insight.p75, insight.p95, insight.p98, insight.p99, insight.p999, insight.stdDev);
+                generator.writeEndObject();
+            }
+
+            if (insight.hasRateStats)
+            {
+                generator.writeObjectFieldStart("rateStats");
+                MetricSerializers.writeRateStats(generator, insight.m1Rate, insight.m5Rate, insight.m15Rate, insight.meanRate);
+                generator.writeEndObject();
+            }
+
+            if (insight.rateUnit != null)
+                generator.writeStringField("rateUnit", insight.rateUnit);
+            if (insight.durationUnit != null)
+                generator.writeStringField("durationUnit", insight.durationUnit);
+
+            generator.writeEndObject();
+            generator.writeRaw(END);
+            generator.flush();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            generator = createGenerator();
+            throw e;
+        }
+        finally
+        {
+            out.buf = null;
+        }
+    }
+
+    private void writeStart(String name, long timestamp) throws IOException
+    {
+        generator.writeRaw(PUTINSIGHT);
+        generator.writeRaw(METADATA_NAME);
+        generator.writeString(name);
+        generator.writeRaw(TIMESTAMP);
+        generator.writeNumber(timestamp);
+    }
+
+    private static final class Sink extends OutputStream
+    {
+        private ByteBuf buf;
+
+        @Override
+        public void write(int b)
+        {
+            buf.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            buf.writeBytes(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.datastax.mcac;
+
+/**
+ * The value a gauge or counter last wrote, kept as a primitive so that in delta reporting mode
+ * unchanged values are only re-sent as a heartbeat, often enough to keep the series from
+ * expiring out of collectd's cache.
+ *
+ * Only written by the reporting pass, a racing removal can at worst cause an extra line.
+ */
+final class LastReportedValue
+{
+    private long value;
+    private boolean reported = false;
+    private int skipped = 0;
+
+    /**
+     * @param skippable false if the line has to be written regardless, e.g. it is shipped to insights
+     * @return true if the value should be written
+     */
+    boolean shouldWrite(long value, int heartbeatIntervals, boolean skippable)
+    {
+        if (skippable && reported && this.value == value && ++skipped < heartbeatIntervals)
+            return false;
+
+        this.value = value;
+        this.reported = true;
+        this.skipped = 0;
+        return true;
+    }
+
+    boolean shouldWrite(Number value, int heartbeatIntervals, boolean skippable)
+    {
+        long bits = value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                ? value.longValue()
+                : Double.doubleToLongBits(value.doubleValue());
+
+        return shouldWrite(bits, heartbeatIntervals, skippable);
+    }
+}
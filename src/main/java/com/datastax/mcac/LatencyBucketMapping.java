@@ -0,0 +1,41 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+
+/**
+ * Which buckets of a histogram snapshot add up to each of the latency buckets reported to collectd.
+ *
+ * A latency bucket gets the cumulative count of the snapshot buckets before the first one whose offset is
+ * above the latency bucket's. At most one latency bucket is closed per snapshot bucket, latency buckets the
+ * snapshot doesn't reach get the total count, as does the inf bucket.
+ *
+ * The mapping only depends on the offsets, so it's computed once for each offsets array and re-bucketing
+ * is a prefix sum, see {@link #ends}.
+ */
+final class LatencyBucketMapping
+{
+    // The number of buckets of the snapshots this mapping applies to
+    final int inputBuckets;
+    // For each latency bucket reached by the snapshot, the end of the snapshot buckets it counts
+    final int[] ends;
+
+    private LatencyBucketMapping(int inputBuckets, int[] ends)
+    {
+        this.inputBuckets = inputBuckets;
+        this.ends = ends;
+    }
+
+    static LatencyBucketMapping compute(long[] inputOffsets, long[] latencyOffsets)
+    {
+        int[] ends = new int[latencyOffsets.length];
+        int outputIndex = 0;
+        for (int i = 0; i < inputOffsets.length; i++)
+        {
+            //Hit bucket edge
+            if (outputIndex < latencyOffsets.length && inputOffsets[i] > latencyOffsets[outputIndex])
+                ends[outputIndex++] = i;
+        }
+
+        return new LatencyBucketMapping(inputOffsets.length, Arrays.copyOf(ends, outputIndex));
+    }
+}
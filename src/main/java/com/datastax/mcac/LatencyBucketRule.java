@@ -0,0 +1,117 @@
+package com.datastax.mcac;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Which latency bucket layout the timers matching a pattern are reported with, see {@link LatencyBuckets}.
+ *
+ * Works like the filtering rules, the last rule matching the metric name wins.
+ */
+public class LatencyBucketRule
+{
+    @JsonProperty("pattern")
+    public final String pattern;
+
+    @JsonProperty("layout")
+    public final String layout;
+
+    // Only for layouts other than the built-in ones
+    @JsonProperty("offsets_in_micros")
+    public final List<Long> offsets_in_micros;
+
+    @JsonIgnore
+    private Pattern patternRegex;
+    @JsonIgnore
+    private LatencyBuckets buckets;
+
+    public LatencyBucketRule()
+    {
+        this.pattern = null;
+        this.layout = null;
+        this.offsets_in_micros = null;
+    }
+
+    public LatencyBucketRule(@JsonProperty("pattern") String pattern, @JsonProperty("layout") String layout,
+            @JsonProperty("offsets_in_micros") List<Long> offsetsInMicros)
+    {
+        this.pattern = pattern;
+        this.layout = layout;
+        this.offsets_in_micros = offsetsInMicros;
+
+        init();
+    }
+
+    public void init()
+    {
+        if (pattern == null || layout == null)
+            throw new IllegalArgumentException("Latency bucket rule not properly initialized");
+
+        try
+        {
+            this.patternRegex = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+        }
+        catch (PatternSyntaxException e)
+        {
+            throw new IllegalArgumentException("Invalid pattern: " + pattern, e);
+        }
+
+        this.buckets = LatencyBuckets.of(layout, offsets_in_micros);
+    }
+
+    public boolean matches(String name)
+    {
+        return patternRegex.matcher(name).find();
+    }
+
+    LatencyBuckets buckets()
+    {
+        return buckets;
+    }
+
+    /**
+     * @return the layout of the last rule matching the name, or the default one
+     */
+    static LatencyBuckets applyRules(String name, List<LatencyBucketRule> rules)
+    {
+        for (int i = rules.size() - 1; i >= 0; i--)
+        {
+            if (rules.get(i).matches(name))
+                return rules.get(i).buckets();
+        }
+
+        return LatencyBuckets.DEFAULT;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LatencyBucketRule rule = (LatencyBucketRule) o;
+        return Objects.equals(pattern, rule.pattern) &&
+                Objects.equals(layout, rule.layout) &&
+                Objects.equals(offsets_in_micros, rule.offsets_in_micros);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(pattern, layout, offsets_in_micros);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyBucketRule{" +
+                "pattern='" + pattern + '\'' +
+                ", layout='" + layout + '\'' +
+                ", offsets_in_micros=" + offsets_in_micros +
+                '}';
+    }
+}
@@ -0,0 +1,207 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * A layout of the prometheus latency buckets timers are reported with: the count, the sum, then the
+ * cumulative count of each bucket and of the inf bucket.
+ *
+ * Each layout is a collectd type. The default one is the micros type of the types.db bundled with collectd,
+ * the others are micros_<layout> types generated next to collectd.conf, see
+ * {@link CollectdController.CollectdConfig}.
+ */
+final class LatencyBuckets
+{
+    static final String DEFAULT_LAYOUT = "default";
+    static final String COARSE_LAYOUT = "coarse";
+    static final String FINE_LAYOUT = "fine";
+    static final String INF_BUCKET = "bucket_inf";
+
+    private static final String DEFAULT_TYPE = "micros";
+    private static final Pattern LAYOUT_NAME = Pattern.compile("[a-z0-9_]+");
+
+    // count, sum, buckets, when the bundled micros type can't be read. The buckets are gauges, prometheus sees
+    // them as <name>_micros_bucket_<offset> and the relabeling turns that suffix into the le label
+    private static final byte[] FALLBACK_DS_TYPES = { CollectdBinaryEncoder.DS_DERIVE, CollectdBinaryEncoder.DS_GAUGE,
+            CollectdBinaryEncoder.DS_GAUGE };
+
+    // Log linear buckets (these must match the collectd entry in types.db)
+    private static final long[] DEFAULT_OFFSETS = { 35, 60, 103, 179, 310, 535, 924, 1597, 2759, 4768, 8239, 14237,
+            24601, 42510, 73457, 126934, 219342, 379022, 654949, 1131752, 1955666, 3379391, 5839588, 10090808,
+            17436917 };
+
+    static final LatencyBuckets DEFAULT = new LatencyBuckets(DEFAULT_LAYOUT, DEFAULT_TYPE, DEFAULT_OFFSETS);
+
+    // Every other default bucket, so dashboards line up with the default layout
+    static final LatencyBuckets COARSE = new LatencyBuckets(COARSE_LAYOUT, typeOf(COARSE_LAYOUT), everyOther(DEFAULT_OFFSETS));
+
+    // The buckets of Cassandra's latency histograms themselves, rounded up to the micro, up to the top of the default range
+    static final LatencyBuckets FINE = new LatencyBuckets(FINE_LAYOUT, typeOf(FINE_LAYOUT),
+            roundedUpToMicros(new EstimatedHistogram(165).getBucketOffsets(), 10, DEFAULT_OFFSETS[DEFAULT_OFFSETS.length - 1]));
+
+    private static final ImmutableMap<String, LatencyBuckets> BUILT_IN = ImmutableMap.of(
+            DEFAULT_LAYOUT, DEFAULT,
+            COARSE_LAYOUT, COARSE,
+            FINE_LAYOUT, FINE);
+
+    final String layout;
+    // The collectd type the values are reported as
+    final String type;
+    final long[] offsetsMicros;
+    // Latencies are reported in nanoseconds
+    final long[] offsetsNanos;
+    final String[] bucketNames;
+
+    // Keyed by the identity of the offsets arrays, which live as long as their histograms
+    private final LoadingCache<long[], LatencyBucketMapping> mappings;
+
+    private LatencyBuckets(String layout, String type, long[] offsetsMicros)
+    {
+        this.layout = layout;
+        this.type = type;
+        this.offsetsMicros = offsetsMicros;
+        this.offsetsNanos = new long[offsetsMicros.length];
+        this.bucketNames = new String[offsetsMicros.length];
+        for (int i = 0; i < offsetsMicros.length; i++)
+        {
+            offsetsNanos[i] = offsetsMicros[i] * 1000;
+            bucketNames[i] = "bucket_" + offsetsMicros[i];
+        }
+
+        this.mappings = CacheBuilder.newBuilder()
+                .weakKeys()
+                .build(new CacheLoader<long[], LatencyBucketMapping>()
+                {
+                    @Override
+                    public LatencyBucketMapping load(long[] offsets)
+                    {
+                        return LatencyBucketMapping.compute(offsets, offsetsNanos);
+                    }
+                });
+    }
+
+    /**
+     * @param offsetsInMicros the upper bound of each bucket, for a layout other than the built-in ones
+     */
+    static LatencyBuckets of(String layout, List<? extends Number> offsetsInMicros)
+    {
+        if (layout == null || !LAYOUT_NAME.matcher(layout).matches())
+            throw new IllegalArgumentException("Latency bucket layout names must be made of [a-z0-9_]: " + layout);
+
+        LatencyBuckets builtIn = BUILT_IN.get(layout);
+        if (offsetsInMicros == null || offsetsInMicros.isEmpty())
+        {
+            if (builtIn == null)
+                throw new IllegalArgumentException("Unknown latency bucket layout, offsets_in_micros are required: " + layout);
+
+            return builtIn;
+        }
+
+        if (builtIn != null)
+            throw new IllegalArgumentException("Built-in latency bucket layouts can't be redefined: " + layout);
+
+        long[] offsets = new long[offsetsInMicros.size()];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = offsetsInMicros.get(i).longValue();
+            if (offsets[i] <= 0 || (i > 0 && offsets[i] <= offsets[i - 1]))
+                throw new IllegalArgumentException("Latency bucket offsets must be positive and increasing: " + offsetsInMicros);
+        }
+
+        return new LatencyBuckets(layout, typeOf(layout), offsets);
+    }
+
+    LatencyBucketMapping mapping(long[] snapshotOffsets)
+    {
+        return mappings.getUnchecked(snapshotOffsets);
+    }
+
+    boolean sameOffsets(LatencyBuckets other)
+    {
+        return Arrays.equals(offsetsMicros, other.offsetsMicros);
+    }
+
+    /**
+     * @param microsDsTypes the data source types of the micros type, null if unknown
+     * @return the data source types of this layout's type, the same as micros has for each field
+     */
+    byte[] dsTypes(byte[] microsDsTypes)
+    {
+        if (microsDsTypes == null || microsDsTypes.length < 3)
+            microsDsTypes = FALLBACK_DS_TYPES;
+
+        byte[] dsTypes = new byte[offsetsMicros.length + 3];
+        dsTypes[0] = microsDsTypes[0];
+        dsTypes[1] = microsDsTypes[1];
+        Arrays.fill(dsTypes, 2, dsTypes.length, microsDsTypes[2]);
+        return dsTypes;
+    }
+
+    String[] dsNames()
+    {
+        String[] names = new String[offsetsMicros.length + 3];
+        names[0] = "count";
+        names[1] = "sum";
+        System.arraycopy(bucketNames, 0, names, 2, bucketNames.length);
+        names[names.length - 1] = INF_BUCKET;
+        return names;
+    }
+
+    /**
+     * @return the types.db line of this layout's type, e.g. {@code micros_coarse count:DERIVE:0:U, sum:GAUGE:0:U, bucket_35:GAUGE:0:U, ...}
+     */
+    String typesDbEntry(byte[] microsDsTypes)
+    {
+        byte[] dsTypes = dsTypes(microsDsTypes);
+        String[] dsNames = dsNames();
+        StringBuilder entry = new StringBuilder(type);
+        for (int i = 0; i < dsNames.length; i++)
+            entry.append(i == 0 ? " " : ", ").append(dsNames[i]).append(':').append(CollectdBinaryEncoder.dsTypeName(dsTypes[i])).append(":0:U");
+
+        return entry.toString();
+    }
+
+    private static String typeOf(String layout)
+    {
+        return DEFAULT_TYPE + "_" + layout;
+    }
+
+    private static long[] everyOther(long[] offsets)
+    {
+        long[] result = new long[(offsets.length + 1) / 2];
+        for (int i = 0; i < result.length; i++)
+            result[i] = offsets[i * 2];
+        return result;
+    }
+
+    private static long[] roundedUpToMicros(long[] offsetsNanos, long fromMicros, long toMicros)
+    {
+        long[] result = new long[offsetsNanos.length];
+        int length = 0;
+        for (long offset : offsetsNanos)
+        {
+            long micros = (offset + 999) / 1000;
+            if (length > 0 && result[length - 1] >= toMicros)
+                break;
+
+            if (micros >= fromMicros && (length == 0 || micros > result[length - 1]))
+                result[length++] = micros;
+        }
+
+        return Arrays.copyOf(result, length);
+    }
+
+    @Override
+    public String toString()
+    {
+        return layout + Arrays.toString(offsetsMicros);
+    }
+}
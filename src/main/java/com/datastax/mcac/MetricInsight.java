@@ -0,0 +1,154 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+
+import com.datastax.mcac.insights.InsightMetadata;
+
+/**
+ * A timer, meter or histogram insight, filled in place and written right away by
+ * {@link InsightJsonWriter#write(io.netty.buffer.ByteBuf, MetricInsight)}. The JSON is the same as for
+ * the {@link com.datastax.mcac.insights.metrics} classes, with the global tags.
+ *
+ * A single instance per thread is reused for every insight, see {@link #start}.
+ */
+final class MetricInsight
+{
+    static final String BUCKET_ENCODING_TAG = "bucket_encoding";
+    /**
+     * Version 1 of the sparse bucket tags: only the buckets whose cumulative count differs from the one of the
+     * bucket before them, plus the inf bucket. A bucket left out has the count of the closest bucket below it
+     * that is there, 0 if there is none.
+     */
+    static final String SPARSE_BUCKETS_V1 = "sparse_v1";
+
+    String name;
+    long timestamp;
+    InsightMetadata.InsightType type;
+    long count;
+
+    boolean hasSamplingStats;
+    long min;
+    long max;
+    double mean;
+    double median;
+    double p75;
+    double p95;
+    double p98;
+    double p99;
+    double p999;
+    double stdDev;
+
+    boolean hasRateStats;
+    double m1Rate;
+    double m5Rate;
+    double m15Rate;
+    double meanRate;
+
+    String rateUnit;
+    String durationUnit;
+
+    // Timers carry the cumulative counts of their latency buckets as extra tags
+    private String[] bucketNames = new String[32];
+    private long[] bucketCounts = new long[32];
+    private int buckets;
+    // null for the dense encoding, every bucket the snapshot reaches is there
+    String bucketEncoding;
+
+    MetricInsight start(String name, long timestamp, InsightMetadata.InsightType type, long count)
+    {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.count = count;
+        this.hasSamplingStats = false;
+        this.hasRateStats = false;
+        this.rateUnit = null;
+        this.durationUnit = null;
+        this.buckets = 0;
+        this.bucketEncoding = null;
+        return this;
+    }
+
+    MetricInsight samplingStats(long min, long max, double mean, double median, double p75, double p95, double p98,
+            double p99, double p999, double stdDev)
+    {
+        this.hasSamplingStats = true;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.median = median;
+        this.p75 = p75;
+        this.p95 = p95;
+        this.p98 = p98;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.stdDev = stdDev;
+        return this;
+    }
+
+    MetricInsight rateStats(double m1Rate, double m5Rate, double m15Rate, double meanRate)
+    {
+        this.hasRateStats = true;
+        this.m1Rate = m1Rate;
+        this.m5Rate = m5Rate;
+        this.m15Rate = m15Rate;
+        this.meanRate = meanRate;
+        return this;
+    }
+
+    MetricInsight units(String rateUnit, String durationUnit)
+    {
+        this.rateUnit = rateUnit;
+        this.durationUnit = durationUnit;
+        return this;
+    }
+
+    /**
+     * Leaves out the empty buckets from now on, see {@link #SPARSE_BUCKETS_V1}
+     */
+    MetricInsight sparseBuckets()
+    {
+        this.bucketEncoding = SPARSE_BUCKETS_V1;
+        return this;
+    }
+
+    void bucket(String bucketName, long bucketCount)
+    {
+        if (bucketEncoding != null && bucketCount == (buckets == 0 ? 0 : bucketCounts[buckets - 1]))
+            return;
+
+        addBucket(bucketName, bucketCount);
+    }
+
+    void infBucket(long count)
+    {
+        addBucket(LatencyBuckets.INF_BUCKET, count);
+    }
+
+    private void addBucket(String bucketName, long bucketCount)
+    {
+        if (buckets == bucketNames.length)
+        {
+            bucketNames = Arrays.copyOf(bucketNames, buckets * 2);
+            bucketCounts = Arrays.copyOf(bucketCounts, buckets * 2);
+        }
+
+        bucketNames[buckets] = bucketName;
+        bucketCounts[buckets++] = bucketCount;
+    }
+
+    int buckets()
+    {
+        return buckets;
+    }
+
+    String bucketName(int i)
+    {
+        return bucketNames[i];
+    }
+
+    long bucketCount(int i)
+    {
+        return bucketCounts[i];
+    }
+}
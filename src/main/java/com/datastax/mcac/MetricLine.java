@@ -0,0 +1,145 @@
+package com.datastax.mcac;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The values of one metric being written, either as a plain text PUTVAL line or as a value list in
+ * collectd's binary network protocol, or as prometheus series during a scrape. A single instance per thread
+ * is reused for every line.
+ */
+final class MetricLine
+{
+    private ByteBuf buf;
+    // The data source type of each value for binary value lists, null for plain text
+    private byte[] dsTypes;
+    private int values;
+    // Set while the line is rendered for a scrape of the prometheus endpoint
+    private PrometheusScrape scrape;
+
+    MetricLine plainText(ByteBuf buf)
+    {
+        this.buf = buf;
+        this.dsTypes = null;
+        this.values = 0;
+        this.scrape = null;
+        return this;
+    }
+
+    MetricLine binary(ByteBuf buf, byte[] dsTypes)
+    {
+        CollectdBinaryEncoder.writeValuesHeader(buf, dsTypes);
+
+        this.buf = buf;
+        this.dsTypes = dsTypes;
+        this.values = 0;
+        this.scrape = null;
+        return this;
+    }
+
+    MetricLine scrape(PrometheusScrape scrape)
+    {
+        this.buf = null;
+        this.dsTypes = null;
+        this.values = 0;
+        this.scrape = scrape;
+        return this;
+    }
+
+    boolean isScrape()
+    {
+        return scrape != null;
+    }
+
+    boolean isBinary()
+    {
+        return dsTypes != null;
+    }
+
+    MetricLine value(long value)
+    {
+        if (scrape != null)
+            scrape.value(value);
+        else if (dsTypes == null)
+            CollectdEncoder.writeValue(buf, value);
+        else if (values < dsTypes.length)
+            CollectdBinaryEncoder.writeValue(buf, dsTypes[values], value);
+
+        values++;
+        return this;
+    }
+
+    MetricLine value(double value)
+    {
+        if (scrape != null)
+            scrape.value(value);
+        else if (dsTypes == null)
+            CollectdEncoder.writeValue(buf, value);
+        else if (values < dsTypes.length)
+            CollectdBinaryEncoder.writeValue(buf, dsTypes[values], value);
+
+        values++;
+        return this;
+    }
+
+    MetricLine value(Number value)
+    {
+        if (scrape != null)
+            scrape.value(value);
+        else if (dsTypes == null)
+            CollectdEncoder.writeValue(buf, value);
+        else if (values < dsTypes.length)
+            CollectdBinaryEncoder.writeValue(buf, dsTypes[values], value);
+
+        values++;
+        return this;
+    }
+
+    /**
+     * Drops the line, e.g. when its values turn out not to be reportable
+     */
+    void discard()
+    {
+        if (scrape != null)
+        {
+            scrape.discardLine();
+            scrape = null;
+            return;
+        }
+
+        buf.release();
+        buf = null;
+    }
+
+    /**
+     * @return false if the scrape left the line out
+     */
+    boolean finishScrape()
+    {
+        boolean complete = scrape.endLine();
+        scrape = null;
+        return complete;
+    }
+
+    /**
+     * @return the encoded line, or null if a binary value list doesn't match its types.db entry
+     */
+    ByteBuf finish()
+    {
+        ByteBuf line = buf;
+        buf = null;
+
+        if (dsTypes == null)
+        {
+            CollectdEncoder.endLine(line);
+            return line;
+        }
+
+        if (values != dsTypes.length)
+        {
+            line.release();
+            return null;
+        }
+
+        return line;
+    }
+}
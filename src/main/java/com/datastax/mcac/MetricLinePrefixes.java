@@ -0,0 +1,89 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+
+/**
+ * The reporting name of a metric along with the constant start of each kind of line it writes, pre-encoded
+ * as ASCII PUTVAL {@code PUTVAL <host>/mcac-<name>/<type> interval=<n> } or as the identifier parts of
+ * collectd's binary network protocol.
+ *
+ * Prefixes are built on first use and rebuilt only once the interval the metric is reported at changes,
+ * so a reporting pass only has to copy them and format the values.
+ */
+final class MetricLinePrefixes
+{
+    final String name;
+    // Sets the interval the lines declare, see ReportingTier
+    final ReportingTier tier;
+
+    // Copy on write, a metric writes at most a handful of line types
+    private volatile Prefix[] prefixes = new Prefix[0];
+
+    MetricLinePrefixes(String name, ReportingTier tier)
+    {
+        this.name = name;
+        this.tier = tier;
+    }
+
+    private static final int PLAIN_TEXT = 0;
+    private static final int BINARY = 1;
+    private static final int BINARY_FILTERED = 2;
+
+    byte[] get(String host, String type, int interval)
+    {
+        return get(host, type, interval, PLAIN_TEXT);
+    }
+
+    /**
+     * @param filtered whether the value list carries the insights filter marker, see {@link CollectdBinaryEncoder}
+     */
+    byte[] getBinary(String host, String type, int interval, boolean filtered)
+    {
+        return get(host, type, interval, filtered ? BINARY_FILTERED : BINARY);
+    }
+
+    private byte[] get(String host, String type, int interval, int kind)
+    {
+        Prefix[] current = prefixes;
+        for (Prefix prefix : current)
+        {
+            if (prefix.interval == interval && prefix.kind == kind && prefix.type.equals(type))
+                return prefix.bytes;
+        }
+
+        byte[] bytes = kind == PLAIN_TEXT
+                ? CollectdEncoder.putvalPrefix(host, name, type, interval)
+                : CollectdBinaryEncoder.valueListPrefix(host, name, type, interval, kind == BINARY_FILTERED);
+        Prefix prefix = new Prefix(type, kind, interval, bytes);
+
+        Prefix[] updated = new Prefix[current.length + 1];
+        int size = 0;
+        for (Prefix p : current)
+        {
+            // Drop the ones built for a previous interval
+            if (p.kind != kind || !p.type.equals(type))
+                updated[size++] = p;
+        }
+        updated[size++] = prefix;
+
+        // Racing writers build the same bytes, last one wins
+        prefixes = size == updated.length ? updated : Arrays.copyOf(updated, size);
+        return prefix.bytes;
+    }
+
+    private static final class Prefix
+    {
+        final String type;
+        final int kind;
+        final int interval;
+        final byte[] bytes;
+
+        Prefix(String type, int kind, int interval, byte[] bytes)
+        {
+            this.type = type;
+            this.kind = kind;
+            this.interval = interval;
+            this.bytes = bytes;
+        }
+    }
+}
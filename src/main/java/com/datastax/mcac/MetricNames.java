@@ -0,0 +1,158 @@
+package com.datastax.mcac;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Turns Cassandra metric names into the names reported to collectd, e.g.
+ * {@code org.apache.cassandra.metrics.Table.LiveSSTableCount.ks.tbl} into
+ * {@code org.apache.cassandra.metrics.table.live_ss_table_count.ks.tbl}.
+ *
+ * This used to be a chain of regex replacements, it's now two scans over the characters giving the same output:
+ * the first one maps separators, whitespace and punctuation to dots and underscores, the second one
+ * splits camelCase words.
+ *
+ * Cleaned names are cached, metrics come and go with the same names (table drops, repairs) and every
+ * filter refresh cleans all of them again.
+ */
+final class MetricNames
+{
+    static final int MAX_CACHED_NAMES = 16384;
+
+    private final LoadingCache<String, String> cleaned = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_NAMES)
+            .build(new CacheLoader<String, String>()
+            {
+                @Override
+                public String load(String name)
+                {
+                    return clean(name);
+                }
+            });
+
+    String cleanCached(String name)
+    {
+        return cleaned.getUnchecked(name);
+    }
+
+    static String clean(String name)
+    {
+        // Special case for coda hale metrics
+        if (name.startsWith("jvm"))
+            return name.replace('-', '_').toLowerCase();
+
+        char[] separated = new char[name.length()];
+        int length = separate(name, separated);
+        return splitWords(separated, length);
+    }
+
+    /**
+     * Whitespace runs, backslashes and slashes become a single _, unless the whitespace is next to a comma,
+     * anything else but letters, digits and _ becomes a single dot.
+     */
+    private static int separate(String name, char[] out)
+    {
+        int length = 0;
+        char last = 0;
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            char mapped;
+
+            if (isWhitespace(c))
+            {
+                int end = i + 1;
+                while (end < name.length() && isWhitespace(name.charAt(end)))
+                    end++;
+
+                boolean nextToComma = (i > 0 && name.charAt(i - 1) == ',') || (end < name.length() && name.charAt(end) == ',');
+                i = end - 1;
+                if (nextToComma)
+                    continue;
+
+                mapped = '_';
+            }
+            else if (c == '\\' || c == '/')
+            {
+                mapped = '_';
+            }
+            else if (isLetterOrDigit(c) || c == '_')
+            {
+                mapped = c;
+            }
+            else
+            {
+                mapped = '.';
+            }
+
+            if ((mapped == '_' || mapped == '.') && mapped == last)
+                continue;
+
+            out[length++] = mapped;
+            last = mapped;
+        }
+
+        return length;
+    }
+
+    /**
+     * camelCase to snake_case, an upper case letter starts a new word when it doesn't follow another one,
+     * or when it's followed by a lower case letter (SSTableCount is ss_table_count). Words don't start
+     * with _ after a dot.
+     */
+    private static String splitWords(char[] name, int length)
+    {
+        char[] out = new char[length * 2];
+        int outLength = 0;
+        char previous = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = name[i];
+
+            if (i > 0 && isUpperCase(c) && (!isUpperCase(name[i - 1]) || (i + 1 < length && isLowerCase(name[i + 1]))))
+            {
+                if (previous != '.' && (outLength == 0 || out[outLength - 1] != '_'))
+                    out[outLength++] = '_';
+
+                previous = '_';
+            }
+
+            if (c == '_')
+            {
+                boolean skip = previous == '.' || (outLength > 0 && out[outLength - 1] == '_');
+                previous = c;
+                if (skip)
+                    continue;
+            }
+
+            out[outLength++] = isUpperCase(c) ? (char) (c + ('a' - 'A')) : c;
+            previous = c;
+        }
+
+        return new String(out, 0, outLength);
+    }
+
+    // As \s in a regex
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isUpperCase(char c)
+    {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isLowerCase(char c)
+    {
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isLetterOrDigit(char c)
+    {
+        return isUpperCase(c) || isLowerCase(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,143 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable snapshot of the metric processors, split up front by reporting tier and filtering outcome so a
+ * pass walks plain array backed lists, see {@link UnixSocketClient#processors}.
+ *
+ * Adding, removing or re-filtering metrics builds a new snapshot which is published at once. A pass reads the
+ * snapshot once and sees every metric as it was when it started, never a filter reload half way through.
+ */
+final class MetricProcessors
+{
+    enum Filter
+    {
+        REPORTED,
+        INSIGHT_FILTERED,
+        GLOBALLY_FILTERED
+    }
+
+    static final class Entry
+    {
+        final String name;
+        final Function<String, Integer> processor;
+        // Index of the reporting tier, see ReportingTier
+        final int tier;
+        final Filter filter;
+        // Still reported while the adaptive sampling backs off, see AdaptiveSampling
+        final boolean essential;
+
+        Entry(String name, Function<String, Integer> processor, int tier, Filter filter, boolean essential)
+        {
+            this.name = name;
+            this.processor = processor;
+            this.tier = tier;
+            this.filter = filter;
+            this.essential = essential && filter != Filter.GLOBALLY_FILTERED;
+        }
+    }
+
+    // Per tier: reported, insight filtered, then the essential ones of both
+    private static final int GROUPS_PER_TIER = 4;
+
+    private final int tiers;
+    private final Map<String, Entry> entries;
+    private final List<List<Function<String, Integer>>> groups;
+    private final int[] counts = new int[Filter.values().length];
+
+    MetricProcessors(int tiers)
+    {
+        this(tiers, Collections.emptyMap());
+    }
+
+    private MetricProcessors(int tiers, Map<String, Entry> entries)
+    {
+        this.tiers = tiers;
+        this.entries = entries;
+
+        List<ImmutableList.Builder<Function<String, Integer>>> builders = new ArrayList<>(tiers * GROUPS_PER_TIER);
+        for (int i = 0; i < tiers * GROUPS_PER_TIER; i++)
+            builders.add(ImmutableList.builder());
+
+        for (Entry entry : entries.values())
+        {
+            counts[entry.filter.ordinal()]++;
+            if (entry.filter == Filter.GLOBALLY_FILTERED)
+                continue;
+
+            int group = group(entry.tier, entry.filter == Filter.INSIGHT_FILTERED, false);
+            builders.get(group).add(entry.processor);
+            if (entry.essential)
+                builders.get(group + 2).add(entry.processor);
+        }
+
+        ImmutableList.Builder<List<Function<String, Integer>>> groups = ImmutableList.builder();
+        for (ImmutableList.Builder<Function<String, Integer>> builder : builders)
+            groups.add(builder.build());
+
+        this.groups = groups.build();
+    }
+
+    private static int group(int tier, boolean insightFiltered, boolean essential)
+    {
+        return tier * GROUPS_PER_TIER + (insightFiltered ? 1 : 0) + (essential ? 2 : 0);
+    }
+
+    /**
+     * @return the processors of a tier, in the order the metrics were added
+     */
+    List<Function<String, Integer>> processors(int tier, boolean insightFiltered, boolean essential)
+    {
+        return groups.get(group(tier, insightFiltered, essential));
+    }
+
+    Entry entry(String name)
+    {
+        return entries.get(name);
+    }
+
+    int count(Filter filter)
+    {
+        return counts[filter.ordinal()];
+    }
+
+    /**
+     * @return a snapshot with a batch of metrics removed, then added or replacing the ones of the same name, with
+     * a single copy. This one if the batch is empty.
+     */
+    MetricProcessors with(Collection<String> removed, Collection<Entry> added)
+    {
+        if (removed.isEmpty() && added.isEmpty())
+            return this;
+
+        Map<String, Entry> copy = new LinkedHashMap<>(entries);
+        for (String name : removed)
+            copy.remove(name);
+
+        for (Entry entry : added)
+            copy.put(entry.name, entry);
+
+        return new MetricProcessors(tiers, copy);
+    }
+
+    /**
+     * @return a snapshot with every metric placed again, after the filtering rules changed
+     */
+    MetricProcessors replaceAll(Function<Entry, Entry> placement)
+    {
+        Map<String, Entry> copy = new LinkedHashMap<>(entries.size() * 4 / 3 + 1);
+        for (Entry entry : entries.values())
+            copy.put(entry.name, placement.apply(entry));
+
+        return new MetricProcessors(tiers, copy);
+    }
+}
@@ -0,0 +1,248 @@
+package com.datastax.mcac;
+
+import java.net.InetSocketAddress;
+import java.util.function.BiFunction;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the metrics to prometheus straight from the agent, see prometheus_exporter_enabled in
+ * metric-collector.yaml. Like collectd's write_prometheus plugin it answers GET on any path.
+ *
+ * The text format, OpenMetrics and the delimited protobuf format are served, depending on the scraper's
+ * Accept header. Unless scrapes are cached, see {@link PrometheusScrapeCache}, nothing is kept between
+ * them: each one renders the metrics on the exporter's own thread, then writes them out as a chunked response,
+ * the next chunk being encoded once the previous one is written out. Responses are gzipped when the scraper
+ * accepts it.
+ */
+final class PrometheusExporter
+{
+    private static final Logger logger = LoggerFactory.getLogger(PrometheusExporter.class);
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    /**
+     * The response to one scrape, rendered a chunk at a time
+     */
+    interface Scrape
+    {
+        /**
+         * @return the next chunk of the response, the exporter releases it
+         */
+        ByteBuf nextChunk();
+
+        boolean isComplete();
+
+        /**
+         * Releases what the scrape holds, whether it completed or not
+         */
+        void close();
+    }
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+    private final PrometheusScrapeCache cache;
+
+    private PrometheusExporter(EventLoopGroup group, Channel channel, PrometheusScrapeCache cache)
+    {
+        this.group = group;
+        this.channel = channel;
+        this.cache = cache;
+    }
+
+    /**
+     * @param scrapes starts a scrape in the given format, allocating from the given allocator
+     * @param cacheTtlMillis how long a scrape is shared with the next ones, 0 to render each one
+     */
+    static PrometheusExporter start(InetSocketAddress address, BiFunction<PrometheusScrape.Format, ByteBufAllocator, Scrape> scrapes,
+            long cacheTtlMillis)
+    {
+        // Every channel is served by the single thread of the group, which the cache relies on
+        PrometheusScrapeCache cache = cacheTtlMillis > 0 ? new PrometheusScrapeCache(scrapes, cacheTtlMillis) : null;
+        BiFunction<PrometheusScrape.Format, ByteBufAllocator, Scrape> source = cache == null ? scrapes : cache;
+        EventLoopGroup group = new NioEventLoopGroup(1, new DefaultThreadFactory("mcac-prometheus", true));
+        try
+        {
+            Channel channel = new ServerBootstrap()
+                    .group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>()
+                    {
+                        @Override
+                        protected void initChannel(SocketChannel ch)
+                        {
+                            ch.pipeline()
+                                    .addLast(new HttpServerCodec())
+                                    .addLast(new HttpContentCompressor())
+                                    .addLast(new HttpObjectAggregator(MAX_REQUEST_SIZE))
+                                    .addLast(new ScrapeHandler(source));
+                        }
+                    })
+                    .bind(address)
+                    .syncUninterruptibly()
+                    .channel();
+
+            return new PrometheusExporter(group, channel, cache);
+        }
+        catch (Throwable t)
+        {
+            group.shutdownGracefully();
+            throw t;
+        }
+    }
+
+    InetSocketAddress address()
+    {
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    void close()
+    {
+        channel.close().syncUninterruptibly();
+        if (cache != null)
+            group.submit(cache::clear).syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    private static final class ScrapeHandler extends SimpleChannelInboundHandler<FullHttpRequest>
+    {
+        private final BiFunction<PrometheusScrape.Format, ByteBufAllocator, Scrape> scrapes;
+
+        ScrapeHandler(BiFunction<PrometheusScrape.Format, ByteBufAllocator, Scrape> scrapes)
+        {
+            this.scrapes = scrapes;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request)
+        {
+            if (!request.getDecoderResult().isSuccess())
+            {
+                respond(ctx, request, HttpResponseStatus.BAD_REQUEST, Unpooled.EMPTY_BUFFER);
+                return;
+            }
+
+            if (!HttpMethod.GET.equals(request.getMethod()))
+            {
+                respond(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, Unpooled.EMPTY_BUFFER);
+                return;
+            }
+
+            PrometheusScrape.Format format = PrometheusScrape.Format.negotiate(request.headers().get(HttpHeaders.Names.ACCEPT));
+            Scrape scrape;
+            try
+            {
+                scrape = scrapes.apply(format, ctx.alloc());
+            }
+            catch (Throwable t)
+            {
+                logger.warn("Error rendering the prometheus metrics", t);
+                respond(ctx, request, HttpResponseStatus.INTERNAL_SERVER_ERROR, Unpooled.EMPTY_BUFFER);
+                return;
+            }
+
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, format.contentType);
+            HttpHeaders.setTransferEncodingChunked(response);
+
+            boolean keepAlive = HttpHeaders.isKeepAlive(request);
+            HttpHeaders.setKeepAlive(response, keepAlive);
+
+            ctx.write(response);
+            writeChunks(ctx, scrape, keepAlive);
+        }
+
+        /**
+         * Writes the next chunk of the scrape, and the one after once it's written out, so a single chunk is
+         * held at a time. Once the headers are out an error can only cut the response short.
+         */
+        private static void writeChunks(ChannelHandlerContext ctx, Scrape scrape, boolean keepAlive)
+        {
+            ByteBuf chunk;
+            try
+            {
+                chunk = scrape.nextChunk();
+            }
+            catch (Throwable t)
+            {
+                logger.warn("Error rendering the prometheus metrics", t);
+                scrape.close();
+                ctx.close();
+                return;
+            }
+
+            if (scrape.isComplete())
+            {
+                scrape.close();
+                if (keepAlive)
+                    ctx.writeAndFlush(new DefaultLastHttpContent(chunk));
+                else
+                    ctx.writeAndFlush(new DefaultLastHttpContent(chunk)).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+
+            ctx.writeAndFlush(new DefaultHttpContent(chunk)).addListener((ChannelFutureListener) future -> {
+                if (future.isSuccess())
+                {
+                    writeChunks(ctx, scrape, keepAlive);
+                }
+                else
+                {
+                    logger.debug("Error serving a prometheus scrape", future.cause());
+                    scrape.close();
+                    ctx.close();
+                }
+            });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            logger.debug("Error serving a prometheus scrape", cause);
+            ctx.close();
+        }
+
+        private static void respond(ChannelHandlerContext ctx, FullHttpRequest request, HttpResponseStatus status, ByteBuf content)
+        {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, PrometheusScrape.Format.TEXT.contentType);
+            HttpHeaders.setContentLength(response, content.readableBytes());
+
+            boolean keepAlive = HttpHeaders.isKeepAlive(request);
+            HttpHeaders.setKeepAlive(response, keepAlive);
+
+            if (keepAlive)
+                ctx.writeAndFlush(response);
+            else
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package com.datastax.mcac;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * One scrape of the embedded prometheus endpoint, see {@link PrometheusExporter}.
+ *
+ * The metric processors write their lines as they would for collectd, and each line is rendered as the series
+ * collectd's write_prometheus plugin exposes for it, so the relabeling of dashboards/prometheus applies as is:
+ * one series per data source, named {@code collectd_mcac_<type>[_<ds>][_total]}, with the cluster, dc,
+ * instance, mcac (the metric name), rack and type (the type instance) labels. Counter and derive values are
+ * read as integers, as collectd parses them.
+ *
+ * The series of each family go to their own buffer as the lines are written, in whatever order the metrics
+ * come. Once every line is in, {@link #flush} writes the families out a chunk of the response at a time. Each
+ * family is written once, its HELP and TYPE lines or its MetricFamily message followed by all of its series,
+ * as the exposition formats require, so the whole scrape is held in memory until it is written out.
+ *
+ * A line whose number of values doesn't match its types.db entry is left out, collectd would reject it.
+ *
+ * Not thread safe, a scrape is rendered by a single thread.
+ */
+final class PrometheusScrape
+{
+    /**
+     * The exposition formats, picked from the scraper's Accept header
+     */
+    enum Format
+    {
+        TEXT("text/plain; version=0.0.4; charset=utf-8"),
+        OPENMETRICS("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+        PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited");
+
+        final String contentType;
+
+        Format(String contentType)
+        {
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return the supported format with the highest quality in the Accept header, the first listed one on ties,
+         * or the text format
+         */
+        static Format negotiate(String accept)
+        {
+            if (accept == null)
+                return TEXT;
+
+            Format best = TEXT;
+            double bestQuality = -1;
+            for (String range : accept.split(","))
+            {
+                String[] params = range.split(";");
+                Format format = null;
+                String mediaType = params[0].trim().toLowerCase();
+                if (mediaType.equals("application/vnd.google.protobuf"))
+                    format = PROTOBUF;
+                else if (mediaType.equals("application/openmetrics-text"))
+                    format = OPENMETRICS;
+                else if (mediaType.equals("text/plain") || mediaType.equals("*/*") || mediaType.equals("text/*"))
+                    format = TEXT;
+
+                double quality = 1;
+                for (int i = 1; i < params.length; i++)
+                {
+                    String[] param = params[i].trim().split("=", 2);
+                    if (param.length != 2)
+                        continue;
+
+                    String name = param[0].trim().toLowerCase();
+                    String value = param[1].trim();
+                    if (name.equals("q"))
+                    {
+                        try
+                        {
+                            quality = Double.parseDouble(value);
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            quality = 0;
+                        }
+                    }
+                    // Only the delimited MetricFamily messages
+                    else if (format == PROTOBUF && ((name.equals("proto") && !value.equals("io.prometheus.client.MetricFamily"))
+                            || (name.equals("encoding") && !value.equals("delimited"))))
+                    {
+                        format = null;
+                    }
+                }
+
+                if (format != null && quality > 0 && quality > bestQuality)
+                {
+                    best = format;
+                    bestQuality = quality;
+                }
+            }
+
+            return best;
+        }
+    }
+
+    private static final String PLUGIN = "mcac";
+    private static final String TOTAL = "_total";
+    private static final byte[] EOF = ascii("# EOF\n");
+    private static final byte[] NAN = ascii("NaN");
+    private static final byte[] POSITIVE_INFINITY = ascii("+Inf");
+    private static final byte[] NEGATIVE_INFINITY = ascii("-Inf");
+
+    // The protobuf fields written, see prometheus' metrics.proto
+    private static final int FAMILY_NAME = 1 << 3 | 2;
+    private static final int FAMILY_HELP = 2 << 3 | 2;
+    private static final int FAMILY_TYPE = 3 << 3;
+    private static final int FAMILY_METRIC = 4 << 3 | 2;
+    private static final int METRIC_LABEL = 1 << 3 | 2;
+    private static final int METRIC_GAUGE = 2 << 3 | 2;
+    private static final int METRIC_COUNTER = 3 << 3 | 2;
+    private static final int LABEL_NAME = 1 << 3 | 2;
+    private static final int LABEL_VALUE = 2 << 3 | 2;
+    private static final int VALUE = 1 << 3 | 1;
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    // The value field of a Gauge or Counter message: tag, length, tag and a fixed64 double
+    private static final int VALUE_SIZE = 11;
+
+    private final CollectdTypes types;
+    private final Format format;
+    private final ByteBufAllocator allocator;
+    private final String cluster;
+    private final String dataCenter;
+    private final String host;
+    private final String rack;
+
+    // The families of each type, in the order of the type's data sources
+    private final Map<String, Family[]> familiesByType = new HashMap<>();
+    private final List<Family> families = new ArrayList<>();
+
+    // The line being written, its labels are encoded once for all of its series
+    private final ByteBuf lineLabels;
+    private Family[] lineFamilies;
+    private int[] lineStarts = new int[32];
+    private int lineValues;
+
+    // The families written out, and whether the next one is partly written
+    private int flushed;
+    private boolean flushing;
+
+    PrometheusScrape(CollectdTypes types, Format format, ByteBufAllocator allocator, String host, String cluster,
+            String dataCenter, String rack)
+    {
+        this.types = types;
+        this.format = format;
+        this.allocator = allocator;
+        this.host = host;
+        this.cluster = cluster;
+        this.dataCenter = dataCenter;
+        this.rack = rack;
+        this.lineLabels = allocator.heapBuffer(256);
+    }
+
+    /**
+     * @param type the type, optionally followed by -type_instance
+     */
+    PrometheusScrape startLine(String name, String type)
+    {
+        int dash = type.indexOf('-');
+        String typeName = dash < 0 ? type : type.substring(0, dash);
+
+        lineValues = 0;
+        lineFamilies = familiesByType.get(typeName);
+        if (lineFamilies == null)
+            lineFamilies = createFamilies(typeName);
+
+        if (lineFamilies == null)
+            return this;
+
+        if (lineStarts.length < lineFamilies.length)
+            lineStarts = new int[lineFamilies.length];
+        for (int i = 0; i < lineFamilies.length; i++)
+            lineStarts[i] = lineFamilies[i].samples.writerIndex();
+
+        // Sorted by name, as write_prometheus has them
+        lineLabels.clear();
+        String typeInstance = dash < 0 ? null : type.substring(dash + 1);
+        if (format == Format.PROTOBUF)
+        {
+            writeLabelPair(lineLabels, "cluster", cluster);
+            writeLabelPair(lineLabels, "dc", dataCenter);
+            writeLabelPair(lineLabels, "instance", host);
+            writeLabelPair(lineLabels, PLUGIN, name);
+            writeLabelPair(lineLabels, "rack", rack);
+            if (typeInstance != null)
+                writeLabelPair(lineLabels, "type", typeInstance);
+        }
+        else
+        {
+            lineLabels.writeByte('{');
+            writeLabel(lineLabels, "cluster", cluster);
+            lineLabels.writeByte(',');
+            writeLabel(lineLabels, "dc", dataCenter);
+            lineLabels.writeByte(',');
+            writeLabel(lineLabels, "instance", host);
+            lineLabels.writeByte(',');
+            writeLabel(lineLabels, PLUGIN, name);
+            lineLabels.writeByte(',');
+            writeLabel(lineLabels, "rack", rack);
+            if (typeInstance != null)
+            {
+                lineLabels.writeByte(',');
+                writeLabel(lineLabels, "type", typeInstance);
+            }
+            lineLabels.writeByte('}');
+            lineLabels.writeByte(' ');
+        }
+
+        return this;
+    }
+
+    void value(long value)
+    {
+        Family family = nextFamily();
+        if (family == null)
+            return;
+
+        if (format == Format.PROTOBUF)
+        {
+            writeMetric(family, value);
+            return;
+        }
+
+        startSample(family);
+        CollectdEncoder.writeLong(family.samples, value);
+        family.samples.writeByte('\n');
+    }
+
+    void value(double value)
+    {
+        Family family = nextFamily();
+        if (family == null)
+            return;
+
+        if (!family.gauge)
+        {
+            if (format == Format.PROTOBUF)
+            {
+                writeMetric(family, (long) value);
+            }
+            else
+            {
+                startSample(family);
+                CollectdEncoder.writeLong(family.samples, (long) value);
+                family.samples.writeByte('\n');
+            }
+            return;
+        }
+
+        if (format == Format.PROTOBUF)
+        {
+            writeMetric(family, value);
+            return;
+        }
+
+        ByteBuf samples = startSample(family);
+        if (Double.isNaN(value))
+            samples.writeBytes(NAN);
+        else if (Double.isInfinite(value))
+            samples.writeBytes(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+        else
+            CollectdEncoder.writeDouble(samples, value);
+        samples.writeByte('\n');
+    }
+
+    void value(Number value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            value(value.longValue());
+        else
+            value(value.doubleValue());
+    }
+
+    /**
+     * @return false if the line was left out, for an unknown type or the wrong number of values
+     */
+    boolean endLine()
+    {
+        if (lineFamilies == null || lineValues != lineFamilies.length)
+        {
+            discardLine();
+            return false;
+        }
+
+        lineFamilies = null;
+        return true;
+    }
+
+    void discardLine()
+    {
+        if (lineFamilies != null)
+        {
+            for (int i = 0; i < lineFamilies.length; i++)
+                lineFamilies[i].samples.writerIndex(lineStarts[i]);
+        }
+
+        lineFamilies = null;
+    }
+
+    /**
+     * Writes out the next chunk of the families, once every line is written. A family too large for the chunk
+     * goes on in the next one.
+     *
+     * @param chunkSize the size the chunk is filled up to
+     * @return the chunk, the caller owns the buffer
+     */
+    ByteBuf flush(int chunkSize)
+    {
+        int remaining = EOF.length;
+        for (int i = flushed; i < families.size(); i++)
+            remaining += families.get(i).samples.readableBytes() + families.get(i).header.length + 5;
+
+        ByteBuf chunk = allocator.buffer(Math.min(remaining, chunkSize + 256));
+        while (flushed < families.size() && chunk.readableBytes() < chunkSize)
+        {
+            Family family = families.get(flushed);
+            ByteBuf samples = family.samples;
+            if (!flushing)
+            {
+                if (!samples.isReadable())
+                {
+                    flushed++;
+                    continue;
+                }
+
+                if (format == Format.PROTOBUF)
+                    writeVarint(chunk, family.header.length + samples.readableBytes());
+
+                chunk.writeBytes(family.header);
+                flushing = true;
+            }
+
+            chunk.writeBytes(samples, Math.min(samples.readableBytes(), Math.max(0, chunkSize - chunk.readableBytes())));
+            if (!samples.isReadable())
+            {
+                flushed++;
+                flushing = false;
+            }
+        }
+
+        if (isFlushed() && format == Format.OPENMETRICS)
+            chunk.writeBytes(EOF);
+
+        return chunk;
+    }
+
+    /**
+     * @return whether the last chunk was written out
+     */
+    boolean isFlushed()
+    {
+        return flushed == families.size();
+    }
+
+    /**
+     * Releases the scrape's buffers
+     */
+    void release()
+    {
+        for (Family family : families)
+            family.samples.release();
+
+        families.clear();
+        familiesByType.clear();
+        lineLabels.release();
+    }
+
+    private Family nextFamily()
+    {
+        if (lineFamilies == null || lineValues >= lineFamilies.length)
+        {
+            lineValues++;
+            return null;
+        }
+
+        return lineFamilies[lineValues++];
+    }
+
+    private ByteBuf startSample(Family family)
+    {
+        ByteBuf samples = family.samples;
+        samples.writeBytes(family.name);
+        samples.writeBytes(lineLabels, lineLabels.readerIndex(), lineLabels.readableBytes());
+        return samples;
+    }
+
+    private void writeMetric(Family family, double value)
+    {
+        ByteBuf samples = family.samples;
+        samples.writeByte(FAMILY_METRIC);
+        writeVarint(samples, lineLabels.readableBytes() + VALUE_SIZE);
+        samples.writeBytes(lineLabels, lineLabels.readerIndex(), lineLabels.readableBytes());
+        samples.writeByte(family.gauge ? METRIC_GAUGE : METRIC_COUNTER);
+        samples.writeByte(VALUE_SIZE - 2);
+        samples.writeByte(VALUE);
+        samples.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(value)));
+    }
+
+    private Family[] createFamilies(String type)
+    {
+        byte[] dsTypes = types.get(type);
+        String[] dsNames = types.names(type);
+        if (dsTypes == null || dsNames == null)
+            return null;
+
+        Family[] created = new Family[dsTypes.length];
+        for (int i = 0; i < created.length; i++)
+        {
+            created[i] = new Family(type, dsNames[i], dsTypes[i], format, allocator);
+            families.add(created[i]);
+        }
+
+        familiesByType.put(type, created);
+        return created;
+    }
+
+    private static void writeLabel(ByteBuf buf, String name, String value)
+    {
+        CollectdEncoder.writeAscii(buf, name);
+        buf.writeByte('=');
+        buf.writeByte('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+            {
+                buf.writeByte('\\');
+                buf.writeByte(c);
+            }
+            else if (c == '\n')
+            {
+                buf.writeByte('\\');
+                buf.writeByte('n');
+            }
+            else
+            {
+                buf.writeByte(c < 128 ? c : '?');
+            }
+        }
+        buf.writeByte('"');
+    }
+
+    private static void writeLabelPair(ByteBuf buf, String name, String value)
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+
+        buf.writeByte(METRIC_LABEL);
+        writeVarint(buf, 1 + varintSize(nameBytes.length) + nameBytes.length + 1 + varintSize(valueBytes.length) + valueBytes.length);
+        writeBytesField(buf, LABEL_NAME, nameBytes);
+        writeBytesField(buf, LABEL_VALUE, valueBytes);
+    }
+
+    private static void writeBytesField(ByteBuf buf, int tag, byte[] bytes)
+    {
+        buf.writeByte(tag);
+        writeVarint(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static void writeVarint(ByteBuf buf, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static int varintSize(int value)
+    {
+        int size = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static byte[] ascii(String s)
+    {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The series of one data source of one type
+     */
+    private static final class Family
+    {
+        // The name of the series, with the _total suffix of counters
+        final byte[] name;
+        final boolean gauge;
+        // The HELP and TYPE lines, or the fields of the MetricFamily message before its metrics
+        final byte[] header;
+        final ByteBuf samples;
+
+        Family(String type, String dsName, byte dsType, Format format, ByteBufAllocator allocator)
+        {
+            StringBuilder name = new StringBuilder("collectd");
+            if (!PLUGIN.equals(type))
+                name.append('_').append(PLUGIN);
+            name.append('_').append(type);
+            if (!"value".equals(dsName))
+                name.append('_').append(dsName);
+            if (dsType == CollectdBinaryEncoder.DS_COUNTER || dsType == CollectdBinaryEncoder.DS_DERIVE)
+                name.append(TOTAL);
+
+            this.name = ascii(name.toString());
+            this.gauge = dsType == CollectdBinaryEncoder.DS_GAUGE;
+
+            // As write_prometheus describes its families
+            String help = "write_prometheus plugin: '" + PLUGIN + "' Type: '" + type
+                    + "', Dstype: '" + CollectdBinaryEncoder.dsTypeName(dsType).toLowerCase()
+                    + "', Dsname: '" + dsName + "'";
+
+            switch (format)
+            {
+                case PROTOBUF:
+                    ByteBuf header = allocator.heapBuffer();
+                    try
+                    {
+                        writeBytesField(header, FAMILY_NAME, this.name);
+                        writeBytesField(header, FAMILY_HELP, help.getBytes(StandardCharsets.UTF_8));
+                        header.writeByte(FAMILY_TYPE);
+                        writeVarint(header, gauge ? TYPE_GAUGE : TYPE_COUNTER);
+                        this.header = new byte[header.readableBytes()];
+                        header.readBytes(this.header);
+                    }
+                    finally
+                    {
+                        header.release();
+                    }
+                    break;
+                case OPENMETRICS:
+                    // The family of a counter is named without the suffix of its series
+                    String family = gauge || name.length() < TOTAL.length() ? name.toString() : name.substring(0, name.length() - TOTAL.length());
+                    this.header = ascii("# HELP " + family + " " + help + "\n"
+                            + "# TYPE " + family + (gauge ? " gauge" : " counter") + "\n");
+                    break;
+                default:
+                    this.header = ascii("# HELP " + name + " " + help + "\n"
+                            + "# TYPE " + name + (gauge ? " gauge" : " counter") + "\n");
+            }
+
+            this.samples = allocator.buffer(1024);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Shares the rendered chunks of a scrape with the scrapes of the same format that start within the
+ * time-to-live of the first one, see prometheus_exporter_cache_ttl_in_ms in metric-collector.yaml. A scrape
+ * that starts while another one is still being rendered joins it: the chunks rendered so far are replayed,
+ * then whichever of them gets further renders the next one. The snapshots are read once however many
+ * scrapers there are, at the cost of holding the whole encoded scrape until it expires. If rendering fails,
+ * every scrape reading it fails on its next chunk and the next scrape starts over.
+ *
+ * Not thread safe, only used from the exporter's thread, see {@link PrometheusExporter}.
+ */
+final class PrometheusScrapeCache implements BiFunction<PrometheusScrape.Format, ByteBufAllocator, PrometheusExporter.Scrape>
+{
+    private final BiFunction<PrometheusScrape.Format, ByteBufAllocator, PrometheusExporter.Scrape> scrapes;
+    private final long ttlNanos;
+    private final Map<PrometheusScrape.Format, SharedScrape> shared = new EnumMap<>(PrometheusScrape.Format.class);
+
+    PrometheusScrapeCache(BiFunction<PrometheusScrape.Format, ByteBufAllocator, PrometheusExporter.Scrape> scrapes, long ttlMillis)
+    {
+        this.scrapes = scrapes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    @Override
+    public PrometheusExporter.Scrape apply(PrometheusScrape.Format format, ByteBufAllocator allocator)
+    {
+        long now = System.nanoTime();
+        SharedScrape current = shared.get(format);
+        // One still being rendered is joined however old it is
+        if (current == null || (current.complete && now - current.started > ttlNanos))
+        {
+            if (current != null)
+                current.retire();
+
+            current = new SharedScrape(format, scrapes.apply(format, allocator), now);
+            shared.put(format, current);
+        }
+
+        return current.read();
+    }
+
+    /**
+     * Releases the cached scrapes, the ones still being read are released once they are
+     */
+    void clear()
+    {
+        for (SharedScrape scrape : new ArrayList<>(shared.values()))
+            scrape.retire();
+        shared.clear();
+    }
+
+    private final class SharedScrape
+    {
+        private final PrometheusScrape.Format format;
+        private final PrometheusExporter.Scrape source;
+        private final long started;
+        private final List<ByteBuf> chunks = new ArrayList<>();
+        private boolean complete;
+        private boolean failed;
+        private boolean sourceClosed;
+        private boolean retired;
+        private int readers;
+
+        SharedScrape(PrometheusScrape.Format format, PrometheusExporter.Scrape source, long started)
+        {
+            this.format = format;
+            this.source = source;
+            this.started = started;
+        }
+
+        PrometheusExporter.Scrape read()
+        {
+            readers++;
+            return new PrometheusExporter.Scrape()
+            {
+                int next;
+                boolean closed;
+
+                @Override
+                public ByteBuf nextChunk()
+                {
+                    // Cut short rather than replaying a response that can't be finished
+                    if (failed)
+                        throw new IllegalStateException("The shared prometheus scrape failed");
+
+                    if (next == chunks.size())
+                        renderChunk();
+
+                    // The cache keeps its own reference
+                    return chunks.get(next++).duplicate().retain();
+                }
+
+                @Override
+                public boolean isComplete()
+                {
+                    return complete && next == chunks.size();
+                }
+
+                @Override
+                public void close()
+                {
+                    if (closed)
+                        return;
+
+                    closed = true;
+                    readers--;
+                    releaseIfUnused();
+                }
+            };
+        }
+
+        private void renderChunk()
+        {
+            if (sourceClosed)
+                throw new IllegalStateException("The shared prometheus scrape is over");
+
+            try
+            {
+                chunks.add(source.nextChunk());
+                if (source.isComplete())
+                {
+                    complete = true;
+                    closeSource();
+                }
+            }
+            catch (Throwable t)
+            {
+                // The source isn't called again, the readers get cut short and the next scrape starts over
+                failed = true;
+                closeSource();
+                retire();
+                throw t;
+            }
+        }
+
+        void retire()
+        {
+            retired = true;
+            if (shared.get(format) == this)
+                shared.remove(format);
+
+            releaseIfUnused();
+        }
+
+        /**
+         * Releases the chunks once no one reads them, unless they are there for the next scrapes
+         */
+        private void releaseIfUnused()
+        {
+            if (readers > 0 || (complete && !retired))
+                return;
+
+            for (ByteBuf chunk : chunks)
+                chunk.release();
+            chunks.clear();
+            closeSource();
+
+            retired = true;
+            if (shared.get(format) == this)
+                shared.remove(format);
+        }
+
+        private void closeSource()
+        {
+            if (sourceClosed)
+                return;
+
+            sourceClosed = true;
+            source.close();
+        }
+    }
+}
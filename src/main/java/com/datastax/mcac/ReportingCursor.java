@@ -0,0 +1,103 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A single threaded reporting pass which can stop part way through, when the channel to collectd
+ * is no longer writable, and carry on from the same metric once it has drained.
+ *
+ * With the spread schedule the pass is also cut into slices written over the interval, see
+ * metric_reporting_schedule.
+ */
+final class ReportingCursor
+{
+    final long startNanos = System.nanoTime();
+
+    private final List<Function<String, Integer>> processors;
+    private final int filteredFrom;
+    private final String metricTags;
+    private final String filteredTags;
+    private int position = 0;
+    // Where the current slice ends
+    private int limit;
+    private boolean sliced = false;
+
+    // A flush can trigger channelWritabilityChanged, which must not re-enter the pass
+    boolean running = false;
+    // Time spent writing the slices
+    long busyNanos = 0;
+    // Only the essential metrics, while the adaptive sampling backs off
+    boolean essential = false;
+
+    ReportingCursor(
+            Collection<Function<String, Integer>> metrics,
+            String metricTags,
+            Collection<Function<String, Integer>> insightFiltered,
+            String insightFilteredTags)
+    {
+        this.processors = new ArrayList<>(metrics.size() + insightFiltered.size());
+        this.processors.addAll(metrics);
+        this.filteredFrom = processors.size();
+        this.processors.addAll(insightFiltered);
+        this.metricTags = metricTags;
+        this.filteredTags = insightFilteredTags;
+        this.limit = processors.size();
+    }
+
+    boolean isDone()
+    {
+        return position >= processors.size();
+    }
+
+    /**
+     * @return true once the pass is done or at the end of the current slice
+     */
+    boolean isPaused()
+    {
+        return position >= limit;
+    }
+
+    /**
+     * Lets the pass go on up to the end of the given slice, out of the given number of equal slices
+     */
+    void limitTo(int slice, int slices)
+    {
+        sliced = true;
+        limit = (int) (((long) processors.size() * (slice + 1) + slices - 1) / slices);
+    }
+
+    /**
+     * @return the time the pass took, only counting the time spent writing if it was sliced
+     */
+    long elapsedNanos()
+    {
+        return sliced ? busyNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * The tags to apply the next processor with
+     */
+    String tags()
+    {
+        return position < filteredFrom ? metricTags : filteredTags;
+    }
+
+    Function<String, Integer> next()
+    {
+        return processors.get(position++);
+    }
+
+    /**
+     * @return the number of metrics which won't be written
+     */
+    int abandon()
+    {
+        int remaining = processors.size() - position;
+        position = processors.size();
+        limit = position;
+        return remaining;
+    }
+}
@@ -0,0 +1,102 @@
+package com.datastax.mcac;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How often the metrics matching a pattern are reported, see {@link ReportingTier}.
+ *
+ * Works like the filtering rules, the last rule matching the metric name wins.
+ */
+public class ReportingIntervalRule
+{
+    @JsonProperty("pattern")
+    public final String pattern;
+
+    @JsonProperty("interval_in_seconds")
+    public final Integer interval_in_seconds;
+
+    @JsonIgnore
+    private Pattern patternRegex;
+
+    public ReportingIntervalRule()
+    {
+        this.pattern = null;
+        this.interval_in_seconds = null;
+    }
+
+    public ReportingIntervalRule(@JsonProperty("pattern") String pattern, @JsonProperty("interval_in_seconds") Integer intervalInSeconds)
+    {
+        this.pattern = pattern;
+        this.interval_in_seconds = intervalInSeconds;
+
+        init();
+    }
+
+    public void init()
+    {
+        if (pattern == null || interval_in_seconds == null)
+            throw new IllegalArgumentException("Reporting interval rule not properly initialized");
+
+        if (interval_in_seconds < 1)
+            throw new IllegalArgumentException("Reporting intervals must be at least 1 second: " + interval_in_seconds);
+
+        try
+        {
+            this.patternRegex = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+        }
+        catch (PatternSyntaxException e)
+        {
+            throw new IllegalArgumentException("Invalid pattern: " + pattern, e);
+        }
+    }
+
+    public boolean matches(String name)
+    {
+        return patternRegex.matcher(name).find();
+    }
+
+    /**
+     * @return the interval of the last rule matching the name, or null for metric_sampling_interval_in_seconds
+     */
+    static Integer applyRules(String name, List<ReportingIntervalRule> rules)
+    {
+        for (int i = rules.size() - 1; i >= 0; i--)
+        {
+            if (rules.get(i).matches(name))
+                return rules.get(i).interval_in_seconds;
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ReportingIntervalRule rule = (ReportingIntervalRule) o;
+        return Objects.equals(pattern, rule.pattern) &&
+                Objects.equals(interval_in_seconds, rule.interval_in_seconds);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(pattern, interval_in_seconds);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReportingIntervalRule{" +
+                "pattern='" + pattern + '\'' +
+                ", interval_in_seconds=" + interval_in_seconds +
+                '}';
+    }
+}
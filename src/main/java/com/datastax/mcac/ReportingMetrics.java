@@ -0,0 +1,95 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * The agent's own cost of reporting. These live in {@link UnixSocketClient#agentAddedMetricsRegistry}
+ * so they are shipped to collectd like any other metric and can be used to size the sampling
+ * interval and filtering rules of a cluster.
+ */
+final class ReportingMetrics
+{
+    private static final String PREFIX = "com.datastax.mcac.reporting.";
+
+    // Time taken by a whole reporting interval, from the first snapshot to the last line handed to the channel
+    final Timer pass;
+    final Meter linesWritten;
+    final Meter bytesWritten;
+    final Counter flushes;
+
+    // Lines lost because the event loop refused the write, or because there was no connection to collectd
+    final Counter rejectedDrops;
+    final Counter disconnectedDrops;
+
+    // With backpressure enabled: how often a pass had to wait on collectd, and the metrics it gave up on
+    final Counter backpressurePauses;
+    final Counter backpressureDrops;
+
+    // Metrics of the shards the reporting workers or the event loop refused, as the reporting was restarted or stopped
+    final Counter shardDrops;
+
+    // With adaptive sampling enabled: passes that only reported the essential metrics, or nothing, as the node was busy
+    final Counter adaptiveBackoffs;
+
+    // With delta reporting enabled: gauge and counter lines left out because their value didn't change
+    final Counter deltaSkipped;
+
+    // Cumulative time spent snapshotting and encoding each type of metric
+    final Counter gaugeNanos;
+    final Counter counterNanos;
+    final Counter histogramNanos;
+    final Counter meterNanos;
+    final Counter timerNanos;
+
+    ReportingMetrics(MetricRegistry registry, AtomicLong successResponses, AtomicLong errorResponses)
+    {
+        pass = registry.timer(PREFIX + "pass");
+        linesWritten = registry.meter(PREFIX + "lines_written");
+        bytesWritten = registry.meter(PREFIX + "bytes_written");
+        flushes = registry.counter(PREFIX + "flushes");
+        rejectedDrops = registry.counter(PREFIX + "rejected_drops");
+        disconnectedDrops = registry.counter(PREFIX + "disconnected_drops");
+        backpressurePauses = registry.counter(PREFIX + "backpressure_pauses");
+        backpressureDrops = registry.counter(PREFIX + "backpressure_dropped_metrics");
+        shardDrops = registry.counter(PREFIX + "shard_dropped_metrics");
+        adaptiveBackoffs = registry.counter(PREFIX + "adaptive_backoff_passes");
+        deltaSkipped = registry.counter(PREFIX + "delta_skipped_lines");
+        gaugeNanos = registry.counter(PREFIX + "gauge_write_nanos");
+        counterNanos = registry.counter(PREFIX + "counter_write_nanos");
+        histogramNanos = registry.counter(PREFIX + "histogram_write_nanos");
+        meterNanos = registry.counter(PREFIX + "meter_write_nanos");
+        timerNanos = registry.counter(PREFIX + "timer_write_nanos");
+
+        // Bound to this client's counters, replace any left over by a previous one
+        register(registry, PREFIX + "collectd_success_responses", (Gauge<Long>) successResponses::get);
+        register(registry, PREFIX + "collectd_error_responses", (Gauge<Long>) errorResponses::get);
+    }
+
+    private static void register(MetricRegistry registry, String name, Gauge<Long> gauge)
+    {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    static Function<String, Integer> timed(Counter nanos, Function<String, Integer> writer)
+    {
+        return (tags) -> {
+            long start = System.nanoTime();
+            try
+            {
+                return writer.apply(tags);
+            }
+            finally
+            {
+                nanos.inc(System.nanoTime() - start);
+            }
+        };
+    }
+}
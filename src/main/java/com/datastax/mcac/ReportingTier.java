@@ -0,0 +1,49 @@
+package com.datastax.mcac;
+
+/**
+ * The metrics reported at the same interval, see {@link ReportingIntervalRule}. Each tier has its own
+ * processors in {@link MetricProcessors} so a pass only visits the tiers due on it.
+ *
+ * The base tier holds the metrics reported every metric_sampling_interval_in_seconds. Other intervals are
+ * rounded to a multiple of it, the tier is then reported on every n-th pass. Intervals below it are clamped
+ * to it.
+ */
+final class ReportingTier
+{
+    final int index;
+    // null for the base tier
+    final Integer intervalInSeconds;
+
+    ReportingTier(int index, Integer intervalInSeconds)
+    {
+        this.index = index;
+        this.intervalInSeconds = intervalInSeconds;
+    }
+
+    /**
+     * @return every how many passes the tier is reported
+     */
+    int passes(int samplingIntervalInSeconds)
+    {
+        if (intervalInSeconds == null)
+            return 1;
+
+        return Math.max(1, Math.round((float) intervalInSeconds / samplingIntervalInSeconds));
+    }
+
+    /**
+     * @param backoff every how many passes all the metrics are reported, see {@link AdaptiveSampling}
+     * @return the interval the tier's lines declare to collectd, the longest it can go without a report, so it
+     * doesn't expire the metrics in between
+     */
+    int reportedIntervalInSeconds(int samplingIntervalInSeconds, int backoff)
+    {
+        int passes = passes(samplingIntervalInSeconds);
+        return samplingIntervalInSeconds * ((passes + backoff - 1) / backoff) * backoff;
+    }
+
+    boolean isDue(long pass, int samplingIntervalInSeconds)
+    {
+        return pass % passes(samplingIntervalInSeconds) == 0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * A single reporting interval spread over the reporting workers.
+ *
+ * The metric processors are split into shards which are snapshotted concurrently. The lines of each shard
+ * are held back and handed to the channels in shard order, so collectd sees the same stream a single
+ * threaded pass would have written on each connection.
+ */
+final class ShardedReportingPass
+{
+    // Below this it's cheaper to let one thread do the work
+    private static final int MIN_SHARD_SIZE = 64;
+    // More shards than threads so a slow shard (big histograms) doesn't hold up a whole worker's share
+    private static final int SHARDS_PER_THREAD = 4;
+
+    static final class Shard
+    {
+        final String tags;
+        final List<Function<String, Integer>> processors;
+        final List<Object> lines = new ArrayList<>();
+        // The connection each line goes to
+        private int[] stripes = new int[16];
+        private volatile boolean done;
+
+        // Lines already handed to the channel, only accessed from the event loop
+        int written = 0;
+
+        private Shard(String tags, List<Function<String, Integer>> processors)
+        {
+            this.tags = tags;
+            this.processors = processors;
+        }
+
+        void add(Object line, int stripe)
+        {
+            if (lines.size() == stripes.length)
+                stripes = Arrays.copyOf(stripes, stripes.length * 2);
+
+            stripes[lines.size()] = stripe;
+            lines.add(line);
+        }
+
+        int stripe(int line)
+        {
+            return stripes[line];
+        }
+
+        void complete()
+        {
+            done = true;
+        }
+
+        /**
+         * Releases the lines not written yet, once the event loop won't take them any more
+         */
+        void release()
+        {
+            for (int i = written; i < lines.size(); i++)
+                ReferenceCountUtil.release(lines.get(i));
+
+            lines.clear();
+        }
+    }
+
+    final List<Shard> shards = new ArrayList<>();
+    final long startNanos = System.nanoTime();
+
+    // Set once collectd fell behind and the next interval gave up on this pass
+    volatile boolean abandoned = false;
+
+    // Only the essential metrics, while the adaptive sampling backs off
+    boolean essential = false;
+
+    // Only accessed from the event loop
+    private int next = 0;
+    boolean running = false;
+
+    ShardedReportingPass(
+            Collection<Function<String, Integer>> metrics,
+            String metricTags,
+            Collection<Function<String, Integer>> insightFiltered,
+            String insightFilteredTags,
+            int threads)
+    {
+        int total = metrics.size() + insightFiltered.size();
+        int shardSize = Math.max(MIN_SHARD_SIZE, (total + threads * SHARDS_PER_THREAD - 1) / (threads * SHARDS_PER_THREAD));
+
+        split(metrics, metricTags, shardSize);
+        split(insightFiltered, insightFilteredTags, shardSize);
+    }
+
+    private void split(Collection<Function<String, Integer>> group, String tags, int shardSize)
+    {
+        List<Function<String, Integer>> processors = new ArrayList<>(shardSize);
+        for (Function<String, Integer> processor : group)
+        {
+            processors.add(processor);
+            if (processors.size() == shardSize)
+            {
+                shards.add(new Shard(tags, processors));
+                processors = new ArrayList<>(shardSize);
+            }
+        }
+
+        if (!processors.isEmpty())
+            shards.add(new Shard(tags, processors));
+    }
+
+    /**
+     * @return the next shard in order if it has been snapshotted, null otherwise
+     */
+    Shard peek()
+    {
+        if (next < shards.size() && shards.get(next).done)
+            return shards.get(next);
+
+        return null;
+    }
+
+    /**
+     * Moves past the shard returned by {@link #peek()} once all its lines are written
+     */
+    void advance()
+    {
+        next++;
+    }
+
+    /**
+     * @return the number of metrics which won't be written
+     */
+    int abandon()
+    {
+        abandoned = true;
+
+        int remaining = 0;
+        for (int i = next; i < shards.size(); i++)
+            remaining += shards.get(i).processors.size();
+
+        return remaining;
+    }
+
+    boolean isDone()
+    {
+        return next == shards.size();
+    }
+}
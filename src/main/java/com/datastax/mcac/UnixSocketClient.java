@@ -4,35 +4,43 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.datastax.mcac.insights.Insight;
-import com.datastax.mcac.insights.metrics.RateStats;
-import com.datastax.mcac.insights.metrics.SamplingStats;
-import com.datastax.mcac.utils.JacksonUtil;
+import com.datastax.mcac.insights.InsightMetadata;
+import com.datastax.mcac.utils.LocalHostIdSupplier;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelOutboundBuffer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollDomainSocketChannel;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.LineBasedFrameDecoder;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.apache.cassandra.concurrent.ScheduledExecutors;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.locator.IEndpointSnitch;
@@ -40,23 +48,35 @@ import org.apache.cassandra.metrics.CassandraMetricsRegistry;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.EstimatedHistogram;
 import org.apache.cassandra.utils.NoSpamLogger;
-import org.apache.cassandra.utils.Pair;
 import org.apache.commons.lang3.SystemUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -82,25 +102,55 @@ public class UnixSocketClient {
 
     private static final Logger logger = LoggerFactory.getLogger(UnixSocketClient.class);
     private static final int BATCH_SIZE = 256;
+    private static final long WORKERS_TERMINATION_TIMEOUT_SECONDS = 10;
+    private static final int INSIGHT_INITIAL_CAPACITY = 1024;
+    // The size the prometheus scrapes are sent in, a family is repeated in each chunk it has series in
+    private static final int PROMETHEUS_CHUNK_SIZE = Integer.getInteger("mcac.prometheus_chunk_size_in_kb", 512) * 1024;
     private static final String FILTER_INSIGHTS_TAG = "mcac_filtered=true";
-    private static final String INF_BUCKET = "bucket_inf";
+    private static final long METRIC_EVENTS_DELAY_MS = Long.getLong("mcac.metric_events_delay_in_ms", 100);
+    private static final String PENDING_TASKS_PREFIX = "org.apache.cassandra.metrics.ThreadPools.PendingTasks.";
     private static final long[] inputBuckets = new EstimatedHistogram(90).getBucketOffsets();
     private static final long[] decayingBuckets = new EstimatedHistogram(165).getBucketOffsets();
 
-    // Log linear buckets (these must match the collectd entry in types.db)
-    private static final Pair<Long, String>[] latencyBuckets;
-    private static final long[] latencyOffsets = { 35, 60, 103, 179, 310, 535, 924, 1597, 2759, 4768, 8239, 14237,
-            24601, 42510, 73457, 126934, 219342, 379022, 654949, 1131752, 1955666, 3379391, 5839588, 10090808,
-            17436917 };
+    // The bucket offsets of each histogram snapshot class, resolved once per class
+    private static final ClassValue<Function<Snapshot, long[]>> snapshotOffsets = new ClassValue<Function<Snapshot, long[]>>()
+    {
+        @Override
+        protected Function<Snapshot, long[]> computeValue(Class<?> snapshotClass)
+        {
+            String name = snapshotClass.getName();
+            if (name.contains("EstimatedHistogramReservoirSnapshot"))
+                return snapshot -> decayingBuckets;
+
+            if (name.contains("DecayingEstimatedHistogram"))
+            {
+                try
+                {
+                    Method m = snapshotClass.getMethod("getOffsets");
+                    m.setAccessible(true);
+                    MethodHandle getOffsets = MethodHandles.lookup().unreflect(m).asType(MethodType.methodType(long[].class, Snapshot.class));
+
+                    return snapshot -> {
+                        try
+                        {
+                            return (long[]) getOffsets.invokeExact(snapshot);
+                        }
+                        catch (Throwable t)
+                        {
+                            return inputBuckets;
+                        }
+                    };
+                }
+                catch (NoSuchMethodException | IllegalAccessException | RuntimeException e)
+                {
+                    //nothing we can do
+                }
+            }
 
-    static {
-        latencyBuckets = new Pair[latencyOffsets.length];
-        for (int i = 0; i < latencyBuckets.length; i++) {
-            // Latencies are reported in nanoseconds, so we convert the offsets from micros
-            // to nanos
-            latencyBuckets[i] = Pair.create(latencyOffsets[i] * 1000, "bucket_" + Long.toString(latencyOffsets[i]));
+            return snapshot -> inputBuckets;
         }
-    }
+    };
+
 
     private final AtomicBoolean started;
     private final String socketFile;
@@ -109,12 +159,13 @@ public class UnixSocketClient {
         logger.error(log, throwable);
     }
 
+    // Replaced as a whole on every change, under processorsLock, see MetricProcessors
     @VisibleForTesting
-    final ConcurrentHashMap<String, Function<String, Integer>> metricProcessors;
-    @VisibleForTesting
-    final ConcurrentHashMap<String, Function<String, Integer>> globalFilteredMetricProcessors;
-    @VisibleForTesting
-    final ConcurrentHashMap<String, Function<String, Integer>> insightFilteredMetricProcessors;
+    volatile MetricProcessors processors;
+    private final Object processorsLock = new Object();
+    // Metrics added and removed since the last batch was applied, see metricEvent
+    private final Queue<MetricEvent> metricEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean metricEventsScheduled = new AtomicBoolean(false);
 
     private final TimeUnit rateUnit;
     private final TimeUnit durationUnit;
@@ -122,13 +173,80 @@ public class UnixSocketClient {
     private final double durationFactor;
     private final String ip;
     private final Map<String, String> globalTags;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
 
     private Bootstrap bootstrap;
-    private EventLoopGroup eventLoopGroup;
+    // Read by the threads registering metrics, see metricEvent
+    private volatile EventLoopGroup eventLoopGroup;
+    // Shut down on close, unless it was handed over by the tests
+    private boolean ownsEventLoop;
     private volatile Configuration runtimeConfig = ConfigurationLoader.loadConfig();
+    // Read on startup, collectd keeps the metric transport, its port and the latency bucket layout types it was
+    // first started with, see metric_transport, as does the prometheus endpoint
+    private final Configuration startupConfig = runtimeConfig;
+    private final MetricNames metricNames = new MetricNames();
+    private volatile CompiledFilteringRules filteringRules = CompiledFilteringRules.compile(runtimeConfig.filtering_rules);
+    // Null without any adaptive_sampling_essential_rules
+    private volatile CompiledFilteringRules essentialRules = essentialRules(runtimeConfig);
+    // Resolved once per configuration, see insight_bucket_encoding
+    private volatile boolean sparseInsightBuckets = runtimeConfig.sparseInsightBuckets();
+    // Read on startup, collectd only knows the layout types it was started with
+    private final List<LatencyBucketRule> latencyBucketRules = startupConfig.latency_bucket_rules;
+    // Read on startup, the base tier first then one per interval of the reporting interval rules
+    private final List<ReportingIntervalRule> reportingIntervalRules = runtimeConfig.reporting_interval_rules;
+    private final List<ReportingTier> reportingTiers = new ArrayList<>();
     private final List<MetricRegistry> metricsRegistries;
-    volatile Channel channel;
+    // The connections to collectd's socket, served by its write_scribe plugin, see metric_transport_connections.
+    // Copy on write, a stripe is null until it's connected.
+    volatile Channel[] channels = new Channel[runtimeConfig.metricTransportConnections()];
+    // Only set when metrics are sent with collectd's binary protocol, see metric_transport
+    private volatile Channel networkChannel;
+    private volatile CollectdTypes collectdTypes;
+    private InetSocketAddress collectdNetworkAddress;
+    private final FastThreadLocal<MetricLine> metricLines = new FastThreadLocal<MetricLine>()
+    {
+        @Override
+        protected MetricLine initialValue()
+        {
+            return new MetricLine();
+        }
+    };
+    private final FastThreadLocal<InsightJsonWriter> insightWriters = new FastThreadLocal<InsightJsonWriter>()
+    {
+        @Override
+        protected InsightJsonWriter initialValue() throws Exception
+        {
+            return new InsightJsonWriter(globalTags);
+        }
+    };
+    private final FastThreadLocal<MetricInsight> metricInsights = new FastThreadLocal<MetricInsight>()
+    {
+        @Override
+        protected MetricInsight initialValue()
+        {
+            return new MetricInsight();
+        }
+    };
     private ScheduledFuture metricReportFuture;
+    private ExecutorService reportingWorkers;
+    // Only accessed from the event loop
+    private ShardedReportingPass reportingPass;
+    private ReportingCursor reportingCursor;
+    private int intervalsBehind = 0;
+    // Only set when adaptive sampling is enabled, replaced on each restart of the reporting
+    private volatile AdaptiveSampling adaptiveSampling;
+    // Every how many passes the metrics of the current pass are reported, 1 on the passes the adaptive sampling
+    // only reports the essential ones in. Sets the interval their lines declare.
+    private volatile int passBackoff = 1;
+    // Cassandra's thread pool queues, the adaptive sampling backs off when they fill up
+    private final ConcurrentHashMap<String, Gauge<?>> pendingTasksGauges = new ConcurrentHashMap<>();
+    // Set while a reporting worker snapshots a shard, its lines are collected here instead of being written
+    private final FastThreadLocal<ShardedReportingPass.Shard> shardLines = new FastThreadLocal<>();
+    // Only set when the embedded prometheus endpoint is enabled, see prometheus_exporter_enabled
+    private PrometheusExporter prometheusExporter;
+    private volatile CollectdTypes prometheusTypes;
+    // Set while the prometheus endpoint renders the metrics, their lines go to the scrape instead of collectd
+    private final FastThreadLocal<PrometheusScrape> scrapes = new FastThreadLocal<>();
     private ScheduledFuture eventReportFuture;
     private ScheduledFuture healthCheckFuture;
     private final AtomicLong successResponses;
@@ -136,10 +254,9 @@ public class UnixSocketClient {
     private final AtomicLong failedHealthChecks;
     private final AtomicLong metricReportingIntervalCount;
     private final AtomicLong eventReportingIntervalCount;
+    private final ReportingMetrics reportingMetrics;
     private Long lastTokenRefreshNanos;
 
-    private Method decayingHistogramOffsetMethod = null;
-
     public UnixSocketClient() {
         this(null, TimeUnit.SECONDS, TimeUnit.MICROSECONDS);
     }
@@ -155,9 +272,13 @@ public class UnixSocketClient {
         this.ip = getBroadcastAddress().getHostAddress();
         this.globalTags = ImmutableMap.of("host", ip, "cluster", DatabaseDescriptor.getClusterName(), "datacenter",
                 getDataCenter(), "rack", getRack());
-        this.metricProcessors = new ConcurrentHashMap<>();
-        this.globalFilteredMetricProcessors = new ConcurrentHashMap<>();
-        this.insightFilteredMetricProcessors = new ConcurrentHashMap<>();
+        this.reportingTiers.add(new ReportingTier(0, null));
+        for (ReportingIntervalRule rule : reportingIntervalRules)
+        {
+            if (tier(rule.interval_in_seconds) == null)
+                reportingTiers.add(new ReportingTier(reportingTiers.size(), rule.interval_in_seconds));
+        }
+        this.processors = new MetricProcessors(reportingTiers.size());
         this.metricReportFuture = null;
         this.healthCheckFuture = null;
 
@@ -166,6 +287,7 @@ public class UnixSocketClient {
         this.failedHealthChecks = new AtomicLong(0);
         this.metricReportingIntervalCount = new AtomicLong(0);
         this.eventReportingIntervalCount = new AtomicLong(0);
+        this.reportingMetrics = new ReportingMetrics(agentAddedMetricsRegistry, successResponses, errorResponses);
         this.lastTokenRefreshNanos = 0L;
     }
 
@@ -225,6 +347,7 @@ public class UnixSocketClient {
         EventLoopGroup epollEventLoopGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("insights"));
 
         bootstrap.group(epollEventLoopGroup).channel(EpollDomainSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, allocator)
                 .handler(createNettyPipeline());
 
         return epollEventLoopGroup;
@@ -259,6 +382,15 @@ public class UnixSocketClient {
                             UnixSocketClient.this.successResponses.incrementAndGet();
                         }
                     }
+
+                    @Override
+                    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+                    {
+                        if (ctx.channel().isWritable())
+                            resumeReporting();
+
+                        super.channelWritabilityChanged(ctx);
+                    }
                 });
             }
         };
@@ -276,6 +408,7 @@ public class UnixSocketClient {
                 if (SystemUtils.IS_OS_LINUX)
                 {
                     eventLoopGroup = epollGroup();
+                    ownsEventLoop = true;
                 }
                 else
                 {
@@ -284,7 +417,7 @@ public class UnixSocketClient {
 
                 try
                 {
-                    CollectdController.ProcessState r = CollectdController.instance.get().start(socketFile, runtimeConfig);
+                    CollectdController.ProcessState r = CollectdController.instance.get().start(socketFile, startupConfig, runtimeConfig);
 
                     if (r != CollectdController.ProcessState.STARTED)
                         logger.warn("Not able to start collectd, will keep trying: {}", r);
@@ -296,9 +429,17 @@ public class UnixSocketClient {
                     logger.warn("Error connecting", t);
                 }
 
+                if (startupConfig.binaryMetricTransport())
+                    startNetworkTransport();
+
+                if (startupConfig.prometheus_exporter_enabled)
+                    startPrometheusExporter();
+
                 boolean applied = started.compareAndSet(false, true);
                 assert applied;
 
+                // Left over by a metric event racing the last close
+                applyMetricEvents();
                 initMetricsReporting();
                 initCollectdHealthCheck();
                 restartMetricReporting(runtimeConfig.metric_sampling_interval_in_seconds);
@@ -310,6 +451,36 @@ public class UnixSocketClient {
         }
     }
 
+    /**
+     * Starts the client on already connected channels, one per stripe, without launching collectd
+     * or scheduling the reporting loop, so the write path can be driven directly.
+     */
+    @VisibleForTesting
+    void start(Channel... channels)
+    {
+        start(null, channels);
+    }
+
+    /**
+     * As {@link #start(Channel...)}, with metric events batched on the given event loop. The loop isn't shut
+     * down on close.
+     */
+    @VisibleForTesting
+    void start(EventLoopGroup loop, Channel... channels)
+    {
+        synchronized (started)
+        {
+            if (!started.compareAndSet(false, true))
+                throw new RuntimeException("MCAC Client is already started");
+
+            this.channels = channels.clone();
+            eventLoopGroup = loop;
+            ownsEventLoop = false;
+            applyMetricEvents();
+            initMetricsReporting();
+        }
+    }
+
     public void close()
     {
         synchronized (started)
@@ -321,21 +492,42 @@ public class UnixSocketClient {
                 if (metricReportFuture != null)
                     metricReportFuture.cancel(true);
 
+                if (reportingWorkers != null)
+                {
+                    reportingWorkers.shutdownNow();
+                    awaitTermination(reportingWorkers);
+                    reportingWorkers = null;
+                }
+
                 if (healthCheckFuture != null)
                     healthCheckFuture.cancel(true);
 
-                if (channel != null)
+                for (int stripe = 0; stripe < channels.length; stripe++)
+                    closeChannel(stripe);
+
+                if (networkChannel != null)
                 {
-                    channel.close().syncUninterruptibly();
-                    channel = null;
+                    collectdTypes = null;
+                    networkChannel.close().syncUninterruptibly();
+                    networkChannel = null;
                 }
 
-                if (eventLoopGroup != null)
+                if (prometheusExporter != null)
                 {
-                    eventLoopGroup.shutdownGracefully();
-                    eventLoopGroup = null;
+                    prometheusExporter.close();
+                    prometheusExporter = null;
                 }
 
+                EventLoopGroup loop = eventLoopGroup;
+                eventLoopGroup = null;
+                if (loop != null && ownsEventLoop)
+                    loop.shutdownGracefully();
+
+                // The batch scheduled on the event loop may never run, metric events are applied as they come
+                // until started again
+                metricEventsScheduled.set(false);
+                applyMetricEvents();
+
                 CollectdController.instance.get().stop();
             }
             else
@@ -345,6 +537,23 @@ public class UnixSocketClient {
         }
     }
 
+    /**
+     * Waits for the shards still being snapshotted, so their lines are handed to the event loop, or released,
+     * before it shuts down
+     */
+    private static void awaitTermination(ExecutorService workers)
+    {
+        try
+        {
+            if (!workers.awaitTermination(WORKERS_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                logger.warn("Reporting workers still running {} sec after being stopped", WORKERS_TERMINATION_TIMEOUT_SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void initCollectdHealthCheck()
     {
         //Use ScheduledExecutor vs Netty EventLoop since this blocks
@@ -354,7 +563,7 @@ public class UnixSocketClient {
                 if (!CollectdController.instance.get().healthCheck())
                 {
                     failedHealthChecks.incrementAndGet();
-                    CollectdController.instance.get().start(socketFile, runtimeConfig);
+                    CollectdController.instance.get().start(socketFile, startupConfig, runtimeConfig);
                 }
 
                 tryConnect();
@@ -366,93 +575,303 @@ public class UnixSocketClient {
         }, 30, 30, TimeUnit.SECONDS);
     }
 
-    private void tryConnect()
+    /**
+     * Binds the UDP socket metrics are sent to collectd's network plugin from. Metrics keep going out
+     * as plain text over the unix socket if the types in collectd's types.db can't be read.
+     */
+    private void startNetworkTransport()
     {
-        if (channel != null && channel.isOpen())
-            return;
-
         try
         {
-            channel = bootstrap.connect(new DomainSocketAddress(socketFile))
+            CollectdTypes types = CollectdTypes.load(Paths.get(CollectdController.instance.get().collectdRoot().get(),
+                    "usr", "share", "collectd", "types.db"))
+                    .withLatencyBuckets(startupConfig.latencyBucketLayouts());
+
+            collectdNetworkAddress = new InetSocketAddress("127.0.0.1", startupConfig.metric_transport_port);
+            networkChannel = new Bootstrap()
+                    .group(eventLoopGroup)
+                    .channel(EpollDatagramChannel.class)
+                    .option(ChannelOption.ALLOCATOR, allocator)
+                    .handler(new CollectdPacketAggregator(CollectdBinaryEncoder.MAX_PACKET_SIZE))
+                    .bind(0)
                     .syncUninterruptibly()
                     .channel();
 
-            channel.config()
-                    .setWriteBufferHighWaterMark(DEFAULT_WRITE_BUFFER_WATERMARK_HIGH_IN_KB * 1024)
-                    .setWriteBufferLowWaterMark(DEFAULT_WRITE_BUFFER_WATERMARK_LOW_IN_KB * 1024);
+            // Last, lines only go out as binary once there is somewhere to send them
+            collectdTypes = types;
+
+            logger.info("Sending metrics to collectd with the binary protocol on {}", collectdNetworkAddress);
+        }
+        catch (Throwable t)
+        {
+            logger.warn("Not able to use the binary metric transport, using plain text", t);
+        }
+    }
+
+    /**
+     * Connects the stripes that aren't, each one with its share of the write buffer watermarks
+     */
+    private void tryConnect()
+    {
+        Channel[] current = channels;
+        for (int stripe = 0; stripe < current.length; stripe++)
+        {
+            Channel channel = current[stripe];
+            if (channel != null && channel.isOpen())
+                continue;
+
+            try
+            {
+                channel = bootstrap.connect(new DomainSocketAddress(socketFile))
+                        .syncUninterruptibly()
+                        .channel();
+
+                channel.config()
+                        .setWriteBufferHighWaterMark(DEFAULT_WRITE_BUFFER_WATERMARK_HIGH_IN_KB * 1024 / current.length)
+                        .setWriteBufferLowWaterMark(DEFAULT_WRITE_BUFFER_WATERMARK_LOW_IN_KB * 1024 / current.length);
+
+                setChannel(stripe, channel);
+
+                errorResponses.set(0);
+                successResponses.set(0);
+
+                logger.info("Connection {} to collectd established", stripe);
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof IOException)
+                {
+                    logger.warn("Error connecting to collectd");
+                    return;
+                }
+                else
+                {
+                    throw t;
+                }
+            }
+        }
+    }
+
+    private synchronized void setChannel(int stripe, Channel channel)
+    {
+        Channel[] updated = channels.clone();
+        updated[stripe] = channel;
+        channels = updated;
+    }
+
+    private void closeChannel(int stripe)
+    {
+        Channel channel = channels[stripe];
+        if (channel != null)
+            channel.close().syncUninterruptibly();
+
+        setChannel(stripe, null);
+    }
+
+    /**
+     * @return the connection the lines of this metric go to, the same one on every pass so they stay in order
+     */
+    private int stripe(MetricLinePrefixes metric)
+    {
+        int connections = channels.length;
+        if (connections == 1)
+            return 0;
+
+        int hash = metric.name.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % connections;
+    }
+
+    private boolean isConnected()
+    {
+        for (Channel channel : channels)
+        {
+            if (channel == null || !channel.isOpen())
+                return false;
+        }
+
+        return true;
+    }
 
+    /**
+     * Serves the metrics to prometheus from the agent, named after the types in collectd's types.db
+     * as collectd's write_prometheus plugin names them.
+     */
+    private void startPrometheusExporter()
+    {
+        try
+        {
+            prometheusTypes = CollectdTypes.load(Paths.get(CollectdController.instance.get().collectdRoot().get(),
+                    "usr", "share", "collectd", "types.db"))
+                    .withLatencyBuckets(startupConfig.latencyBucketLayouts());
 
-            errorResponses.set(0);
-            successResponses.set(0);
+            prometheusExporter = PrometheusExporter.start(
+                    new InetSocketAddress(startupConfig.prometheus_exporter_address, startupConfig.prometheus_exporter_port),
+                    this::scrape,
+                    startupConfig.prometheus_exporter_cache_ttl_in_ms);
 
-            logger.info("Connection to collectd established");
+            logger.info("Serving prometheus metrics on {}", prometheusExporter.address());
         }
         catch (Throwable t)
         {
-            if (t instanceof IOException)
-                logger.warn("Error connecting to collectd");
-            else
-                throw t;
+            logger.warn("Not able to start the prometheus endpoint", t);
         }
     }
 
-    private synchronized void refreshFilters()
+    /**
+     * Renders the metrics for a prometheus scrape, see {@link PrometheusScrape}, all of them on the first chunk
+     * as each family is written out whole, then a chunk of about PROMETHEUS_CHUNK_SIZE at a time. The metrics
+     * are read as a reporting pass would read them, without touching the delta reporting state or sending
+     * insights.
+     */
+    PrometheusExporter.Scrape scrape(PrometheusScrape.Format format, ByteBufAllocator alloc)
     {
-        Iterator<Map.Entry<String, Function<String, Integer>>> entries;
-        Set<String> seen = new HashSet<>();
+        PrometheusScrape scrape = new PrometheusScrape(prometheusTypes, format, alloc, ip, globalTags.get("cluster"),
+                globalTags.get("datacenter"), globalTags.get("rack"));
 
-        entries = Iterators.concat(
-                metricProcessors.entrySet().iterator(),
-                insightFilteredMetricProcessors.entrySet().iterator(),
-                globalFilteredMetricProcessors.entrySet().iterator()
-        );
+        MetricProcessors snapshot = this.processors;
+        Iterator<Function<String, Integer>> processors = Iterators.concat(Iterators.transform(reportingTiers.iterator(),
+                tier -> Iterators.concat(snapshot.processors(tier.index, false, false).iterator(),
+                        snapshot.processors(tier.index, true, false).iterator())));
 
-        while (entries.hasNext())
+        return new PrometheusExporter.Scrape()
         {
-            Map.Entry<String, Function<String, Integer>> e = entries.next();
+            boolean rendered;
 
-            if (!seen.add(e.getKey()))
-                continue;
+            @Override
+            public ByteBuf nextChunk()
+            {
+                if (!rendered)
+                {
+                    scrapes.set(scrape);
+                    try
+                    {
+                        while (processors.hasNext())
+                            scrapeMetric(processors.next());
+                    }
+                    finally
+                    {
+                        scrapes.remove();
+                    }
+                    rendered = true;
+                }
+
+                return scrape.flush(PROMETHEUS_CHUNK_SIZE);
+            }
+
+            @Override
+            public boolean isComplete()
+            {
+                return rendered && scrape.isFlushed();
+            }
+
+            @Override
+            public void close()
+            {
+                scrape.release();
+            }
+        };
+    }
+
+    private void scrapeMetric(Function<String, Integer> processor)
+    {
+        try
+        {
+            processor.apply(FILTER_INSIGHTS_TAG);
+        }
+        catch (Throwable t)
+        {
+            NoSpamLogger.getLogger(logger, 1, TimeUnit.MINUTES).warn("Error rendering a metric for prometheus: ", t);
+        }
+    }
 
-            entries.remove();
-            addMetric(e.getKey(), e.getValue());
+    private void refreshFilters()
+    {
+        MetricProcessors refreshed;
+        synchronized (processorsLock)
+        {
+            refreshed = processors.replaceAll(entry -> placement(entry.name, entry.processor));
+            processors = refreshed;
         }
 
         logger.info("unfiltered metrics {}, insight filtered metrics {}, globally filtered metrics {}",
-                metricProcessors.size(), insightFilteredMetricProcessors.size(), globalFilteredMetricProcessors.size());
+                refreshed.count(MetricProcessors.Filter.REPORTED), refreshed.count(MetricProcessors.Filter.INSIGHT_FILTERED),
+                refreshed.count(MetricProcessors.Filter.GLOBALLY_FILTERED));
     }
 
-    String clean(String name)
+    private ReportingTier tier(Integer intervalInSeconds)
+    {
+        for (ReportingTier tier : reportingTiers)
+        {
+            if (Objects.equals(tier.intervalInSeconds, intervalInSeconds))
+                return tier;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the tier of the last reporting interval rule matching the metric, the base tier if none does
+     */
+    private ReportingTier tierOf(String name)
+    {
+        if (reportingIntervalRules.isEmpty())
+            return reportingTiers.get(0);
+
+        return tier(ReportingIntervalRule.applyRules(clean(name), reportingIntervalRules));
+    }
+
+    /**
+     * @return the tiers to report on this pass. A full pass of the adaptive sampling reports the tiers that were due
+     * on the passes it backed off from.
+     */
+    private List<ReportingTier> dueTiers(long pass, boolean essential)
     {
-        // Special case for coda hale metrics
-        if (name.startsWith("jvm"))
+        if (reportingTiers.size() == 1)
+            return reportingTiers;
+
+        int samplingInterval = runtimeConfig.metric_sampling_interval_in_seconds;
+        AdaptiveSampling adaptive = essential ? null : adaptiveSampling;
+        List<ReportingTier> due = new ArrayList<>(reportingTiers.size());
+        for (ReportingTier tier : reportingTiers)
         {
-            name = name.replaceAll("\\-", "_");
-            return name.toLowerCase();
+            if (adaptive == null ? tier.isDue(pass, samplingInterval) : adaptive.passedMultipleOf(tier.passes(samplingInterval)))
+                due.add(tier);
         }
 
-        name = name.replaceAll("\\s*,\\s*", ",");
-        name = name.replaceAll("\\s+", "_");
-        name = name.replaceAll("\\\\", "_");
-        name = name.replaceAll("/", "_");
+        return due;
+    }
+
+    /**
+     * @return the processors of the given tiers, without a copy for a single tier
+     */
+    private static List<Function<String, Integer>> processors(MetricProcessors snapshot, List<ReportingTier> tiers,
+            boolean insightFiltered, boolean essential)
+    {
+        if (tiers.size() == 1)
+            return snapshot.processors(tiers.get(0).index, insightFiltered, essential);
 
-        name = name.replaceAll("[^a-zA-Z0-9\\.\\_]+", ".");
-        name = name.replaceAll("\\.+", ".");
-        name = name.replaceAll("_+", "_");
+        List<Function<String, Integer>> processors = new ArrayList<>();
+        for (ReportingTier tier : tiers)
+            processors.addAll(snapshot.processors(tier.index, insightFiltered, essential));
 
-        //Convert camelCase to snake_case
-        name = String.join("_", name.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])"));
-        name = name.replaceAll("\\._", "\\.");
-        name = name.replaceAll("_+", "_");
+        return processors;
+    }
 
-        return name.toLowerCase();
+    String clean(String name)
+    {
+        return metricNames.cleanCached(name);
     }
 
 
-    void addMetric(String name, Function<String, Integer> writer)
+    /**
+     * @return where the metric goes according to the filtering rules, the reporting interval rules and the
+     * adaptive sampling essential rules
+     */
+    private MetricProcessors.Entry placement(String name, Function<String, Integer> writer)
     {
-        final FilteringRule.FilteringRuleMatch appliedCassandra = FilteringRule.applyFilters(name, runtimeConfig.filtering_rules);
-        final FilteringRule.FilteringRuleMatch appliedCleaned = FilteringRule.applyFilters(clean(name), runtimeConfig.filtering_rules);
+        final CompiledFilteringRules rules = filteringRules;
+        final FilteringRule.FilteringRuleMatch appliedCassandra = rules.apply(name);
+        final FilteringRule.FilteringRuleMatch appliedCleaned = rules.apply(clean(name));
 
         final FilteringRule applied;
         //Prefer order (last wins)
@@ -474,18 +893,59 @@ public class UnixSocketClient {
         }
 
         logger.debug("Using filtering rule {} for name '{}'", applied, name);
-        ConcurrentHashMap<String, Function<String, Integer>> picked = null;
+        MetricProcessors.Filter picked;
 
         if (applied.isAllowRule)
         {
-            picked = applied.isGlobal ? metricProcessors : insightFilteredMetricProcessors;
+            picked = applied.isGlobal ? MetricProcessors.Filter.REPORTED : MetricProcessors.Filter.INSIGHT_FILTERED;
         }
         else
         {
-            picked = applied.isGlobal ? globalFilteredMetricProcessors : insightFilteredMetricProcessors;
+            picked = applied.isGlobal ? MetricProcessors.Filter.GLOBALLY_FILTERED : MetricProcessors.Filter.INSIGHT_FILTERED;
+        }
+
+        boolean essential = picked != MetricProcessors.Filter.GLOBALLY_FILTERED && isEssential(name);
+        return new MetricProcessors.Entry(name, writer, tierOf(name).index, picked, essential);
+    }
+
+    /**
+     * @return whether the metric is still reported on the passes the adaptive sampling backs off from
+     */
+    private boolean isEssential(String name)
+    {
+        final CompiledFilteringRules rules = essentialRules;
+        if (rules == null)
+            return false;
+
+        final FilteringRule.FilteringRuleMatch appliedCassandra = rules.apply(name);
+        final FilteringRule.FilteringRuleMatch appliedCleaned = rules.apply(clean(name));
+
+        //Prefer order (last wins), and then prefer denied rules
+        if (appliedCassandra.index != appliedCleaned.index)
+            return appliedCassandra.index > appliedCleaned.index ? appliedCassandra.rule.isAllowRule : appliedCleaned.rule.isAllowRule;
+
+        return appliedCassandra.rule.isAllowRule && appliedCleaned.rule.isAllowRule;
+    }
+
+    private static CompiledFilteringRules essentialRules(Configuration config)
+    {
+        return config.adaptive_sampling_essential_rules.isEmpty() ? null : CompiledFilteringRules.compile(config.adaptive_sampling_essential_rules);
+    }
+
+    /**
+     * @return the tasks pending in Cassandra's thread pools
+     */
+    private long pendingTasks()
+    {
+        long pending = 0;
+        for (Gauge<?> gauge : pendingTasksGauges.values())
+        {
+            Object value = gauge.getValue();
+            if (value instanceof Number)
+                pending += ((Number) value).longValue();
         }
 
-        picked.put(name, writer);
+        return pending;
     }
 
 
@@ -500,83 +960,64 @@ public class UnixSocketClient {
             {
                 metricRegistry.addListener(new MetricRegistryListener()
                 {
-                    void removeMetric(String name)
-                    {
-                        //Keep the last value of a metric when it's removed.
-                        Function<String, Integer> f = metricProcessors.remove(name);
-                        if (f != null && !StorageService.instance.isInShutdownHook())
-                            f.apply("");
-
-                        f = insightFilteredMetricProcessors.remove(name);
-                        if (f != null && !StorageService.instance.isInShutdownHook())
-                            f.apply(FILTER_INSIGHTS_TAG);
-
-                        globalFilteredMetricProcessors.remove(name);
-                    }
-
                     @Override
                     public void onGaugeAdded(String name, Gauge<?> gauge)
                     {
-                        String cleanName = clean(name);
-                        addMetric(name, (tags) -> writeMetric(cleanName, tags, gauge));
+                        metricEvent(name, gauge);
                     }
 
                     @Override
                     public void onGaugeRemoved(String name)
                     {
-                        removeMetric(name);
+                        metricEvent(name, null);
                     }
 
                     @Override
                     public void onCounterAdded(String name, Counter counter)
                     {
-                        String cleanName = clean(name);
-                        addMetric(name, (tags) -> writeMetric(cleanName, tags, counter));
+                        metricEvent(name, counter);
                     }
 
                     @Override
                     public void onCounterRemoved(String name)
                     {
-                        removeMetric(name);
+                        metricEvent(name, null);
                     }
 
                     @Override
                     public void onHistogramAdded(String name, Histogram histogram)
                     {
-                        String cleanName = clean(name);
-                        addMetric(name, (tags) -> writeMetric(cleanName, tags, histogram));
+                        metricEvent(name, histogram);
                     }
 
                     @Override
                     public void onHistogramRemoved(String name)
                     {
-                        removeMetric(name);
+                        metricEvent(name, null);
                     }
 
                     @Override
                     public void onMeterAdded(String name, Meter meter)
                     {
-                        String cleanName = clean(name);
-                        addMetric(name, (tags) -> writeMetric(cleanName, tags, meter));
+                        metricEvent(name, meter);
                     }
 
                     @Override
                     public void onMeterRemoved(String name)
                     {
-                        removeMetric(name);
+                        metricEvent(name, null);
                     }
 
                     @Override
                     public void onTimerAdded(String name, Timer timer)
                     {
-                        String cleanName = clean(name);
-                        addMetric(name, (tags) -> writeMetric(cleanName, tags, timer));
+                        metricEvent(name, timer);
                     }
 
                     @Override
                     public void onTimerRemoved(String name)
                     {
-                        removeMetric(name);
+                        metricEvent(name, null);
                     }
                 });
             }
@@ -587,51 +1028,390 @@ public class UnixSocketClient {
         }
     }
 
-    private synchronized void restartMetricReporting(Integer metricSamplingIntervalInSeconds)
+    /**
+     * Called on the thread registering or removing the metric, often one of Cassandra's in the middle of a
+     * schema change. The event is only queued, the event loop applies whatever got queued a little later in
+     * one batch, see {@link #applyMetricEvents()}. Without an event loop it is applied right away.
+     *
+     * @param metric the metric added, null when it was removed
+     */
+    private void metricEvent(String name, Metric metric)
     {
-        if (metricReportFuture != null)
-            metricReportFuture.cancel(false);
+        metricEvents.offer(new MetricEvent(name, metric));
 
-        logger.info("Starting metric reporting with {} sec interval", metricSamplingIntervalInSeconds);
+        EventLoopGroup loop = eventLoopGroup;
+        if (loop == null)
+        {
+            applyMetricEvents();
+            return;
+        }
 
-        //Some metrics are reported to insights as custom Insight types.
-        //We avoid sending these at the same interval as other metrics since insights only needs things
-        //at a 5 minute interval worst case. see InsightsRuntimeConfig::metricUpdateGapInSeconds
-        final long reportInsightEvery = Math.max((long) Math.floor(runtimeConfig.metricUpdateGapInSeconds() / metricSamplingIntervalInSeconds), 1);
-        logger.debug("Reporting metric insights every {} intervals", reportInsightEvery);
+        if (!metricEventsScheduled.compareAndSet(false, true))
+            return;
 
-        metricReportFuture = eventLoopGroup.scheduleWithFixedDelay(() -> {
+        try
+        {
+            loop.schedule(this::applyMetricEvents, METRIC_EVENTS_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Shutting down
+            metricEventsScheduled.set(false);
+            applyMetricEvents();
+        }
+    }
 
-            if (channel == null || !channel.isOpen())
-                logger.info("Metric reporting skipped due to connection to collectd not being established");
+    /**
+     * Applies the queued metric events at once, only the last event of each metric counts. The metrics are
+     * placed and the processors snapshot is built once for the whole batch, then the last value of the
+     * removed metrics is written.
+     */
+    private void applyMetricEvents()
+    {
+        metricEventsScheduled.set(false);
 
-            long count = 0;
-            long thisInterval = metricReportingIntervalCount.getAndIncrement();
+        List<MetricProcessors.Entry> removed = new ArrayList<>();
+        synchronized (processorsLock)
+        {
+            Map<String, Metric> batch = new LinkedHashMap<>();
+            Set<String> removals = new HashSet<>();
+            MetricEvent event;
+            while ((event = metricEvents.poll()) != null)
+            {
+                if (event.metric == null)
+                    removals.add(event.name);
 
-            // Metric and Insight data
-            // We only send insight data every N seconds defined above
-            count += writeGroup(metricProcessors, thisInterval % reportInsightEvery == 0 ? "" : FILTER_INSIGHTS_TAG);
+                batch.put(event.name, event.metric);
+            }
 
-            // Metric data (Not sent to insight)
-            count += writeGroup(insightFilteredMetricProcessors, FILTER_INSIGHTS_TAG);
+            if (batch.isEmpty())
+                return;
+
+            MetricProcessors current = processors;
+            for (String name : removals)
+            {
+                MetricProcessors.Entry entry = current.entry(name);
+                if (entry != null)
+                    removed.add(entry);
+            }
+
+            List<String> gone = new ArrayList<>();
+            List<MetricProcessors.Entry> added = new ArrayList<>();
+            for (Map.Entry<String, Metric> e : batch.entrySet())
+            {
+                if (e.getValue() == null)
+                {
+                    gone.add(e.getKey());
+                    pendingTasksGauges.remove(e.getKey());
+                    continue;
+                }
+
+                added.add(placement(e.getKey(), processor(e.getKey(), e.getValue())));
+                if (e.getValue() instanceof Gauge && e.getKey().startsWith(PENDING_TASKS_PREFIX))
+                    pendingTasksGauges.put(e.getKey(), (Gauge<?>) e.getValue());
+            }
+
+            processors = current.with(gone, added);
+        }
+
+        if (removed.isEmpty() || StorageService.instance.isInShutdownHook())
+            return;
+
+        //Keep the last value of a metric when it's removed.
+        for (MetricProcessors.Entry entry : removed)
+        {
+            if (entry.filter == MetricProcessors.Filter.GLOBALLY_FILTERED)
+                continue;
+
+            try
+            {
+                entry.processor.apply(entry.filter == MetricProcessors.Filter.REPORTED ? "" : FILTER_INSIGHTS_TAG);
+            }
+            catch (Throwable t)
+            {
+                logger.warn("Error reporting: ", t);
+            }
+        }
+    }
+
+    private Function<String, Integer> processor(String name, Metric metric)
+    {
+        MetricLinePrefixes prefixes = new MetricLinePrefixes(clean(name), tierOf(name));
+
+        if (metric instanceof Gauge)
+        {
+            Gauge<?> gauge = (Gauge<?>) metric;
+            LastReportedValue last = new LastReportedValue();
+            return ReportingMetrics.timed(reportingMetrics.gaugeNanos, (tags) -> writeMetric(prefixes, last, tags, gauge));
+        }
+
+        if (metric instanceof Counter)
+        {
+            Counter counter = (Counter) metric;
+            LastReportedValue last = new LastReportedValue();
+            return ReportingMetrics.timed(reportingMetrics.counterNanos, (tags) -> writeMetric(prefixes, last, tags, counter));
+        }
+
+        if (metric instanceof Histogram)
+        {
+            Histogram histogram = (Histogram) metric;
+            return ReportingMetrics.timed(reportingMetrics.histogramNanos, (tags) -> writeMetric(prefixes, tags, histogram));
+        }
+
+        if (metric instanceof Meter)
+        {
+            Meter meter = (Meter) metric;
+            return ReportingMetrics.timed(reportingMetrics.meterNanos, (tags) -> writeMetric(prefixes, tags, meter));
+        }
+
+        if (metric instanceof Timer)
+        {
+            Timer timer = (Timer) metric;
+            LatencyBuckets buckets = LatencyBucketRule.applyRules(prefixes.name, latencyBucketRules);
+            return ReportingMetrics.timed(reportingMetrics.timerNanos, (tags) -> writeMetric(prefixes, buckets, tags, timer));
+        }
+
+        throw new IllegalArgumentException("Unsupported metric type: " + metric.getClass().getName());
+    }
+
+    private static final class MetricEvent
+    {
+        final String name;
+        // null when the metric was removed
+        final Metric metric;
+
+        MetricEvent(String name, Metric metric)
+        {
+            this.name = name;
+            this.metric = metric;
+        }
+    }
+
+    private synchronized void restartMetricReporting(Integer metricSamplingIntervalInSeconds)
+    {
+        if (metricReportFuture != null)
+            metricReportFuture.cancel(false);
+
+        if (reportingWorkers != null)
+        {
+            reportingWorkers.shutdown();
+            reportingWorkers = null;
+        }
+
+        final int threads = runtimeConfig.metric_reporting_threads == null ? 1 : runtimeConfig.metric_reporting_threads;
+        if (threads > 1)
+            reportingWorkers = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("insights-reporting", true));
+
+        final ExecutorService workers = reportingWorkers;
+
+        logger.info("Starting metric reporting with {} sec interval on {} thread(s)", metricSamplingIntervalInSeconds, threads);
+        for (ReportingTier tier : reportingTiers)
+        {
+            if (tier.intervalInSeconds != null && tier.intervalInSeconds < metricSamplingIntervalInSeconds)
+                logger.warn("Reporting interval rules of {} sec are below metric_sampling_interval_in_seconds, their metrics are reported every {} sec",
+                        tier.intervalInSeconds, metricSamplingIntervalInSeconds);
+        }
+
+        adaptiveSampling = runtimeConfig.adaptive_sampling_enabled
+                ? new AdaptiveSampling(metricSamplingIntervalInSeconds, runtimeConfig.adaptive_sampling_busy_fraction,
+                        runtimeConfig.adaptive_sampling_pending_tasks, runtimeConfig.adaptive_sampling_max_backoff, this::pendingTasks)
+                : null;
+        passBackoff = 1;
+
+        //Some metrics are reported to insights as custom Insight types.
+        //We avoid sending these at the same interval as other metrics since insights only needs things
+        //at a 5 minute interval worst case. see InsightsRuntimeConfig::metricUpdateGapInSeconds
+        final long reportInsightEvery = Math.max((long) Math.floor(runtimeConfig.metricUpdateGapInSeconds() / metricSamplingIntervalInSeconds), 1);
+        logger.debug("Reporting metric insights every {} intervals", reportInsightEvery);
+
+        if (runtimeConfig.spreadReporting())
+        {
+            startSpreadReporting(metricSamplingIntervalInSeconds, reportInsightEvery);
+            return;
+        }
+
+        metricReportFuture = eventLoopGroup.scheduleWithFixedDelay(() -> {
+
+            if (!isConnected())
+                logger.info("Metric reporting skipped due to connection to collectd not being established");
+
+            long start = System.nanoTime();
+            long count = 0;
+            long thisInterval = metricReportingIntervalCount.getAndIncrement();
+
+            boolean essential = !isFullPass(thisInterval);
+            if (essential && essentialRules == null)
+                return;
+
+            // Metric and Insight data
+            // We only send insight data every N seconds defined above
+            String tags = passTags(thisInterval, reportInsightEvery, essential);
+
+            if (runtimeConfig.write_backpressure_enabled)
+            {
+                startBackpressuredPass(workers, threads, tags, thisInterval, 1, essential);
+                return;
+            }
+
+            List<ReportingTier> due = dueTiers(thisInterval, essential);
+            if (workers != null)
+            {
+                writeShards(workers, threads, tags, due, essential);
+                return;
+            }
+
+            MetricProcessors snapshot = processors;
+            for (ReportingTier tier : due)
+                count += writeGroup(snapshot.processors(tier.index, false, essential), tags);
+
+            // Metric data (Not sent to insight)
+            for (ReportingTier tier : due)
+                count += writeGroup(snapshot.processors(tier.index, true, essential), FILTER_INSIGHTS_TAG);
 
             if (count > 0)
             {
                 logger.trace("Calling flush with {}", count);
                 flush();
             }
+
+            passCompleted(System.nanoTime() - start, essential);
         }, metricSamplingIntervalInSeconds, metricSamplingIntervalInSeconds, TimeUnit.SECONDS);
     }
 
-    private int writeGroup(ConcurrentHashMap<String, Function<String, Integer>> group, String tags)
+    /**
+     * @return false when the adaptive sampling backs off and the pass only reports the essential metrics
+     */
+    private boolean isFullPass(long interval)
+    {
+        AdaptiveSampling adaptive = adaptiveSampling;
+        if (adaptive == null)
+            return true;
+
+        if (adaptive.isFullPass(interval))
+        {
+            passBackoff = adaptive.backoff();
+            return true;
+        }
+
+        passBackoff = 1;
+        reportingMetrics.adaptiveBackoffs.inc();
+        return false;
+    }
+
+    /**
+     * Insight data goes with every reportInsightEvery-th pass, or with the first full pass after it when the
+     * adaptive sampling backed off from it
+     */
+    private String passTags(long interval, long reportInsightEvery, boolean essential)
+    {
+        AdaptiveSampling adaptive = adaptiveSampling;
+        boolean insights = interval % reportInsightEvery == 0
+                || (!essential && adaptive != null && adaptive.passedMultipleOf(reportInsightEvery));
+
+        return insights ? "" : FILTER_INSIGHTS_TAG;
+    }
+
+    private void passCompleted(long nanos, boolean essential)
+    {
+        reportingMetrics.pass.update(nanos, TimeUnit.NANOSECONDS);
+
+        AdaptiveSampling adaptive = adaptiveSampling;
+        if (adaptive != null && !essential)
+            adaptive.passCompleted(nanos);
+    }
+
+    /**
+     * Reports a slice of the metrics every second instead of all of them at the start of the interval, from a
+     * point of the interval picked by the host id so the nodes of a cluster don't all report at once. The pass
+     * runs on the event loop, the reporting threads aren't used.
+     */
+    private void startSpreadReporting(int intervalInSeconds, long reportInsightEvery)
+    {
+        long intervalMillis = TimeUnit.SECONDS.toMillis(intervalInSeconds);
+        int slices = Math.max(1, intervalInSeconds);
+        long phaseMillis = reportingPhaseMillis(intervalMillis);
+        AtomicLong ticks = new AtomicLong();
+
+        logger.info("Spreading metric reporting over {} slices, {} ms into each interval", slices, phaseMillis);
+
+        metricReportFuture = eventLoopGroup.scheduleAtFixedRate(
+                () -> reportSlice((int) (ticks.getAndIncrement() % slices), slices, reportInsightEvery),
+                phaseMillis, intervalMillis / slices, TimeUnit.MILLISECONDS);
+    }
+
+    private void reportSlice(int slice, int slices, long reportInsightEvery)
+    {
+        if (slice > 0)
+        {
+            ReportingCursor cursor = reportingCursor;
+            if (cursor != null && !cursor.isDone())
+            {
+                cursor.limitTo(slice, slices);
+                writeFromCursor(cursor);
+            }
+            return;
+        }
+
+        if (!isConnected())
+            logger.info("Metric reporting skipped due to connection to collectd not being established");
+
+        long thisInterval = metricReportingIntervalCount.getAndIncrement();
+
+        boolean essential = !isFullPass(thisInterval);
+        if (essential && essentialRules == null)
+            return;
+
+        String tags = passTags(thisInterval, reportInsightEvery, essential);
+
+        if (runtimeConfig.write_backpressure_enabled)
+        {
+            startBackpressuredPass(null, 1, tags, thisInterval, slices, essential);
+            return;
+        }
+
+        List<ReportingTier> due = dueTiers(thisInterval, essential);
+        MetricProcessors snapshot = processors;
+        reportingPass = null;
+        reportingCursor = new ReportingCursor(processors(snapshot, due, false, essential), tags,
+                processors(snapshot, due, true, essential), FILTER_INSIGHTS_TAG);
+        reportingCursor.essential = essential;
+        reportingCursor.limitTo(0, slices);
+        writeFromCursor(reportingCursor);
+    }
+
+    /**
+     * @return the offset into the interval this node reports at, spread over the cluster by host id
+     */
+    private long reportingPhaseMillis(long intervalMillis)
+    {
+        String id = null;
+        try
+        {
+            id = LocalHostIdSupplier.getHostId();
+        }
+        catch (Throwable t)
+        {
+            logger.debug("Host id not available, the reporting phase is picked from the address", t);
+        }
+
+        return reportingPhaseMillis(id == null ? ip : id, intervalMillis);
+    }
+
+    @VisibleForTesting
+    static long reportingPhaseMillis(String id, long intervalMillis)
+    {
+        return Math.floorMod(Hashing.murmur3_32().hashString(id, StandardCharsets.UTF_8).asInt(), intervalMillis);
+    }
+
+    private int writeGroup(List<Function<String, Integer>> group, String tags)
     {
         int count = 0;
 
-        for (Map.Entry<String, Function<String, Integer>> m : group.entrySet())
+        for (int i = 0; i < group.size(); i++)
         {
             try
             {
-                count += m.getValue().apply(tags);
+                count += group.get(i).apply(tags);
 
                 if (count >= BATCH_SIZE)
                 {
@@ -649,22 +1429,328 @@ public class UnixSocketClient {
         return count;
     }
 
-    private int writeMetric(String name, String tags, Gauge gauge)
+    /**
+     * Snapshots both groups on the reporting workers, the event loop writes each shard out once it
+     * and all the ones before it are done.
+     */
+    private void writeShards(ExecutorService workers, int threads, String tags, List<ReportingTier> due, boolean essential)
+    {
+        if (reportingPass != null && !reportingPass.isDone())
+        {
+            NoSpamLogger.getLogger(logger, 5, TimeUnit.MINUTES)
+                    .warn("Previous metric reporting pass is still running, skipping this interval");
+            return;
+        }
+
+        MetricProcessors snapshot = processors;
+        ShardedReportingPass pass = new ShardedReportingPass(processors(snapshot, due, false, essential), tags,
+                processors(snapshot, due, true, essential), FILTER_INSIGHTS_TAG, threads);
+        pass.essential = essential;
+        startShards(workers, pass);
+    }
+
+    private void startShards(ExecutorService workers, ShardedReportingPass pass)
+    {
+        final EventLoopGroup loop = eventLoopGroup;
+        reportingPass = pass;
+
+        for (ShardedReportingPass.Shard shard : pass.shards)
+        {
+            try
+            {
+                workers.execute(() -> {
+                    snapshotShard(pass, shard);
+                    try
+                    {
+                        loop.execute(() -> writeCompletedShards(pass));
+                    }
+                    catch (RejectedExecutionException e)
+                    {
+                        // The client is stopping, nothing will write these lines out
+                        shard.release();
+                        reportingMetrics.shardDrops.inc(shard.processors.size());
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Workers are being replaced, let the pass finish without this shard
+                logger.debug("Reporting worker rejected shard", e);
+                reportingMetrics.shardDrops.inc(shard.processors.size());
+                shard.complete();
+            }
+        }
+
+        writeCompletedShards(pass);
+    }
+
+    private void snapshotShard(ShardedReportingPass pass, ShardedReportingPass.Shard shard)
+    {
+        if (pass.abandoned)
+        {
+            shard.complete();
+            return;
+        }
+
+        shardLines.set(shard);
+        try
+        {
+            for (Function<String, Integer> processor : shard.processors)
+            {
+                try
+                {
+                    processor.apply(shard.tags);
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Error reporting: ", t);
+                }
+            }
+        }
+        finally
+        {
+            shardLines.remove();
+            shard.complete();
+        }
+    }
+
+    private void writeCompletedShards(ShardedReportingPass pass)
+    {
+        if (pass.running)
+            return;
+
+        pass.running = true;
+        try
+        {
+            int count = 0;
+            boolean polled = false;
+            ShardedReportingPass.Shard shard;
+
+            while ((shard = pass.peek()) != null)
+            {
+                polled = true;
+
+                while (shard.written < shard.lines.size())
+                {
+                    if (pass.abandoned)
+                    {
+                        ReferenceCountUtil.release(shard.lines.get(shard.written++));
+                        continue;
+                    }
+
+                    if (waitForWritable())
+                        return;
+
+                    write(shard.lines.get(shard.written), shard.stripe(shard.written++), false);
+
+                    if (++count >= BATCH_SIZE)
+                    {
+                        logger.trace("Calling flush with {}", count);
+                        flush();
+                        count = 0;
+                    }
+                }
+
+                shard.lines.clear();
+                pass.advance();
+            }
+
+            if (count > 0)
+            {
+                logger.trace("Calling flush with {}", count);
+                flush();
+            }
+
+            if (polled && pass.isDone() && !pass.abandoned)
+                passCompleted(System.nanoTime() - pass.startNanos, pass.essential);
+        }
+        finally
+        {
+            pass.running = false;
+        }
+    }
+
+    /**
+     * Gives up on whatever is left of a pass still waiting on collectd and starts this interval's,
+     * trimmed down by the configured {@link BackpressureDropPolicy} for as long as collectd is behind.
+     *
+     * @param slices the number of slices the pass is written in when spread over the interval, 1 otherwise
+     * @param essential whether the pass only reports the essential metrics, see {@link AdaptiveSampling}
+     */
+    private void startBackpressuredPass(ExecutorService workers, int threads, String tags, long interval, int slices, boolean essential)
+    {
+        int dropped = 0;
+        boolean late = false;
+
+        if (reportingCursor != null && !reportingCursor.isDone())
+        {
+            dropped += reportingCursor.abandon();
+            late = true;
+        }
+
+        if (reportingPass != null && !reportingPass.isDone() && !reportingPass.abandoned)
+        {
+            dropped += reportingPass.abandon();
+            // Lines of shards already snapshotted are released right away, the rest as their workers finish
+            writeCompletedShards(reportingPass);
+            late = true;
+        }
+
+        intervalsBehind = late ? intervalsBehind + 1 : 0;
+
+        List<ReportingTier> due = dueTiers(interval, essential);
+        MetricProcessors snapshot = processors;
+        Collection<Function<String, Integer>> dueMetrics = processors(snapshot, due, false, essential);
+        Collection<Function<String, Integer>> dueFiltered = processors(snapshot, due, true, essential);
+
+        BackpressureDropPolicy policy = runtimeConfig.backpressureDropPolicy();
+        List<Function<String, Integer>> metrics = policy.select(dueMetrics, false, intervalsBehind, interval);
+        List<Function<String, Integer>> filtered = policy.select(dueFiltered, true, intervalsBehind, interval);
+        dropped += dueMetrics.size() - metrics.size() + dueFiltered.size() - filtered.size();
+
+        if (dropped > 0)
+        {
+            reportingMetrics.backpressureDrops.inc(dropped);
+            NoSpamLogger.getLogger(logger, 1, TimeUnit.MINUTES).warn("Collectd is falling behind, {} metrics " +
+                    "were not reported this interval ({} policy)", dropped, policy.name().toLowerCase());
+        }
+
+        if (workers != null)
+        {
+            reportingCursor = null;
+            ShardedReportingPass pass = new ShardedReportingPass(metrics, tags, filtered, FILTER_INSIGHTS_TAG, threads);
+            pass.essential = essential;
+            startShards(workers, pass);
+        }
+        else
+        {
+            reportingPass = null;
+            reportingCursor = new ReportingCursor(metrics, tags, filtered, FILTER_INSIGHTS_TAG);
+            reportingCursor.essential = essential;
+            if (slices > 1)
+                reportingCursor.limitTo(0, slices);
+            writeFromCursor(reportingCursor);
+        }
+    }
+
+    private void writeFromCursor(ReportingCursor cursor)
+    {
+        if (cursor.running)
+            return;
+
+        cursor.running = true;
+        long start = System.nanoTime();
+        try
+        {
+            int count = 0;
+
+            while (!cursor.isPaused())
+            {
+                if (waitForWritable())
+                    return;
+
+                try
+                {
+                    String tags = cursor.tags();
+                    count += cursor.next().apply(tags);
+
+                    if (count >= BATCH_SIZE)
+                    {
+                        logger.trace("Calling flush with {}", count);
+                        flush();
+                        count = 0;
+                    }
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Error reporting: ", t);
+                }
+            }
+
+            if (count > 0)
+            {
+                logger.trace("Calling flush with {}", count);
+                flush();
+            }
+        }
+        finally
+        {
+            cursor.busyNanos += System.nanoTime() - start;
+            cursor.running = false;
+        }
+
+        if (cursor.isDone())
+            passCompleted(cursor.elapsedNanos(), cursor.essential);
+    }
+
+    /**
+     * With backpressure enabled, flushes once the channel is no longer writable.
+     *
+     * @return true if collectd still hasn't caught up, the pass then waits for channelWritabilityChanged
+     */
+    private boolean waitForWritable()
+    {
+        if (!runtimeConfig.write_backpressure_enabled || isWritable())
+            return false;
+
+        flush();
+        if (isWritable())
+            return false;
+
+        reportingMetrics.backpressurePauses.inc();
+        return true;
+    }
+
+    /**
+     * @return whether every stripe is writable, a pass writes to all of them
+     */
+    private boolean isWritable()
+    {
+        for (Channel c : channels)
+        {
+            // Without a connection lines are dropped as they are written, there is nothing to wait for
+            if (c != null && c.isOpen() && !c.isWritable())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Called on the event loop once collectd has drained a channel below the low watermark
+     */
+    private void resumeReporting()
+    {
+        if (reportingCursor != null && !reportingCursor.isDone())
+            writeFromCursor(reportingCursor);
+
+        if (reportingPass != null && !reportingPass.isDone())
+            writeCompletedShards(reportingPass);
+    }
+
+    private int writeMetric(MetricLinePrefixes metric, LastReportedValue last, String tags, Gauge gauge)
     {
         Object value = gauge.getValue();
         if (value instanceof Number)
         {
-            reportCollectd(name, tags, (Number) value, "gauge");
+            Configuration config = runtimeConfig;
+            if (scrapes.get() == null && !last.shouldWrite((Number) value, heartbeatIntervals(config), isSkippable(config, tags)))
+            {
+                reportingMetrics.deltaSkipped.inc();
+                return 0;
+            }
+
+            reportCollectd(metric, tags, (Number) value, "gauge");
         } else if (value instanceof long[])
         {
             /* DSP-18600: Instead of ignoring long[] gauges, we want to transform
             them into EstimatedHistograms. Because we want to treat it differently
             than a normal gauge we call a different method. */
-            logger.trace("Treating Gauge {} long[] value as estimated histogram buckets", name);
-            return writeMetric(name, tags, (long[]) value);
+            logger.trace("Treating Gauge {} long[] value as estimated histogram buckets", metric.name);
+            return writeMetric(metric, tags, (long[]) value);
         } else
         {
-            logger.trace("Value not a number {} {}", name, value);
+            logger.trace("Value not a number {} {}", metric.name, value);
             return 0;
         }
 
@@ -675,11 +1761,11 @@ public class UnixSocketClient {
      * Writes metrics assuming that the data is given int he "estimatedBuckets" format
      * used in several C* Gauges.
      */
-    private int writeMetric(String name, String tags, long[] estimatedBuckets)
+    private int writeMetric(MetricLinePrefixes metric, String tags, long[] estimatedBuckets)
     {
         if (estimatedBuckets == null || (estimatedBuckets != null && estimatedBuckets.length == 0))
         {
-            logger.trace("Gauge {} was empty or null, ignoring", name);
+            logger.trace("Gauge {} was empty or null, ignoring", metric.name);
             return 0;
         }
 
@@ -699,7 +1785,7 @@ public class UnixSocketClient {
         double p999 = hist.percentile(0.999);
 
         reportCollectdHistogram(
-                name,
+                metric,
                 FILTER_INSIGHTS_TAG,
                 count,
                 max,
@@ -718,21 +1804,11 @@ public class UnixSocketClient {
 
         if (!tags.contains(FILTER_INSIGHTS_TAG))
         {
-            com.datastax.mcac.insights.metrics.Histogram h = new com.datastax.mcac.insights.metrics.Histogram(
-                    name,
-                    System.currentTimeMillis(),
-                    globalTags,
-                    hist.count(),
-                    new SamplingStats(min, max, mean, p50, p75, p90, p98, p99, p999, stddev)
-            );
-            try
-            {
-                report(h);
-            }
-            catch (Exception e)
-            {
-                throw new RuntimeException(e);
-            }
+            MetricInsight h = metricInsights.get()
+                    .start(metric.name, System.currentTimeMillis(), InsightMetadata.InsightType.HISTOGRAM, hist.count())
+                    .samplingStats(min, max, mean, p50, p75, p90, p98, p99, p999, stddev);
+
+            reportInsight(h);
             ++sent;
         }
 
@@ -740,13 +1816,38 @@ public class UnixSocketClient {
     }
 
 
-    private int writeMetric(String name, String tags, Counter counter)
+    private int writeMetric(MetricLinePrefixes metric, LastReportedValue last, String tags, Counter counter)
     {
-        reportCollectd(name, tags, counter.getCount(), "counter");
+        long count = counter.getCount();
+
+        Configuration config = runtimeConfig;
+        if (scrapes.get() == null && !last.shouldWrite(count, heartbeatIntervals(config), isSkippable(config, tags)))
+        {
+            reportingMetrics.deltaSkipped.inc();
+            return 0;
+        }
+
+        reportCollectd(metric, tags, count, "counter");
         return 1;
     }
 
-    private int writeMetric(String name, String tags, Timer timer)
+    /**
+     * In delta reporting mode unchanged values can be left out, except for lines shipped to insights
+     */
+    private static boolean isSkippable(Configuration config, String tags)
+    {
+        return config.delta_reporting_enabled && FILTER_INSIGHTS_TAG.equals(tags);
+    }
+
+    /**
+     * Only read when delta reporting is on, a line that isn't skippable is written regardless
+     */
+    private static int heartbeatIntervals(Configuration config)
+    {
+        return config.delta_reporting_enabled ? config.delta_reporting_heartbeat_intervals : 0;
+    }
+
+    private int writeMetric(MetricLinePrefixes metric, LatencyBuckets buckets, String tags, Timer timer)
     {
         final Snapshot snapshot = timer.getSnapshot();
 
@@ -770,39 +1871,29 @@ public class UnixSocketClient {
         long count = timer.getCount();
 
         // Force all these to be filtered by insights since we send an equivalent event below
-        reportCollectdHistogram(name, FILTER_INSIGHTS_TAG, count, max, mean, min, stddev, p50, p75, p90, p95, p98, p99, p999);
-        reportCollectdMeter(name, FILTER_INSIGHTS_TAG, count, meanRate, min1Rate, min5rate, min15rate);
-        Map<String, String> buckets = reportPrometheusTimer(name, FILTER_INSIGHTS_TAG, count, snapshot);
+        reportCollectdHistogram(metric, FILTER_INSIGHTS_TAG, count, max, mean, min, stddev, p50, p75, p90, p95, p98, p99, p999);
+        reportCollectdMeter(metric, FILTER_INSIGHTS_TAG, count, meanRate, min1Rate, min5rate, min15rate);
+        boolean insight = !tags.contains(FILTER_INSIGHTS_TAG);
+        MetricInsight t = insight ? metricInsights.get().start(metric.name, System.currentTimeMillis(), InsightMetadata.InsightType.TIMER, count) : null;
+        if (insight && sparseInsightBuckets)
+            t.sparseBuckets();
+        reportPrometheusTimer(metric, FILTER_INSIGHTS_TAG, count, snapshot, buckets, t);
         int sent = 3;
 
-        if (!tags.contains(FILTER_INSIGHTS_TAG))
+        if (insight)
         {
-            com.datastax.mcac.insights.metrics.Timer t = new com.datastax.mcac.insights.metrics.Timer(
-                    name,
-                    System.currentTimeMillis(),
-                    buckets,
-                    timer.getCount(),
-                    new SamplingStats((long) min, (long) max, mean, p50, p75, p95, p98, p99, p999, stddev),
-                    new RateStats(min1Rate, min5rate, min15rate, meanRate),
-                    rateUnit.name(),
-                    durationUnit.name()
-            );
+            t.samplingStats((long) min, (long) max, mean, p50, p75, p95, p98, p99, p999, stddev)
+                    .rateStats(min1Rate, min5rate, min15rate, meanRate)
+                    .units(rateUnit.name(), durationUnit.name());
 
-            try
-            {
-                report(t);
-            }
-            catch (Exception e)
-            {
-                throw new RuntimeException(e);
-            }
+            reportInsight(t);
             ++sent;
         }
 
         return sent;
     }
 
-    private int writeMetric(String name, String tags, Meter meter)
+    private int writeMetric(MetricLinePrefixes metric, String tags, Meter meter)
     {
         double meanRate = convertRate(meter.getMeanRate());
         double min1Rate = convertRate(meter.getOneMinuteRate());
@@ -810,30 +1901,19 @@ public class UnixSocketClient {
         double min15rate = convertRate(meter.getFifteenMinuteRate());
 
         // Force all these to be filtered by insights since we send an equivalent event below
-        reportCollectdMeter(name, FILTER_INSIGHTS_TAG, meter.getCount(), meanRate, min1Rate, min5rate, min15rate);
+        reportCollectdMeter(metric, FILTER_INSIGHTS_TAG, meter.getCount(), meanRate, min1Rate, min5rate, min15rate);
 
         int sent = 1;
 
         if (!tags.contains(FILTER_INSIGHTS_TAG))
         {
             // Also add custom insight
-            com.datastax.mcac.insights.metrics.Meter m = new com.datastax.mcac.insights.metrics.Meter(
-                    name,
-                    System.currentTimeMillis(),
-                    globalTags,
-                    meter.getCount(),
-                    new RateStats(min1Rate, min5rate, min15rate, meanRate),
-                    rateUnit.name()
-            );
+            MetricInsight m = metricInsights.get()
+                    .start(metric.name, System.currentTimeMillis(), InsightMetadata.InsightType.METER, meter.getCount())
+                    .rateStats(min1Rate, min5rate, min15rate, meanRate)
+                    .units(rateUnit.name(), null);
 
-            try
-            {
-                report(m);
-            }
-            catch (Exception e)
-            {
-                throw new RuntimeException(e);
-            }
+            reportInsight(m);
             ++sent;
         }
 
@@ -843,7 +1923,7 @@ public class UnixSocketClient {
     /** Do not convertDuration on Histograms, they are not time based
      * and converting will lose the values entirely if max and min are truncated.
      */
-    private int writeMetric(String name, String tags, Histogram histogram)
+    private int writeMetric(MetricLinePrefixes metric, String tags, Histogram histogram)
     {
         final Snapshot snapshot = histogram.getSnapshot();
 
@@ -860,27 +1940,16 @@ public class UnixSocketClient {
         double p999 = snapshot.get999thPercentile();
 
         // Force all these to be filtered by insights since we send an equivalent event below
-        reportCollectdHistogram(name, FILTER_INSIGHTS_TAG, histogram.getCount(), max, mean, min, stddev, p50, p75, p90, p95, p98, p99, p999);
+        reportCollectdHistogram(metric, FILTER_INSIGHTS_TAG, histogram.getCount(), max, mean, min, stddev, p50, p75, p90, p95, p98, p99, p999);
         int sent = 1;
 
         if (!tags.contains(FILTER_INSIGHTS_TAG))
         {
-            com.datastax.mcac.insights.metrics.Histogram h = new com.datastax.mcac.insights.metrics.Histogram(
-                    name,
-                    System.currentTimeMillis(),
-                    globalTags,
-                    histogram.getCount(),
-                    new SamplingStats(min, max, mean, p50, p75, p95, p98, p99, p999, stddev)
-            );
+            MetricInsight h = metricInsights.get()
+                    .start(metric.name, System.currentTimeMillis(), InsightMetadata.InsightType.HISTOGRAM, histogram.getCount())
+                    .samplingStats(min, max, mean, p50, p75, p95, p98, p99, p999, stddev);
 
-            try
-            {
-                report(h);
-            }
-            catch (Exception e)
-            {
-                throw new RuntimeException(e);
-            }
+            reportInsight(h);
             ++sent;
         }
 
@@ -915,51 +1984,37 @@ public class UnixSocketClient {
 
 
     // See https://collectd.org/wiki/index.php/Plain_text_protocol#PUTVAL
-    boolean reportCollectdHistogram(String name, String tags, long count, double max, double mean, double min, double stddev,
+    boolean reportCollectdHistogram(MetricLinePrefixes metric, String tags, long count, double max, double mean, double min, double stddev,
             double p50, double p75, double p90, double p95, double p98, double p99, double p999)
     {
-        int n = runtimeConfig.metric_sampling_interval_in_seconds;
-        String msg = new StringBuilder(256)
-                .append(ip).append("/mcac-")
-                .append(name).append("/")
-                .append("histogram interval=")
-                .append(n).append(" ")
-                .append(tags).append(" N:")
-                .append(count).append(":")
-                .append(max).append(":")
-                .append(mean).append(":")
-                .append(min).append(":")
-                .append(stddev).append(":")
-                .append(p50).append(":")
-                .append(p75).append(":")
-                .append(p90).append(":")
-                .append(p95).append(":")
-                .append(p98).append(":")
-                .append(p99).append(":")
-                .append(p999)
-                .toString();
-
-        return reportInternalWithoutFlush("PUTVAL", msg);
+        MetricLine line = putval(metric, "histogram", tags, 512);
+        line.value(count)
+            .value(max)
+            .value(mean)
+            .value(min)
+            .value(stddev)
+            .value(p50)
+            .value(p75)
+            .value(p90)
+            .value(p95)
+            .value(p98)
+            .value(p99)
+            .value(p999);
+
+        return reportLine(metric, line);
     }
 
     // See https://collectd.org/wiki/index.php/Plain_text_protocol#PUTVAL
-    boolean reportCollectdMeter(String name, String tags, long count, double meanRate, double min1Rate, double min5Rate, double min15Rate)
+    boolean reportCollectdMeter(MetricLinePrefixes metric, String tags, long count, double meanRate, double min1Rate, double min5Rate, double min15Rate)
     {
-        int n = runtimeConfig.metric_sampling_interval_in_seconds;
-        String msg = new StringBuilder(256)
-                .append(ip).append("/mcac-")
-                .append(name).append("/")
-                .append("meter interval=")
-                .append(n).append(" ")
-                .append(tags).append(" N:")
-                .append(count).append(":")
-                .append(meanRate).append(":")
-                .append(min1Rate).append(":")
-                .append(min5Rate).append(":")
-                .append(min15Rate)
-                .toString();
-
-        return reportInternalWithoutFlush("PUTVAL", msg);
+        MetricLine line = putval(metric, "meter", tags, 256);
+        line.value(count)
+            .value(meanRate)
+            .value(min1Rate)
+            .value(min5Rate)
+            .value(min15Rate);
+
+        return reportLine(metric, line);
     }
 
     /**
@@ -967,121 +2022,118 @@ public class UnixSocketClient {
      * https://www.robustperception.io/why-are-prometheus-histograms-cumulative
      * https://prometheus.io/docs/practices/histograms
      *
-     * @return buckets as tags for Insights use.
+     * @param buckets the layout of the timer, its collectd type
+     * @param insight if not null, gets the cumulative count of each latency bucket as a tag
+     * @return false if the line couldn't be written, or the histogram's buckets couldn't be read
      */
-    Map<String, String> reportPrometheusTimer(String name, String tags, long count, Snapshot snapshot)
+    boolean reportPrometheusTimer(MetricLinePrefixes metric, String tags, long count, Snapshot snapshot, LatencyBuckets buckets,
+            MetricInsight insight)
     {
-        int n = runtimeConfig.metric_sampling_interval_in_seconds;
-        StringBuilder msg = new StringBuilder(512)
-                .append(ip).append("/mcac-")
-                .append(name).append("/")
-                .append("micros interval=")
-                .append(n).append(" ")
-                .append(tags).append(" N:")
-                .append(count).append(":")
-                .append(snapshot.getMean() * count); //calculate the sum from the avg
+        MetricLine line = putval(metric, buckets.type, tags, 128 + 16 * buckets.bucketNames.length);
+        line.value(count);
+        line.value(snapshot.getMean() * count); //calculate the sum from the avg
 
-
-        Map<String, String> bucketTags = Maps.newHashMapWithExpectedSize(globalTags.size() + latencyBuckets.length);
-        bucketTags.putAll(globalTags);
-
-        long[] buckets = inputBuckets;
         long[] values = snapshot.getValues();
-        String snapshotClass = snapshot.getClass().getName();
-
-        if (snapshotClass.contains("EstimatedHistogramReservoirSnapshot"))
-        {
-            buckets = decayingBuckets;
-        }
-        else if (snapshotClass.contains("DecayingEstimatedHistogram"))
-        {
-            try
-            {
-                Method m = decayingHistogramOffsetMethod;
-
-                if (m == null)
-                {
-                    m = snapshot.getClass().getMethod("getOffsets");
-                    decayingHistogramOffsetMethod = m;
-                }
-
-                buckets = (long[]) m.invoke(snapshot);
-            }
-            catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e)
-            {
-                //nothing we can do
-            }
-        }
+        LatencyBucketMapping mapping = buckets.mapping(snapshotOffsets.get(snapshot.getClass()).apply(snapshot));
 
         // This can happen if histogram isn't EstimatedDecay or EstimatedHistogram
-        if (values.length != buckets.length)
+        if (values.length != mapping.inputBuckets)
         {
             NoSpamLogger.getLogger(logger, 1, TimeUnit.HOURS)
-                    .info("Not able to get buckets for {} {} type {}", name, values.length, snapshot.getClass().getName());
-            return bucketTags;
+                    .info("Not able to get buckets for {} {} type {}", metric.name, values.length, snapshot.getClass().getName());
+            line.discard();
+            return false;
         }
 
-        int outputIndex = 0; //output index
+        int[] ends = mapping.ends;
+        int i = 0;
         long cumulativeCount = 0;
-        for (int i = 0; i < values.length; i++)
+        for (int outputIndex = 0; outputIndex < ends.length; outputIndex++)
         {
-            //Hit bucket edge
-            if (outputIndex < latencyBuckets.length && buckets[i] > latencyBuckets[outputIndex].left)
-            {
-                String value = Long.toString(cumulativeCount);
-                msg.append(":").append(value);
-                bucketTags.put(latencyBuckets[outputIndex++].right, value);
-            }
+            for (int end = ends[outputIndex]; i < end; i++)
+                cumulativeCount += values[i];
 
-            cumulativeCount += values[i];
+            line.value(cumulativeCount);
+            if (insight != null)
+                insight.bucket(buckets.bucketNames[outputIndex], cumulativeCount);
         }
 
-        String total = Long.toString(cumulativeCount);
+        for (; i < values.length; i++)
+            cumulativeCount += values[i];
 
         //Add any missing buckets + inf bucket
-        while (outputIndex++ <= latencyBuckets.length)
-        {
-            msg.append(":").append(total);
-            bucketTags.put(INF_BUCKET, total);
-        }
+        for (int outputIndex = ends.length; outputIndex <= buckets.bucketNames.length; outputIndex++)
+            line.value(cumulativeCount);
 
-        reportInternalWithoutFlush("PUTVAL", msg.toString());
+        if (insight != null)
+            insight.infBucket(cumulativeCount);
 
-        return bucketTags;
+        return reportLine(metric, line);
     }
 
 
     // See https://collectd.org/wiki/index.php/Plain_text_protocol#PUTVAL
-    boolean reportCollectd(String name, String tags, Number value, String type, String typeInstance)
+    boolean reportCollectd(MetricLinePrefixes metric, String tags, Number value, String type, String typeInstance)
     {
-        int n = runtimeConfig.metric_sampling_interval_in_seconds;
-        String msg = new StringBuilder(256)
-                .append(ip).append("/mcac-")
-                .append(name).append("/")
-                .append(type).append("-")
-                .append(typeInstance).append(" ")
-                .append("interval=").append(n).append(" ")
-                .append(tags).append(" N:")
-                .append(value)
-                .toString();
-
-        return reportInternalWithoutFlush("PUTVAL", msg);
+        return reportCollectd(metric, tags, value, type + "-" + typeInstance);
     }
 
     // See https://collectd.org/wiki/index.php/Plain_text_protocol#PUTVAL
-    boolean reportCollectd(String name, String tags, Number value, String type)
+    boolean reportCollectd(MetricLinePrefixes metric, String tags, Number value, String type)
     {
-        int n = runtimeConfig.metric_sampling_interval_in_seconds;
-        String msg = new StringBuilder(256)
-                .append(ip).append("/mcac-")
-                .append(name).append("/")
-                .append(type).append(" ")
-                .append("interval=").append(n).append(" ")
-                .append(tags).append(" N:")
-                .append(value)
-                .toString();
+        MetricLine line = putval(metric, type, tags, 256);
+        line.value(value);
+
+        return reportLine(metric, line);
+    }
+
+    /**
+     * Starts a line for this metric in a pooled buffer from its cached prefix, the caller appends the values.
+     *
+     * With the binary transport, types found in collectd's types.db are written as binary value lists and
+     * anything else falls back to a PUTVAL line.
+     */
+    private MetricLine putval(MetricLinePrefixes metric, String type, String tags, int initialCapacity)
+    {
+        MetricLine line = metricLines.get();
+        PrometheusScrape scrape = scrapes.get();
+        if (scrape != null)
+            return line.scrape(scrape.startLine(metric.name, type));
+
+        int interval = metric.tier.reportedIntervalInSeconds(runtimeConfig.metric_sampling_interval_in_seconds, passBackoff);
+        CollectdTypes types = collectdTypes;
+        byte[] dsTypes = types == null ? null : types.get(type);
+
+        if (dsTypes != null)
+        {
+            byte[] prefix = metric.getBinary(ip, type, interval, FILTER_INSIGHTS_TAG.equals(tags));
+            ByteBuf buf = allocator.directBuffer(prefix.length + 6 + dsTypes.length * 9);
+            buf.writeBytes(prefix);
+            return line.binary(buf, dsTypes);
+        }
+
+        byte[] prefix = metric.get(ip, type, interval);
+        ByteBuf buf = allocator.directBuffer(Math.max(initialCapacity, prefix.length + 64));
+        CollectdEncoder.writePutval(buf, prefix, tags);
+        return line.plainText(buf);
+    }
+
+    private boolean reportLine(MetricLinePrefixes metric, MetricLine line)
+    {
+        if (line.isScrape())
+            return line.finishScrape();
+
+        boolean binary = line.isBinary();
+        ByteBuf buf = line.finish();
+
+        if (buf == null)
+        {
+            NoSpamLogger.getLogger(logger, 1, TimeUnit.HOURS)
+                    .warn("Number of values for {} doesn't match collectd's types.db, not reporting it", metric.name);
+            return false;
+        }
 
-        return reportInternalWithoutFlush("PUTVAL", msg);
+        return binary ? write(new DatagramPacket(buf, collectdNetworkAddress), 0, false) : reportInternalWithoutFlush(buf, stripe(metric));
     }
 
     @VisibleForTesting
@@ -1093,12 +2145,41 @@ public class UnixSocketClient {
     @VisibleForTesting
     boolean reportInternalWithoutFlush(String collectdAction, String insightJsonString)
     {
-        if(channel == null)
+        if(channels[0] == null)
         {
+            reportingMetrics.disconnectedDrops.inc();
             return false;
         }
 
-        if (started.get())
+        if (shardLines.get() == null && !runtimeConfig.write_backpressure_enabled)
+            flushIfNearlyUnwritable(0);
+
+        return reportInternal(collectdAction, insightJsonString, false);
+    }
+
+    /**
+     * Writes an already encoded line to the given stripe, the buffer is released if it can't be written.
+     */
+    @VisibleForTesting
+    boolean reportInternalWithoutFlush(ByteBuf line, int stripe)
+    {
+        if(channels[stripe] == null)
+        {
+            line.release();
+            reportingMetrics.disconnectedDrops.inc();
+            return false;
+        }
+
+        if (shardLines.get() == null && !runtimeConfig.write_backpressure_enabled)
+            flushIfNearlyUnwritable(stripe);
+
+        return write(line, stripe, false);
+    }
+
+    private void flushIfNearlyUnwritable(int stripe)
+    {
+        Channel channel = channels[stripe];
+        if (started.get() && channel != null)
         {
             ChannelOutboundBuffer buf = channel.unsafe().outboundBuffer();
             // if we can access ChannelOutboundBuffer, flush before the channel becomes unwritable
@@ -1115,8 +2196,6 @@ public class UnixSocketClient {
                 flush();
             }
         }
-
-        return reportInternal(collectdAction, insightJsonString, false);
     }
 
     boolean reportInternal(String collectdAction, String insightJsonString, boolean flush)
@@ -1128,31 +2207,68 @@ public class UnixSocketClient {
                 insightJsonString = insightJsonString.replaceAll("\\n", "");
             }
 
+            return write(collectdAction + " " + insightJsonString + "\n", 0, flush);
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param stripe the connection to write to, insights and events go to the first one
+     */
+    private boolean write(Object msg, int stripe, boolean flush)
+    {
+        if (started.get())
+        {
+            // Held back until the shard's turn to be written
+            ShardedReportingPass.Shard shard = shardLines.get();
+            if (shard != null)
+            {
+                shard.add(msg, stripe);
+                return true;
+            }
+
+            if (msg instanceof DatagramPacket)
+                return writeDatagram((DatagramPacket) msg, flush);
+
+            Channel channel = channels[stripe];
             if (channel == null || !channel.isOpen())
             {
+                ReferenceCountUtil.release(msg);
+                reportingMetrics.disconnectedDrops.inc();
                 NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).warn("Connection to Collectd not established");
                 return false;
             }
 
+            // The buffer is gone once written
+            int bytes = msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : ((String) msg).length();
+
             try
             {
-                channel.write(collectdAction + " " + insightJsonString + "\n");
+                channel.write(msg);
+                reportingMetrics.linesWritten.mark();
+                reportingMetrics.bytesWritten.mark(bytes);
+
                 if (flush)
+                {
                     channel.flush();
+                    reportingMetrics.flushes.inc();
+                }
             }
             catch (Throwable t)
             {
                 if (t instanceof IOException)
                 {
-                    if (channel != null)
-                        channel.close().syncUninterruptibly();
-
-                    channel = null;
+                    closeChannel(stripe);
                     NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).info("Channel closed: ", t);
                 }
                 else if (t instanceof RejectedExecutionException)
                 {
-                    if (eventLoopGroup.isShutdown())
+                    reportingMetrics.rejectedDrops.inc();
+                    EventLoopGroup loop = eventLoopGroup;
+                    if (loop == null || loop.isShutdown())
                     {
                         NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).error("Insights reporter eventloop shutdown");
                     }
@@ -1173,34 +2289,72 @@ public class UnixSocketClient {
         }
         else
         {
+            ReferenceCountUtil.release(msg);
             return false;
         }
     }
 
-    void flush()
+    private boolean writeDatagram(DatagramPacket packet, boolean flush)
     {
-        if (channel == null || !channel.isOpen())
+        Channel network = networkChannel;
+        if (network == null || !network.isOpen())
         {
-            NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).warn("Connection to Collectd not established");
-            return;
+            packet.release();
+            reportingMetrics.disconnectedDrops.inc();
+            NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).warn("Collectd network socket not open");
+            return false;
         }
 
+        int bytes = packet.content().readableBytes();
+
         try
         {
-            channel.flush();
+            network.write(packet);
+            reportingMetrics.linesWritten.mark();
+            reportingMetrics.bytesWritten.mark(bytes);
+
+            if (flush)
+            {
+                network.flush();
+                reportingMetrics.flushes.inc();
+            }
         }
         catch (Throwable t)
         {
-            if (t instanceof IOException)
+            NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).warn("Exception encountered sending metrics", t);
+            return false;
+        }
+
+        return true;
+    }
+
+    void flush()
+    {
+        Channel network = networkChannel;
+        if (network != null && network.isOpen())
+            network.flush();
+
+        Channel[] current = channels;
+        for (int stripe = 0; stripe < current.length; stripe++)
+        {
+            Channel channel = current[stripe];
+            if (channel == null || !channel.isOpen())
             {
-                if (channel != null)
-                    channel.close().syncUninterruptibly();
+                NoSpamLogger.getLogger(logger, 30, TimeUnit.SECONDS).warn("Connection to Collectd not established");
+                continue;
+            }
 
-                channel = null;
+            try
+            {
+                channel.flush();
+                reportingMetrics.flushes.inc();
             }
-            else
+            catch (Throwable t)
             {
-                throw t;
+                if (t instanceof IOException)
+                    closeChannel(stripe);
+                else
+                    throw t;
             }
         }
     }
@@ -1208,18 +2362,50 @@ public class UnixSocketClient {
 
     public boolean report(com.datastax.mcac.insights.metrics.Metric metricInsight) throws Exception
     {
-        return reportInternalWithFlush(
-                "PUTINSIGHT",
-                JacksonUtil.writeValueAsString(metricInsight)
-        );
+        return reportInsight(metricInsight);
     }
 
     public boolean report(Insight insight) throws Exception
     {
-        return reportInternalWithFlush(
-                "PUTINSIGHT",
-                JacksonUtil.writeValueAsString(insight)
-        );
+        return reportInsight(insight);
+    }
+
+    private boolean reportInsight(MetricInsight insight)
+    {
+        if (!started.get())
+            return false;
+
+        ByteBuf buf = allocator.directBuffer(INSIGHT_INITIAL_CAPACITY);
+        try
+        {
+            insightWriters.get().write(buf, insight);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            buf.release();
+            throw new RuntimeException(e);
+        }
+
+        return write(buf, 0, true);
+    }
+
+    private boolean reportInsight(Insight insight) throws IOException
+    {
+        if (!started.get())
+            return false;
+
+        ByteBuf buf = allocator.directBuffer(INSIGHT_INITIAL_CAPACITY);
+        try
+        {
+            insightWriters.get().write(buf, insight);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            buf.release();
+            throw e;
+        }
+
+        return write(buf, 0, true);
     }
 
 
@@ -1228,7 +2414,15 @@ public class UnixSocketClient {
             Configuration newConfig
     )
     {
+        // Resolved first, a configuration with an invalid pattern or encoding isn't published
+        CompiledFilteringRules newFilteringRules = CompiledFilteringRules.compile(newConfig.filtering_rules);
+        CompiledFilteringRules newEssentialRules = essentialRules(newConfig);
+        boolean newSparseInsightBuckets = newConfig.sparseInsightBuckets();
+
         runtimeConfig = newConfig;
+        filteringRules = newFilteringRules;
+        essentialRules = newEssentialRules;
+        sparseInsightBuckets = newSparseInsightBuckets;
 
         synchronized (started)
         {
@@ -1249,12 +2443,19 @@ public class UnixSocketClient {
             }
 
             if (!Objects.equals(previousConfig.metric_sampling_interval_in_seconds, newConfig.metric_sampling_interval_in_seconds)
-                    || !Objects.equals(previousConfig.upload_interval_in_seconds, newConfig.upload_interval_in_seconds))
+                    || !Objects.equals(previousConfig.upload_interval_in_seconds, newConfig.upload_interval_in_seconds)
+                    || !Objects.equals(previousConfig.metric_reporting_threads, newConfig.metric_reporting_threads)
+                    || !Objects.equals(previousConfig.metric_reporting_schedule, newConfig.metric_reporting_schedule)
+                    || previousConfig.adaptive_sampling_enabled != newConfig.adaptive_sampling_enabled
+                    || !Objects.equals(previousConfig.adaptive_sampling_busy_fraction, newConfig.adaptive_sampling_busy_fraction)
+                    || !Objects.equals(previousConfig.adaptive_sampling_pending_tasks, newConfig.adaptive_sampling_pending_tasks)
+                    || !Objects.equals(previousConfig.adaptive_sampling_max_backoff, newConfig.adaptive_sampling_max_backoff))
             {
                 restartMetricReporting(newConfig.metric_sampling_interval_in_seconds);
             }
 
-            if (!Objects.equals(previousConfig.filtering_rules, newConfig.filtering_rules))
+            if (!Objects.equals(previousConfig.filtering_rules, newConfig.filtering_rules)
+                    || !Objects.equals(previousConfig.adaptive_sampling_essential_rules, newConfig.adaptive_sampling_essential_rules))
             {
                 refreshFilters();
             }
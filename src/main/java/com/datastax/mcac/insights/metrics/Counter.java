@@ -20,7 +20,7 @@ public class Counter extends Metric
         super(name, timestamp, tags, InsightMetadata.InsightType.COUNTER, new Data(count));
     }
 
-    private static final class Data
+    static final class Data
     {
 
         @JsonProperty("count")
@@ -37,7 +37,7 @@ public class Gauge extends Metric
         return value;
     }
 
-    private static final class Data
+    static final class Data
     {
         @JsonProperty("value")
         public final Number value;
@@ -21,7 +21,7 @@ public class Histogram extends Metric
         super(name, timestamp, tags, InsightMetadata.InsightType.HISTOGRAM, new Data(count, samplingStats));
     }
 
-    private static final class Data
+    static final class Data
     {
         @JsonProperty("count")
         public final long count;
@@ -28,7 +28,7 @@ public final class Meter extends Metric
         );
     }
 
-    private static final class Data
+    static final class Data
     {
         @JsonProperty("count")
         public final long count;
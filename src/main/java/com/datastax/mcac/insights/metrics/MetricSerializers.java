@@ -0,0 +1,252 @@
+package com.datastax.mcac.insights.metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.mcac.insights.InsightMetadata;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.Module;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.SerializerProvider;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.module.SimpleModule;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Serializers writing the metric insights field by field, instead of going through bean introspection.
+ *
+ * They write the same JSON as the annotations on these classes describe, fields in the same order.
+ * Any field added to the classes has to be added here too.
+ */
+public final class MetricSerializers
+{
+    private MetricSerializers()
+    {
+    }
+
+    public static Module module()
+    {
+        SimpleModule module = new SimpleModule("MetricSerializers");
+
+        module.addSerializer(SamplingStats.class, new Serializer<SamplingStats>(SamplingStats.class)
+        {
+            @Override
+            void writeFields(SamplingStats stats, JsonGenerator gen, SerializerProvider provider) throws IOException
+            {
+                writeSamplingStats(stats, gen);
+            }
+        });
+        module.addSerializer(RateStats.class, new Serializer<RateStats>(RateStats.class)
+        {
+            @Override
+            void writeFields(RateStats stats, JsonGenerator gen, SerializerProvider provider) throws IOException
+            {
+                writeRateStats(stats, gen);
+            }
+        });
+
+        addSerializers(module, Gauge.class, Gauge.Data.class, MetricSerializers::writeGauge);
+        addSerializers(module, Counter.class, Counter.Data.class, MetricSerializers::writeCounter);
+        addSerializers(module, Histogram.class, Histogram.Data.class, MetricSerializers::writeHistogram);
+        addSerializers(module, Meter.class, Meter.Data.class, MetricSerializers::writeMeter);
+        addSerializers(module, Timer.class, Timer.Data.class, MetricSerializers::writeTimer);
+
+        return module;
+    }
+
+    /**
+     * Registers serializers for both the insight, metadata and data, and its data alone
+     */
+    private static <M extends Metric, D> void addSerializers(SimpleModule module, Class<M> metricClass, Class<D> dataClass, FieldWriter<D> data)
+    {
+        Serializer<D> dataSerializer = new Serializer<D>(dataClass)
+        {
+            @Override
+            void writeFields(D value, JsonGenerator gen, SerializerProvider provider) throws IOException
+            {
+                data.write(value, gen, provider);
+            }
+        };
+
+        module.addSerializer(dataClass, dataSerializer);
+        module.addSerializer(metricClass, new Serializer<M>(metricClass)
+        {
+            @Override
+            void writeFields(M metric, JsonGenerator gen, SerializerProvider provider) throws IOException
+            {
+                gen.writeFieldName("metadata");
+                writeMetadata(metric.metadata, gen);
+                gen.writeFieldName("data");
+                if (metric.data == null)
+                    gen.writeNull();
+                else
+                    dataSerializer.serialize(dataClass.cast(metric.data), gen, provider);
+            }
+        });
+    }
+
+    private static void writeMetadata(InsightMetadata metadata, JsonGenerator gen) throws IOException
+    {
+        gen.writeStartObject();
+        gen.writeStringField("name", metadata.name);
+        gen.writeNumberField("timestamp", metadata.timestamp);
+
+        gen.writeFieldName("tags");
+        gen.writeStartObject();
+        for (Map.Entry<String, String> tag : metadata.tags.entrySet())
+            gen.writeStringField(tag.getKey(), tag.getValue());
+        gen.writeEndObject();
+
+        gen.writeStringField("insightType", metadata.insightType.name());
+        if (metadata.insightMappingId != null)
+            gen.writeStringField("insightMappingId", metadata.insightMappingId);
+        gen.writeEndObject();
+    }
+
+    private static void writeGauge(Gauge.Data data, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        gen.writeFieldName("value");
+        writeNumber(data.value, gen, provider);
+    }
+
+    private static void writeCounter(Counter.Data data, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        gen.writeNumberField("count", data.count);
+    }
+
+    private static void writeHistogram(Histogram.Data data, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        gen.writeNumberField("count", data.count);
+        gen.writeFieldName("samplingStats");
+        writeSamplingStatsObject(data.samplingStats, gen);
+    }
+
+    private static void writeMeter(Meter.Data data, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        gen.writeNumberField("count", data.count);
+        gen.writeFieldName("rateStats");
+        writeRateStatsObject(data.rateStats, gen);
+        gen.writeStringField("rateUnit", data.rateUnit);
+    }
+
+    private static void writeTimer(Timer.Data data, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        gen.writeNumberField("count", data.count);
+        gen.writeFieldName("samplingStats");
+        writeSamplingStatsObject(data.samplingStats, gen);
+        gen.writeFieldName("rateStats");
+        writeRateStatsObject(data.rateStats, gen);
+        gen.writeStringField("rateUnit", data.rateUnit);
+        gen.writeStringField("durationUnit", data.durationUnit);
+    }
+
+    private static void writeSamplingStatsObject(SamplingStats stats, JsonGenerator gen) throws IOException
+    {
+        if (stats == null)
+        {
+            gen.writeNull();
+            return;
+        }
+
+        gen.writeStartObject();
+        writeSamplingStats(stats, gen);
+        gen.writeEndObject();
+    }
+
+    private static void writeSamplingStats(SamplingStats stats, JsonGenerator gen) throws IOException
+    {
+        writeSamplingStats(gen, stats.min, stats.max, stats.mean, stats.median, stats.p75, stats.p95, stats.p98, stats.p99,
+                stats.p999, stats.stdDev);
+    }
+
+    /**
+     * Writes the fields of a {@link SamplingStats} object
+     */
+    public static void writeSamplingStats(JsonGenerator gen, long min, long max, double mean, double median, double p75,
+            double p95, double p98, double p99, double p999, double stdDev) throws IOException
+    {
+        gen.writeNumberField("min", min);
+        gen.writeNumberField("max", max);
+        gen.writeNumberField("mean", mean);
+        gen.writeNumberField("median", median);
+        gen.writeNumberField("p75", p75);
+        gen.writeNumberField("p95", p95);
+        gen.writeNumberField("p98", p98);
+        gen.writeNumberField("p99", p99);
+        gen.writeNumberField("p999", p999);
+        gen.writeNumberField("std_dev", stdDev);
+    }
+
+    private static void writeRateStatsObject(RateStats stats, JsonGenerator gen) throws IOException
+    {
+        if (stats == null)
+        {
+            gen.writeNull();
+            return;
+        }
+
+        gen.writeStartObject();
+        writeRateStats(stats, gen);
+        gen.writeEndObject();
+    }
+
+    private static void writeRateStats(RateStats stats, JsonGenerator gen) throws IOException
+    {
+        writeRateStats(gen, stats.m1Rate, stats.m5Rate, stats.m15Rate, stats.meanRate);
+    }
+
+    /**
+     * Writes the fields of a {@link RateStats} object
+     */
+    public static void writeRateStats(JsonGenerator gen, double m1Rate, double m5Rate, double m15Rate, double meanRate) throws IOException
+    {
+        gen.writeNumberField("m1Rate", m1Rate);
+        gen.writeNumberField("m5Rate", m5Rate);
+        gen.writeNumberField("m15Rate", m15Rate);
+        gen.writeNumberField("meanRate", meanRate);
+    }
+
+    // As Jackson's own serializers for each Number type would write it
+    private static void writeNumber(Number value, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        if (value instanceof Double)
+            gen.writeNumber(value.doubleValue());
+        else if (value instanceof Long || value instanceof AtomicLong)
+            gen.writeNumber(value.longValue());
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof AtomicInteger)
+            gen.writeNumber(value.intValue());
+        else if (value instanceof Float)
+            gen.writeNumber(value.floatValue());
+        else if (value instanceof BigDecimal)
+            gen.writeNumber((BigDecimal) value);
+        else if (value instanceof BigInteger)
+            gen.writeNumber((BigInteger) value);
+        else
+            provider.defaultSerializeValue(value, gen);
+    }
+
+    private interface FieldWriter<T>
+    {
+        void write(T value, JsonGenerator gen, SerializerProvider provider) throws IOException;
+    }
+
+    private abstract static class Serializer<T> extends StdSerializer<T>
+    {
+        Serializer(Class<T> type)
+        {
+            super(type);
+        }
+
+        abstract void writeFields(T value, JsonGenerator gen, SerializerProvider provider) throws IOException;
+
+        @Override
+        public void serialize(T value, JsonGenerator gen, SerializerProvider provider) throws IOException
+        {
+            gen.writeStartObject();
+            writeFields(value, gen, provider);
+            gen.writeEndObject();
+        }
+    }
+}
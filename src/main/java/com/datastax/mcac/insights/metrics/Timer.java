@@ -29,7 +29,7 @@ public class Timer extends Metric
         );
     }
 
-    private static final class Data
+    static final class Data
     {
         @JsonProperty("count")
         public final long count;
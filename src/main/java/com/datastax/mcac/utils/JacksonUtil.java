@@ -12,6 +12,7 @@ import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.node.Obje
 import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.util.ISO8601Utils;
 
+import com.datastax.mcac.insights.metrics.MetricSerializers;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import org.slf4j.Logger;
@@ -45,6 +46,8 @@ public final class JacksonUtil
 
     private static final Supplier<ObjectMapper> MAPPER_SUPPLIER = Suppliers.memoize(() -> {
         ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_TRAILING_TOKENS, true);
+        // Metric insights are written on every reporting interval, without bean introspection
+        mapper.registerModule(MetricSerializers.module());
         return mapper;
     });
 
@@ -0,0 +1,83 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveSamplingTest
+{
+    @Test
+    public void testBacksOffSlowPasses()
+    {
+        AdaptiveSampling sampling = new AdaptiveSampling(10, 0.1, 0, 4, () -> 0);
+
+        Assert.assertTrue(sampling.isFullPass(0));
+        // 2 sec is over 10% of the interval
+        sampling.passCompleted(TimeUnit.SECONDS.toNanos(2));
+
+        Assert.assertFalse(sampling.isFullPass(1));
+        Assert.assertEquals(2, sampling.backoff());
+        Assert.assertTrue(sampling.isFullPass(2));
+        sampling.passCompleted(TimeUnit.SECONDS.toNanos(3));
+
+        Assert.assertFalse(sampling.isFullPass(3));
+        Assert.assertFalse(sampling.isFullPass(4));
+        Assert.assertFalse(sampling.isFullPass(5));
+        Assert.assertEquals(4, sampling.backoff());
+        Assert.assertTrue(sampling.isFullPass(6));
+        // Capped
+        sampling.passCompleted(TimeUnit.SECONDS.toNanos(10));
+        Assert.assertFalse(sampling.isFullPass(9));
+        Assert.assertTrue(sampling.isFullPass(10));
+        Assert.assertEquals(4, sampling.backoff());
+
+        // Cheap passes bring the interval back down
+        sampling.passCompleted(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertFalse(sampling.isFullPass(13));
+        Assert.assertTrue(sampling.isFullPass(14));
+        Assert.assertEquals(2, sampling.backoff());
+        Assert.assertFalse(sampling.isFullPass(15));
+        Assert.assertTrue(sampling.isFullPass(16));
+        Assert.assertEquals(1, sampling.backoff());
+        Assert.assertTrue(sampling.isFullPass(17));
+    }
+
+    @Test
+    public void testBacksOffPendingTasks()
+    {
+        AtomicLong pending = new AtomicLong(5000);
+        AdaptiveSampling sampling = new AdaptiveSampling(10, 0.1, 1000, 8, pending::get);
+
+        Assert.assertTrue(sampling.isFullPass(0));
+        Assert.assertFalse(sampling.isFullPass(1));
+        Assert.assertEquals(2, sampling.backoff());
+
+        pending.set(10);
+        Assert.assertTrue(sampling.isFullPass(2));
+        Assert.assertEquals(1, sampling.backoff());
+    }
+
+    @Test
+    public void testMakesUpForSkippedInsights()
+    {
+        AdaptiveSampling sampling = new AdaptiveSampling(10, 0.1, 0, 8, () -> 0);
+
+        Assert.assertTrue(sampling.isFullPass(0));
+        Assert.assertTrue(sampling.passedMultipleOf(5));
+        sampling.passCompleted(TimeUnit.MILLISECONDS.toNanos(1500));
+
+        Assert.assertFalse(sampling.isFullPass(1));
+        Assert.assertTrue(sampling.isFullPass(2));
+        Assert.assertFalse(sampling.passedMultipleOf(5));
+        Assert.assertFalse(sampling.isFullPass(3));
+        Assert.assertTrue(sampling.isFullPass(4));
+        Assert.assertFalse(sampling.passedMultipleOf(5));
+
+        Assert.assertFalse(sampling.isFullPass(5));
+        // Pass 5 was skipped, 6 carries its insights
+        Assert.assertTrue(sampling.isFullPass(6));
+        Assert.assertTrue(sampling.passedMultipleOf(5));
+    }
+}
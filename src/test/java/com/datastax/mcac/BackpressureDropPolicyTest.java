@@ -0,0 +1,67 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackpressureDropPolicyTest
+{
+    private static List<Function<String, Integer>> processors(int count)
+    {
+        List<Function<String, Integer>> processors = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            int lines = i;
+            processors.add((tags) -> lines);
+        }
+
+        return processors;
+    }
+
+    @Test
+    public void testNothingDroppedOnTime()
+    {
+        List<Function<String, Integer>> group = processors(10);
+        for (BackpressureDropPolicy policy : BackpressureDropPolicy.values())
+        {
+            Assert.assertEquals(group, policy.select(group, false, 0, 7));
+            Assert.assertEquals(group, policy.select(group, true, 0, 7));
+        }
+    }
+
+    @Test
+    public void testInsightsOnly()
+    {
+        List<Function<String, Integer>> group = processors(10);
+        Assert.assertEquals(group, BackpressureDropPolicy.INSIGHTS_ONLY.select(group, false, 2, 7));
+        Assert.assertTrue(BackpressureDropPolicy.INSIGHTS_ONLY.select(group, true, 2, 7).isEmpty());
+    }
+
+    @Test
+    public void testSamplingRotatesOverEveryMetric()
+    {
+        List<Function<String, Integer>> group = processors(10);
+        Set<Function<String, Integer>> seen = new HashSet<>();
+
+        // One interval behind writes half the metrics, the other half the interval after
+        for (long interval = 0; interval < 2; interval++)
+        {
+            List<Function<String, Integer>> sample = BackpressureDropPolicy.SAMPLING.select(group, false, 1, interval);
+            Assert.assertEquals(5, sample.size());
+            seen.addAll(sample);
+        }
+
+        Assert.assertEquals(group.size(), seen.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy()
+    {
+        BackpressureDropPolicy.fromString("newest_pass");
+    }
+}
@@ -0,0 +1,118 @@
+package com.datastax.mcac;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CollectdBinaryEncoderTest
+{
+    private static final CollectdTypes types = CollectdTypes.parse(Arrays.asList(
+            "# comment",
+            "gauge                   value:GAUGE:U:U",
+            "counter                 value:COUNTER:U:U",
+            "meter                   count:COUNTER:0:U, mean:GAUGE:0:U, m1:GAUGE:0:U"));
+
+    private static ByteBuf valueList(String name, String type, boolean filtered, Number... values)
+    {
+        byte[] dsTypes = types.get(type);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(CollectdBinaryEncoder.valueListPrefix("127.0.0.1", name, type, 30, filtered));
+
+        MetricLine line = new MetricLine().binary(buf, dsTypes);
+        for (Number value : values)
+        {
+            if (value instanceof Long)
+                line.value(value.longValue());
+            else
+                line.value(value.doubleValue());
+        }
+
+        return line.finish();
+    }
+
+    @Test
+    public void testTypesDb()
+    {
+        Assert.assertArrayEquals(new byte[] { CollectdBinaryEncoder.DS_COUNTER, CollectdBinaryEncoder.DS_GAUGE, CollectdBinaryEncoder.DS_GAUGE },
+                types.get("meter"));
+        Assert.assertArrayEquals(new byte[] { CollectdBinaryEncoder.DS_GAUGE }, types.get("gauge-instance"));
+        Assert.assertNull(types.get("micros"));
+    }
+
+    @Test
+    public void testValueListRoundTrip()
+    {
+        List<CollectdNetworkDecoder.ValueList> decoded = CollectdNetworkDecoder.decode(
+                valueList("org.apache.cassandra.metrics.table.read_latency", "meter", false, 42L, 1.5d, 0.25d));
+
+        Assert.assertEquals(1, decoded.size());
+        CollectdNetworkDecoder.ValueList vl = decoded.get(0);
+        Assert.assertEquals("127.0.0.1", vl.host);
+        Assert.assertEquals(30, vl.interval);
+        Assert.assertEquals("mcac", vl.plugin);
+        Assert.assertEquals("org.apache.cassandra.metrics.table.read_latency", vl.pluginInstance);
+        Assert.assertEquals("meter", vl.type);
+        Assert.assertEquals("", vl.typeInstance);
+        Assert.assertEquals(Arrays.<Number>asList(42L, 1.5d, 0.25d), vl.values);
+    }
+
+    @Test
+    public void testValuesConvertedToDataSourceType()
+    {
+        CollectdNetworkDecoder.ValueList gauge = CollectdNetworkDecoder.decode(valueList("jvm.gc.count", "gauge", true, 7L)).get(0);
+        Assert.assertEquals(Arrays.<Number>asList(7.0d), gauge.values);
+        Assert.assertEquals("127.0.0.1" + CollectdBinaryEncoder.FILTERED_HOST_SUFFIX, gauge.host);
+
+        CollectdNetworkDecoder.ValueList counter = CollectdNetworkDecoder.decode(valueList("jvm.gc.count", "counter-total", false, 3.0d)).get(0);
+        Assert.assertEquals(Arrays.<Number>asList(3L), counter.values);
+        Assert.assertEquals("counter", counter.type);
+        Assert.assertEquals("total", counter.typeInstance);
+    }
+
+    @Test
+    public void testWrongNumberOfValuesDropped()
+    {
+        Assert.assertNull(valueList("jvm.gc.count", "meter", false, 1L));
+        Assert.assertNull(valueList("jvm.gc.count", "gauge", false, 1L, 2L));
+    }
+
+    @Test
+    public void testPacketsAggregated()
+    {
+        InetSocketAddress collectd = new InetSocketAddress("127.0.0.1", 25826);
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdPacketAggregator(CollectdBinaryEncoder.MAX_PACKET_SIZE));
+
+        int sent = 100;
+        for (int i = 0; i < sent; i++)
+            channel.write(new DatagramPacket(valueList("org.apache.cassandra.metrics.table.metric" + i, "gauge", false, (long) i), collectd));
+        channel.flush();
+
+        List<Number> values = new ArrayList<>();
+        int packets = 0;
+        DatagramPacket packet;
+        while ((packet = channel.readOutbound()) != null)
+        {
+            packets++;
+            Assert.assertEquals(collectd, packet.recipient());
+            Assert.assertTrue(packet.content().readableBytes() <= CollectdBinaryEncoder.MAX_PACKET_SIZE);
+
+            for (CollectdNetworkDecoder.ValueList vl : CollectdNetworkDecoder.decode(packet.content()))
+                values.addAll(vl.values);
+
+            packet.release();
+        }
+
+        Assert.assertTrue(packets > 1 && packets < sent);
+        Assert.assertEquals(sent, values.size());
+        for (int i = 0; i < sent; i++)
+            Assert.assertEquals((double) i, values.get(i).doubleValue(), 0.0);
+    }
+}
@@ -0,0 +1,57 @@
+package com.datastax.mcac;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CollectdEncoderTest
+{
+    @Test
+    public void testPutvalMatchesStringFormat()
+    {
+        ByteBuf buf = Unpooled.buffer(16);
+        byte[] prefix = CollectdEncoder.putvalPrefix("127.0.0.1", "org.apache.cassandra.metrics.table.read_latency", "micros", 30);
+        CollectdEncoder.writePutval(buf, prefix, "mcac_filtered=true");
+        CollectdEncoder.writeValue(buf, 42L);
+        CollectdEncoder.writeValue(buf, 1.5d);
+        CollectdEncoder.endLine(buf);
+
+        String expected = "PUTVAL 127.0.0.1/mcac-org.apache.cassandra.metrics.table.read_latency/micros interval=30 mcac_filtered=true N:42:1.5\n";
+        Assert.assertEquals(expected, buf.toString(CharsetUtil.US_ASCII));
+
+        buf.clear();
+        CollectdEncoder.writePutval(buf, CollectdEncoder.putvalPrefix("127.0.0.1", "jvm.gc.count", "gauge", 10), "");
+        Assert.assertEquals("PUTVAL 127.0.0.1/mcac-jvm.gc.count/gauge interval=10  N", buf.toString(CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void testDoublesMatchDoubleToString()
+    {
+        double[] values = { 0.0, -0.0, 1.0, -1.0, 0.5, 123456.0, 9999999.0, 1e7, 1.0E-4, 0.001, 12345.6789,
+                Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Long.MAX_VALUE, (double) Long.MIN_VALUE, 0.1 + 0.2, -4.25e-9 };
+
+        for (double value : values)
+        {
+            ByteBuf buf = Unpooled.buffer(4);
+            CollectdEncoder.writeDouble(buf, value);
+            Assert.assertEquals(Double.toString(value), buf.toString(CharsetUtil.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testNumbersMatchToString()
+    {
+        Number[] values = { 0, -7, Long.MAX_VALUE, Long.MIN_VALUE, Integer.MIN_VALUE, (short) 12, (byte) -3, 3.25f,
+                0.1f, 2.5d, new java.math.BigDecimal("1.10") };
+
+        for (Number value : values)
+        {
+            ByteBuf buf = Unpooled.buffer(4);
+            CollectdEncoder.writeValue(buf, value);
+            Assert.assertEquals(":" + value, buf.toString(CharsetUtil.US_ASCII));
+        }
+    }
+}
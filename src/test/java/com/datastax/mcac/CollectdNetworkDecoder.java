@@ -0,0 +1,91 @@
+package com.datastax.mcac;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Stands in for collectd's network plugin in tests: parses packets the way it does,
+ * identifier parts carry over from one value list to the next.
+ */
+class CollectdNetworkDecoder
+{
+    static class ValueList
+    {
+        String host;
+        long interval;
+        String plugin;
+        String pluginInstance;
+        String type;
+        String typeInstance;
+        byte[] dsTypes;
+        final List<Number> values = new ArrayList<>();
+
+        ValueList copyIdentifier()
+        {
+            ValueList copy = new ValueList();
+            copy.host = host;
+            copy.interval = interval;
+            copy.plugin = plugin;
+            copy.pluginInstance = pluginInstance;
+            copy.type = type;
+            copy.typeInstance = typeInstance;
+            return copy;
+        }
+    }
+
+    static List<ValueList> decode(ByteBuf packet)
+    {
+        List<ValueList> valueLists = new ArrayList<>();
+        ValueList state = new ValueList();
+
+        while (packet.isReadable())
+        {
+            int type = packet.readUnsignedShort();
+            int length = packet.readUnsignedShort();
+            ByteBuf part = packet.readSlice(length - 4);
+
+            switch (type)
+            {
+                case CollectdBinaryEncoder.TYPE_HOST: state.host = string(part); break;
+                case CollectdBinaryEncoder.TYPE_PLUGIN: state.plugin = string(part); break;
+                case CollectdBinaryEncoder.TYPE_PLUGIN_INSTANCE: state.pluginInstance = string(part); break;
+                case CollectdBinaryEncoder.TYPE_TYPE: state.type = string(part); break;
+                case CollectdBinaryEncoder.TYPE_TYPE_INSTANCE: state.typeInstance = string(part); break;
+                case CollectdBinaryEncoder.TYPE_INTERVAL: state.interval = part.readLong(); break;
+                case CollectdBinaryEncoder.TYPE_VALUES:
+                    ValueList valueList = state.copyIdentifier();
+                    int count = part.readUnsignedShort();
+                    valueList.dsTypes = new byte[count];
+                    part.readBytes(valueList.dsTypes);
+
+                    for (byte dsType : valueList.dsTypes)
+                    {
+                        if (dsType == CollectdBinaryEncoder.DS_GAUGE)
+                            valueList.values.add(Double.longBitsToDouble(Long.reverseBytes(part.readLong())));
+                        else
+                            valueList.values.add(part.readLong());
+                    }
+
+                    valueLists.add(valueList);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected part type " + type);
+            }
+        }
+
+        return valueLists;
+    }
+
+    private static String string(ByteBuf part)
+    {
+        // NUL terminated
+        String value = part.toString(part.readerIndex(), part.readableBytes() - 1, StandardCharsets.US_ASCII);
+        if (part.getByte(part.writerIndex() - 1) != 0)
+            throw new IllegalArgumentException("String part not NUL terminated");
+
+        return value;
+    }
+}
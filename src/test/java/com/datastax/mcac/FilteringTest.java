@@ -2,7 +2,9 @@ package com.datastax.mcac;
 
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.google.common.io.Resources;
 import org.junit.Assert;
@@ -44,4 +46,58 @@ public class FilteringTest
         Assert.assertEquals(new FilteringRule.FilteringRuleMatch(3,thirdRule), FilteringRule.applyFilters("org.apache.cassandra.metrics.metric2", Arrays.asList(unaffectedByDenyRule, firstRule, secondRule, thirdRule)));
         Assert.assertEquals(new FilteringRule.FilteringRuleMatch(2,secondRule), FilteringRule.applyFilters("org.apache.cassandra.metrics.metric3", Arrays.asList(unaffectedByDenyRule, firstRule, secondRule, thirdRule)));
     }
+
+    @Test
+    public void testCompiledRulesMatchRegexScan() {
+        List<FilteringRule> rules = Arrays.asList(
+                new FilteringRule("deny", "org.apache.cassandra.metrics.table", FilteringRule.GLOBAL),
+                new FilteringRule("allow", "org.apache.cassandra.metrics.table.live_ss_table_count", FilteringRule.GLOBAL),
+                new FilteringRule("allow", "org.apache.cassandra.metrics.Table.LiveSSTableCount", FilteringRule.GLOBAL),
+                new FilteringRule("deny", "^jvm", FilteringRule.DATALOG_ONLY),
+                new FilteringRule("allow", "read_latency", FilteringRule.DATALOG_ONLY),
+                new FilteringRule("deny", "keyspace_[0-9]+\\.", FilteringRule.GLOBAL),
+                new FilteringRule("allow", "(write|range)_latency$", FilteringRule.GLOBAL),
+                new FilteringRule("deny", "ORG.APACHE.CASSANDRA.METRICS.TABLE.PENDING", FilteringRule.GLOBAL),
+                new FilteringRule("allow", "", FilteringRule.DATALOG_ONLY),
+                new FilteringRule("deny", "gc.count", FilteringRule.GLOBAL));
+
+        List<String> names = new ArrayList<>();
+        for (String metric : new String[]{ "live_ss_table_count", "LiveSSTableCount", "read_latency", "write_latency",
+                "range_latency", "pending_compactions", "PendingFlushes" })
+        {
+            for (String keyspace : new String[]{ "system", "keyspace_1", "keyspace_22" })
+            {
+                names.add("org.apache.cassandra.metrics.table." + metric + "." + keyspace + ".table");
+                names.add("org.apache.cassandra.metrics.Table." + metric + "." + keyspace + ".table");
+            }
+        }
+        names.addAll(Arrays.asList("jvm.gc.count", "jvm.gc_count", "my.jvm.gc", "", "org-apache-cassandra-metrics-table-read"));
+
+        // Every prefix of the rules, so each one gets to be the last matching rule
+        for (int i = 0; i <= rules.size(); i++)
+        {
+            List<FilteringRule> prefix = rules.subList(0, i);
+            CompiledFilteringRules compiled = CompiledFilteringRules.compile(prefix);
+
+            for (String name : names)
+                Assert.assertEquals(name, FilteringRule.applyFilters(name, prefix), compiled.apply(name));
+        }
+    }
+
+    @Test
+    public void testCompiledRulesRefuseInvalidPatterns() {
+        List<FilteringRule> rules = Arrays.asList(
+                new FilteringRule("deny", "org.apache.cassandra.metrics", FilteringRule.GLOBAL),
+                new FilteringRule("allow", "org.apache.cassandra.metrics.(table", FilteringRule.GLOBAL));
+
+        try
+        {
+            CompiledFilteringRules.compile(rules);
+            Assert.fail("Invalid pattern compiled");
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertEquals("Invalid pattern: org.apache.cassandra.metrics.(table", e.getMessage());
+        }
+    }
 }
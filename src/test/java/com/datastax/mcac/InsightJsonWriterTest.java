@@ -0,0 +1,144 @@
+package com.datastax.mcac;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.mcac.insights.Insight;
+import com.datastax.mcac.insights.InsightMetadata;
+import com.datastax.mcac.insights.events.InsightsClientStarted;
+import com.datastax.mcac.insights.metrics.Counter;
+import com.datastax.mcac.insights.metrics.Gauge;
+import com.datastax.mcac.insights.metrics.Histogram;
+import com.datastax.mcac.insights.metrics.Meter;
+import com.datastax.mcac.insights.metrics.RateStats;
+import com.datastax.mcac.insights.metrics.SamplingStats;
+import com.datastax.mcac.insights.metrics.Timer;
+import com.datastax.mcac.utils.JacksonUtil;
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InsightJsonWriterTest
+{
+    private static final Map<String, String> globalTags = ImmutableMap.of("host", "127.0.0.1", "cluster", "Test \"Cluster\"",
+            "datacenter", "dc1", "rack", "rack1");
+
+    @Test
+    public void testSameAsObjectMapper() throws Exception
+    {
+        SamplingStats samplingStats = new SamplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, 999.9, 3.25);
+        RateStats rateStats = new RateStats(1.5, 5.5, 15.5, Double.NaN);
+
+        Insight withMappingId = new Insight(new InsightMetadata("mapped", 42L, globalTags, InsightMetadata.InsightType.EVENT, "collectd-v1"), "data");
+
+        List<Insight> insights = Arrays.asList(
+                new Gauge("org.apache.cassandra.metrics.table.live_ss_table_count", 1L, globalTags, 42),
+                new Gauge("jvm.memory.heap.usage", 2L, globalTags, 0.75),
+                new Counter("org.apache.cassandra.metrics.client_request.failures", 3L, globalTags, Long.MAX_VALUE),
+                new Histogram("org.apache.cassandra.metrics.table.partition_size", 4L, globalTags, 1234, samplingStats),
+                new Meter("org.apache.cassandra.metrics.client_request.timeouts", 5L, globalTags, 99, rateStats, "SECONDS"),
+                new Timer("org.apache.cassandra.metrics.table.read_latency", 6L, ImmutableMap.of("bucket_35", "1", "bucket_inf", "20"),
+                        20, samplingStats, rateStats, "SECONDS", "MICROSECONDS"),
+                new Gauge("name with\nnewline and é", 7L, ImmutableMap.of("tag\n", "value\r\n"), -1),
+                new InsightsClientStarted(),
+                withMappingId);
+
+        InsightJsonWriter writer = new InsightJsonWriter(globalTags);
+
+        // Twice, the generator is reused from one insight to the next
+        for (int i = 0; i < 2; i++)
+        {
+            for (Insight insight : insights)
+            {
+                ByteBuf buf = Unpooled.buffer(16);
+                writer.write(buf, insight);
+
+                String line = buf.toString(StandardCharsets.UTF_8);
+                Assert.assertEquals("PUTINSIGHT " + JacksonUtil.writeValueAsString(insight) + "\n", line);
+                Assert.assertEquals(line, line.length() - 1, line.indexOf('\n'));
+                buf.release();
+            }
+        }
+    }
+
+    @Test
+    public void testReusedMetricInsight() throws Exception
+    {
+        SamplingStats samplingStats = new SamplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25);
+        RateStats rateStats = new RateStats(1.5, 5.5, 15.5, 0.25);
+
+        Map<String, String> bucketTags = new LinkedHashMap<>(globalTags);
+        bucketTags.put("bucket_35", "1");
+        bucketTags.put("bucket_60", "12");
+        bucketTags.put("bucket_inf", "20");
+
+        InsightJsonWriter writer = new InsightJsonWriter(globalTags);
+        MetricInsight insight = new MetricInsight();
+
+        insight.start("timer", 6L, InsightMetadata.InsightType.TIMER, 20)
+                .samplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25)
+                .rateStats(1.5, 5.5, 15.5, 0.25)
+                .units("SECONDS", "MICROSECONDS");
+        insight.bucket("bucket_35", 1);
+        insight.bucket("bucket_60", 12);
+        insight.bucket("bucket_inf", 20);
+        assertSameJson(new Timer("timer", 6L, bucketTags, 20, samplingStats, rateStats, "SECONDS", "MICROSECONDS"), writer, insight);
+
+        insight.start("meter", 5L, InsightMetadata.InsightType.METER, 99)
+                .rateStats(1.5, 5.5, 15.5, 0.25)
+                .units("SECONDS", null);
+        assertSameJson(new Meter("meter", 5L, globalTags, 99, rateStats, "SECONDS"), writer, insight);
+
+        insight.start("histogram", 4L, InsightMetadata.InsightType.HISTOGRAM, 1234)
+                .samplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25);
+        assertSameJson(new Histogram("histogram", 4L, globalTags, 1234, samplingStats), writer, insight);
+    }
+
+    @Test
+    public void testSparseBuckets() throws Exception
+    {
+        SamplingStats samplingStats = new SamplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25);
+
+        // bucket_35 and bucket_103 are empty, bucket_179 has the same count as bucket_60 before it
+        Map<String, String> bucketTags = new LinkedHashMap<>(globalTags);
+        bucketTags.put(MetricInsight.BUCKET_ENCODING_TAG, MetricInsight.SPARSE_BUCKETS_V1);
+        bucketTags.put("bucket_60", "12");
+        bucketTags.put("bucket_310", "20");
+        bucketTags.put("bucket_inf", "20");
+
+        InsightJsonWriter writer = new InsightJsonWriter(globalTags);
+        MetricInsight insight = new MetricInsight();
+
+        insight.start("histogram", 6L, InsightMetadata.InsightType.HISTOGRAM, 20)
+                .samplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25)
+                .sparseBuckets();
+        insight.bucket("bucket_35", 0);
+        insight.bucket("bucket_60", 12);
+        insight.bucket("bucket_103", 12);
+        insight.bucket("bucket_179", 12);
+        insight.bucket("bucket_310", 20);
+        insight.infBucket(20);
+        assertSameJson(new Histogram("histogram", 6L, bucketTags, 20, samplingStats), writer, insight);
+
+        // Nothing but the encoding when there is no bucket at all
+        bucketTags = new LinkedHashMap<>(globalTags);
+        bucketTags.put(MetricInsight.BUCKET_ENCODING_TAG, MetricInsight.SPARSE_BUCKETS_V1);
+        insight.start("histogram", 6L, InsightMetadata.InsightType.HISTOGRAM, 20)
+                .samplingStats(1, 1000, 12.5, 10, 20, 95.5, 98, 99, Double.NaN, 3.25)
+                .sparseBuckets();
+        assertSameJson(new Histogram("histogram", 6L, bucketTags, 20, samplingStats), writer, insight);
+    }
+
+    private static void assertSameJson(Insight expected, InsightJsonWriter writer, MetricInsight insight) throws Exception
+    {
+        ByteBuf buf = Unpooled.buffer(16);
+        writer.write(buf, insight);
+        Assert.assertEquals("PUTINSIGHT " + JacksonUtil.writeValueAsString(expected) + "\n", buf.toString(StandardCharsets.UTF_8));
+        buf.release();
+    }
+}
@@ -0,0 +1,86 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyBucketMappingTest
+{
+    private static final long[] latencyOffsets = { 35000, 60000, 103000, 179000, 310000, 535000, 924000, 1597000 };
+
+    // The walk over every snapshot bucket the mapping replaces
+    private static List<Long> walk(long[] buckets, long[] values)
+    {
+        List<Long> reported = new ArrayList<>();
+        int outputIndex = 0;
+        long cumulativeCount = 0;
+        for (int i = 0; i < values.length; i++)
+        {
+            if (outputIndex < latencyOffsets.length && buckets[i] > latencyOffsets[outputIndex])
+            {
+                reported.add(cumulativeCount);
+                outputIndex++;
+            }
+
+            cumulativeCount += values[i];
+        }
+
+        while (outputIndex++ <= latencyOffsets.length)
+            reported.add(cumulativeCount);
+
+        return reported;
+    }
+
+    private static List<Long> prefixSum(LatencyBucketMapping mapping, long[] values)
+    {
+        List<Long> reported = new ArrayList<>();
+        int i = 0;
+        long cumulativeCount = 0;
+        for (int end : mapping.ends)
+        {
+            for (; i < end; i++)
+                cumulativeCount += values[i];
+            reported.add(cumulativeCount);
+        }
+
+        for (; i < values.length; i++)
+            cumulativeCount += values[i];
+
+        for (int outputIndex = mapping.ends.length; outputIndex <= latencyOffsets.length; outputIndex++)
+            reported.add(cumulativeCount);
+
+        return reported;
+    }
+
+    @Test
+    public void testSameCountsAsBucketWalk()
+    {
+        Random random = new Random(7);
+        List<long[]> offsets = new ArrayList<>();
+        offsets.add(new EstimatedHistogram(90).getBucketOffsets());
+        offsets.add(new EstimatedHistogram(165).getBucketOffsets());
+        // Too few buckets to reach every latency bucket, and several latency buckets within one snapshot bucket
+        offsets.add(new long[]{ 1000, 100000, 200000 });
+        offsets.add(new long[]{ 10, 20000000 });
+        offsets.add(new long[0]);
+
+        for (long[] buckets : offsets)
+        {
+            LatencyBucketMapping mapping = LatencyBucketMapping.compute(buckets, latencyOffsets);
+            Assert.assertEquals(buckets.length, mapping.inputBuckets);
+
+            for (int n = 0; n < 100; n++)
+            {
+                long[] values = new long[buckets.length];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = random.nextInt(4) == 0 ? random.nextInt(1000) : 0;
+
+                Assert.assertEquals(walk(buckets, values), prefixSum(mapping, values));
+            }
+        }
+    }
+}
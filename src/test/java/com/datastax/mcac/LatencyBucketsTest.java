@@ -0,0 +1,107 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyBucketsTest
+{
+    @Test
+    public void testBuiltInLayouts()
+    {
+        Assert.assertEquals("micros", LatencyBuckets.DEFAULT.type);
+        Assert.assertEquals(25, LatencyBuckets.DEFAULT.bucketNames.length);
+        Assert.assertEquals("bucket_35", LatencyBuckets.DEFAULT.bucketNames[0]);
+        Assert.assertEquals(35000, LatencyBuckets.DEFAULT.offsetsNanos[0]);
+
+        Assert.assertEquals("micros_coarse", LatencyBuckets.COARSE.type);
+        Assert.assertEquals(13, LatencyBuckets.COARSE.bucketNames.length);
+        Assert.assertEquals("bucket_17436917", LatencyBuckets.COARSE.bucketNames[12]);
+
+        Assert.assertSame(LatencyBuckets.FINE, LatencyBuckets.of("fine", null));
+        Assert.assertEquals(10, LatencyBuckets.FINE.offsetsMicros[0]);
+        Assert.assertTrue(LatencyBuckets.FINE.offsetsMicros.length > 2 * LatencyBuckets.DEFAULT.offsetsMicros.length);
+    }
+
+    @Test
+    public void testFineLayoutFollowsDecayingHistogramBuckets()
+    {
+        long[] offsets = new EstimatedHistogram(165).getBucketOffsets();
+        LatencyBucketMapping mapping = LatencyBuckets.FINE.mapping(offsets);
+
+        // Each fine bucket ends right after the histogram bucket it was rounded up from
+        for (int i = 0; i < mapping.ends.length; i++)
+        {
+            long lastCounted = offsets[mapping.ends[i] - 1];
+            Assert.assertEquals(LatencyBuckets.FINE.offsetsMicros[i], (lastCounted + 999) / 1000);
+        }
+    }
+
+    @Test
+    public void testTypesDbEntry()
+    {
+        LatencyBuckets buckets = LatencyBuckets.of("table", Arrays.asList(100L, 1000L));
+        Assert.assertEquals("micros_table", buckets.type);
+
+        byte[] micros = { CollectdBinaryEncoder.DS_COUNTER, CollectdBinaryEncoder.DS_GAUGE, CollectdBinaryEncoder.DS_COUNTER };
+        Assert.assertEquals("micros_table count:COUNTER:0:U, sum:GAUGE:0:U, bucket_100:COUNTER:0:U, bucket_1000:COUNTER:0:U, bucket_inf:COUNTER:0:U",
+                buckets.typesDbEntry(micros));
+        Assert.assertEquals(5, buckets.dsTypes(null).length);
+
+        CollectdTypes types = CollectdTypes.parse(Collections.singletonList("micros count:COUNTER:0:U, sum:GAUGE:0:U, bucket_35:COUNTER:0:U"))
+                .withLatencyBuckets(Collections.singletonList(buckets));
+        Assert.assertArrayEquals(buckets.dsTypes(micros), types.get("micros_table"));
+    }
+
+    @Test
+    public void testRules()
+    {
+        LatencyBucketRule coarse = new LatencyBucketRule("org.apache.cassandra.metrics.table", "coarse", null);
+        LatencyBucketRule fine = new LatencyBucketRule("client_request", "fine", null);
+
+        Assert.assertSame(LatencyBuckets.COARSE, LatencyBucketRule.applyRules("org.apache.cassandra.metrics.table.read_latency.ks.tbl", Arrays.asList(coarse, fine)));
+        Assert.assertSame(LatencyBuckets.FINE, LatencyBucketRule.applyRules("org.apache.cassandra.metrics.client_request.latency.read", Arrays.asList(coarse, fine)));
+        Assert.assertSame(LatencyBuckets.DEFAULT, LatencyBucketRule.applyRules("org.apache.cassandra.metrics.commit_log.waiting_on_commit", Arrays.asList(coarse, fine)));
+
+        Configuration config = new Configuration();
+        config.latency_bucket_rules = Arrays.asList(coarse, fine, new LatencyBucketRule("ks", "default", null));
+        Assert.assertEquals(Arrays.asList(LatencyBuckets.COARSE, LatencyBuckets.FINE), Arrays.asList(config.latencyBucketLayouts().toArray()));
+    }
+
+    @Test
+    public void testInvalidLayouts()
+    {
+        for (Runnable invalid : Arrays.<Runnable>asList(
+                () -> LatencyBuckets.of("unknown", null),
+                () -> LatencyBuckets.of("Bad-Name", Arrays.asList(1L, 2L)),
+                () -> LatencyBuckets.of("coarse", Arrays.asList(1L, 2L)),
+                () -> LatencyBuckets.of("decreasing", Arrays.asList(2L, 1L))))
+        {
+            try
+            {
+                invalid.run();
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+
+        Configuration config = new Configuration();
+        config.latency_bucket_rules = Arrays.asList(new LatencyBucketRule("a", "custom", Arrays.asList(1L, 2L)),
+                new LatencyBucketRule("b", "custom", Arrays.asList(1L, 3L)));
+        try
+        {
+            config.latencyBucketLayouts();
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+}
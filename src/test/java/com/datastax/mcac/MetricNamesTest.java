@@ -0,0 +1,83 @@
+package com.datastax.mcac;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricNamesTest
+{
+    // The regex chain MetricNames.clean replaces
+    private static String regexClean(String name)
+    {
+        if (name.startsWith("jvm"))
+        {
+            name = name.replaceAll("\\-", "_");
+            return name.toLowerCase();
+        }
+
+        name = name.replaceAll("\\s*,\\s*", ",");
+        name = name.replaceAll("\\s+", "_");
+        name = name.replaceAll("\\\\", "_");
+        name = name.replaceAll("/", "_");
+
+        name = name.replaceAll("[^a-zA-Z0-9\\.\\_]+", ".");
+        name = name.replaceAll("\\.+", ".");
+        name = name.replaceAll("_+", "_");
+
+        name = String.join("_", name.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])"));
+        name = name.replaceAll("\\._", "\\.");
+        name = name.replaceAll("_+", "_");
+
+        return name.toLowerCase();
+    }
+
+    @Test
+    public void testCassandraMetricNames() throws IOException, URISyntaxException
+    {
+        List<String> names = Files.readAllLines(Paths.get(getClass().getResource("/metric_names.txt").toURI()), StandardCharsets.UTF_8)
+                .stream()
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .collect(Collectors.toList());
+
+        for (String name : names)
+            Assert.assertEquals(name, regexClean(name), MetricNames.clean(name));
+
+        Assert.assertEquals("org.apache.cassandra.metrics.table.live_ss_table_count.ks1.users",
+                MetricNames.clean("org.apache.cassandra.metrics.Table.LiveSSTableCount.ks1.users"));
+    }
+
+    @Test
+    public void testRandomNames()
+    {
+        String alphabet = "aZbYAB09._-_ ,\t/\\:#é";
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++)
+        {
+            char[] name = new char[random.nextInt(12)];
+            for (int j = 0; j < name.length; j++)
+                name[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+
+            String s = new String(name);
+            Assert.assertEquals(s, regexClean(s), MetricNames.clean(s));
+        }
+    }
+
+    @Test
+    public void testCachedNames()
+    {
+        MetricNames metricNames = new MetricNames();
+        String name = "org.apache.cassandra.metrics.Table.ReadLatency.ks1.users";
+
+        Assert.assertEquals(MetricNames.clean(name), metricNames.cleanCached(name));
+        Assert.assertSame(metricNames.cleanCached(name), metricNames.cleanCached(name));
+    }
+}
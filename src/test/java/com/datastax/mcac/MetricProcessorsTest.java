@@ -0,0 +1,73 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricProcessorsTest
+{
+    private static final Function<String, Integer> A = (tags) -> 1;
+    private static final Function<String, Integer> B = (tags) -> 2;
+    private static final Function<String, Integer> C = (tags) -> 3;
+
+    @Test
+    public void testPartitions()
+    {
+        MetricProcessors processors = new MetricProcessors(2).with(Collections.emptyList(), Arrays.asList(
+                new MetricProcessors.Entry("a", A, 0, MetricProcessors.Filter.REPORTED, true),
+                new MetricProcessors.Entry("b", B, 1, MetricProcessors.Filter.INSIGHT_FILTERED, false),
+                new MetricProcessors.Entry("c", C, 0, MetricProcessors.Filter.GLOBALLY_FILTERED, true)));
+
+        Assert.assertEquals(Collections.singletonList(A), processors.processors(0, false, false));
+        Assert.assertEquals(Collections.singletonList(A), processors.processors(0, false, true));
+        Assert.assertTrue(processors.processors(0, true, false).isEmpty());
+        Assert.assertEquals(Collections.singletonList(B), processors.processors(1, true, false));
+        Assert.assertTrue(processors.processors(1, true, true).isEmpty());
+
+        // Globally filtered metrics are kept for the next filter reload, but never reported
+        Assert.assertEquals(C, processors.entry("c").processor);
+        Assert.assertFalse(processors.entry("c").essential);
+        Assert.assertEquals(1, processors.count(MetricProcessors.Filter.GLOBALLY_FILTERED));
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable()
+    {
+        MetricProcessors before = new MetricProcessors(1).with(Collections.emptyList(), Arrays.asList(
+                new MetricProcessors.Entry("a", A, 0, MetricProcessors.Filter.REPORTED, false),
+                new MetricProcessors.Entry("b", B, 0, MetricProcessors.Filter.REPORTED, false)));
+
+        MetricProcessors after = before.with(Collections.singletonList("a"),
+                Collections.singletonList(new MetricProcessors.Entry("c", C, 0, MetricProcessors.Filter.REPORTED, false)));
+
+        Assert.assertEquals(Arrays.asList(A, B), before.processors(0, false, false));
+        Assert.assertEquals(Arrays.asList(B, C), after.processors(0, false, false));
+
+        MetricProcessors refiltered = after.replaceAll(entry -> new MetricProcessors.Entry(entry.name, entry.processor,
+                entry.tier, MetricProcessors.Filter.INSIGHT_FILTERED, entry.essential));
+
+        Assert.assertTrue(refiltered.processors(0, false, false).isEmpty());
+        Assert.assertEquals(Arrays.asList(B, C), refiltered.processors(0, true, false));
+        Assert.assertEquals(Arrays.asList(B, C), after.processors(0, false, false));
+    }
+
+    @Test
+    public void testBatch()
+    {
+        MetricProcessors before = new MetricProcessors(1).with(Collections.emptyList(), Arrays.asList(
+                new MetricProcessors.Entry("a", A, 0, MetricProcessors.Filter.REPORTED, false),
+                new MetricProcessors.Entry("b", B, 0, MetricProcessors.Filter.REPORTED, false)));
+
+        MetricProcessors after = before.with(Arrays.asList("a", "missing"),
+                Arrays.asList(new MetricProcessors.Entry("c", C, 0, MetricProcessors.Filter.REPORTED, false),
+                        new MetricProcessors.Entry("b", A, 0, MetricProcessors.Filter.INSIGHT_FILTERED, false)));
+
+        Assert.assertEquals(Collections.singletonList(C), after.processors(0, false, false));
+        Assert.assertEquals(Collections.singletonList(A), after.processors(0, true, false));
+        Assert.assertNull(after.entry("a"));
+        Assert.assertSame(after, after.with(Collections.emptyList(), Collections.emptyList()));
+    }
+}
@@ -0,0 +1,401 @@
+package com.datastax.mcac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrometheusScrapeTest
+{
+    private static final CollectdTypes types = CollectdTypes.parse(Arrays.asList(
+            "gauge value:GAUGE:U:U",
+            "counter value:DERIVE:0:U",
+            "micros count:DERIVE:0:U, sum:GAUGE:0:U, bucket_35:GAUGE:0:U, bucket_inf:GAUGE:0:U"));
+
+    private static void writeLines(PrometheusScrape scrape)
+    {
+        scrape.startLine("org.apache.cassandra.metrics.table.live_ss_table_count", "gauge").value(12.5);
+        scrape.endLine();
+        scrape.startLine("org.apache.cassandra.metrics.client_request.timeouts", "counter").value(7L);
+        scrape.endLine();
+        scrape.startLine("org.apache.cassandra.metrics.table.read_latency", "micros");
+        scrape.value(10L);
+        scrape.value(1234.5);
+        scrape.value(4L);
+        scrape.value(10L);
+        scrape.endLine();
+
+        // Left out, as collectd would reject them
+        scrape.startLine("org.apache.cassandra.metrics.table.write_latency", "micros").value(10L);
+        Assert.assertFalse(scrape.endLine());
+        scrape.startLine("jvm.unknown", "unknown").value(1L);
+        Assert.assertFalse(scrape.endLine());
+
+        scrape.startLine("jvm.gc.\"quoted\"", "gauge-instance").value(Double.POSITIVE_INFINITY);
+        scrape.endLine();
+    }
+
+    /**
+     * The lines above then a last gauge, in chunks of the given size
+     */
+    private static PrometheusExporter.Scrape scrape(PrometheusScrape.Format format, ByteBufAllocator allocator, int chunkSize)
+    {
+        PrometheusScrape scrape = new PrometheusScrape(types, format, allocator, "127.0.0.1", "Test Cluster", "dc1", "rack1");
+        return new PrometheusExporter.Scrape()
+        {
+            boolean rendered;
+
+            @Override
+            public ByteBuf nextChunk()
+            {
+                if (!rendered)
+                {
+                    writeLines(scrape);
+                    scrape.startLine("jvm.gc.\"quoted\"", "gauge-instance").discardLine();
+                    scrape.startLine("jvm.gc.last", "gauge").value(Double.NaN);
+                    scrape.endLine();
+                    rendered = true;
+                }
+
+                return scrape.flush(chunkSize);
+            }
+
+            @Override
+            public boolean isComplete()
+            {
+                return rendered && scrape.isFlushed();
+            }
+
+            @Override
+            public void close()
+            {
+                scrape.release();
+            }
+        };
+    }
+
+    private static PrometheusExporter.Scrape scrape(PrometheusScrape.Format format, ByteBufAllocator allocator)
+    {
+        return scrape(format, allocator, 300);
+    }
+
+    private static String render(PrometheusScrape.Format format)
+    {
+        return render(format, 300);
+    }
+
+    private static String render(PrometheusScrape.Format format, int chunkSize)
+    {
+        PrometheusExporter.Scrape scrape = scrape(format, UnpooledByteBufAllocator.DEFAULT, chunkSize);
+        try
+        {
+            StringBuilder text = new StringBuilder();
+            while (!scrape.isComplete())
+            {
+                ByteBuf chunk = scrape.nextChunk();
+                text.append(chunk.toString(StandardCharsets.ISO_8859_1));
+                chunk.release();
+            }
+            return text.toString();
+        }
+        finally
+        {
+            scrape.close();
+        }
+    }
+
+    @Test
+    public void testWritePrometheusSeries()
+    {
+        String labels = "cluster=\"Test Cluster\",dc=\"dc1\",instance=\"127.0.0.1\",mcac=";
+        Assert.assertEquals(
+                "# HELP collectd_mcac_gauge write_prometheus plugin: 'mcac' Type: 'gauge', Dstype: 'gauge', Dsname: 'value'\n"
+                + "# TYPE collectd_mcac_gauge gauge\n"
+                + "collectd_mcac_gauge{" + labels + "\"org.apache.cassandra.metrics.table.live_ss_table_count\",rack=\"rack1\"} 12.5\n"
+                + "collectd_mcac_gauge{" + labels + "\"jvm.gc.\\\"quoted\\\"\",rack=\"rack1\",type=\"instance\"} +Inf\n"
+                + "collectd_mcac_gauge{" + labels + "\"jvm.gc.last\",rack=\"rack1\"} NaN\n"
+                + "# HELP collectd_mcac_counter_total write_prometheus plugin: 'mcac' Type: 'counter', Dstype: 'derive', Dsname: 'value'\n"
+                + "# TYPE collectd_mcac_counter_total counter\n"
+                + "collectd_mcac_counter_total{" + labels + "\"org.apache.cassandra.metrics.client_request.timeouts\",rack=\"rack1\"} 7\n"
+                + "# HELP collectd_mcac_micros_count_total write_prometheus plugin: 'mcac' Type: 'micros', Dstype: 'derive', Dsname: 'count'\n"
+                + "# TYPE collectd_mcac_micros_count_total counter\n"
+                + "collectd_mcac_micros_count_total{" + labels + "\"org.apache.cassandra.metrics.table.read_latency\",rack=\"rack1\"} 10\n"
+                + "# HELP collectd_mcac_micros_sum write_prometheus plugin: 'mcac' Type: 'micros', Dstype: 'gauge', Dsname: 'sum'\n"
+                + "# TYPE collectd_mcac_micros_sum gauge\n"
+                + "collectd_mcac_micros_sum{" + labels + "\"org.apache.cassandra.metrics.table.read_latency\",rack=\"rack1\"} 1234.5\n"
+                + "# HELP collectd_mcac_micros_bucket_35 write_prometheus plugin: 'mcac' Type: 'micros', Dstype: 'gauge', Dsname: 'bucket_35'\n"
+                + "# TYPE collectd_mcac_micros_bucket_35 gauge\n"
+                + "collectd_mcac_micros_bucket_35{" + labels + "\"org.apache.cassandra.metrics.table.read_latency\",rack=\"rack1\"} 4\n"
+                + "# HELP collectd_mcac_micros_bucket_inf write_prometheus plugin: 'mcac' Type: 'micros', Dstype: 'gauge', Dsname: 'bucket_inf'\n"
+                + "# TYPE collectd_mcac_micros_bucket_inf gauge\n"
+                + "collectd_mcac_micros_bucket_inf{" + labels + "\"org.apache.cassandra.metrics.table.read_latency\",rack=\"rack1\"} 10\n",
+                render(PrometheusScrape.Format.TEXT));
+    }
+
+    @Test
+    public void testFamiliesAreWrittenOnceWhateverTheChunkSize()
+    {
+        for (PrometheusScrape.Format format : PrometheusScrape.Format.values())
+        {
+            String whole = render(format, 1 << 20);
+            Assert.assertEquals(whole, render(format, 1));
+            Assert.assertEquals(whole, render(format, 100));
+        }
+
+        String text = render(PrometheusScrape.Format.OPENMETRICS, 1);
+        Assert.assertEquals(text.indexOf("# TYPE collectd_mcac_gauge "), text.lastIndexOf("# TYPE collectd_mcac_gauge "));
+    }
+
+    @Test
+    public void testOpenMetrics()
+    {
+        String text = render(PrometheusScrape.Format.OPENMETRICS);
+        Assert.assertTrue(text, text.contains("# TYPE collectd_mcac_counter counter\n"
+                + "collectd_mcac_counter_total{cluster=\"Test Cluster\",dc=\"dc1\",instance=\"127.0.0.1\",mcac=\"org.apache.cassandra.metrics.client_request.timeouts\",rack=\"rack1\"} 7\n"));
+        Assert.assertTrue(text, text.contains("# TYPE collectd_mcac_micros_count counter\n"));
+        Assert.assertTrue(text, text.endsWith("} 10\n# EOF\n"));
+    }
+
+    @Test
+    public void testProtobuf()
+    {
+        byte[] bytes = render(PrometheusScrape.Format.PROTOBUF).getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuf buf = Unpooled.wrappedBuffer(bytes);
+
+        // Length delimited MetricFamily messages, starting with their name
+        int families = 0;
+        while (buf.isReadable())
+        {
+            int length = readVarint(buf);
+            int end = buf.readerIndex() + length;
+            Assert.assertEquals(0x0a, buf.readByte());
+            byte[] name = new byte[readVarint(buf)];
+            buf.readBytes(name);
+            if (families++ == 0)
+                Assert.assertEquals("collectd_mcac_gauge", new String(name, StandardCharsets.US_ASCII));
+            buf.readerIndex(end);
+        }
+        Assert.assertEquals(6, families);
+
+        // The first gauge: its labels and the little endian double of its value
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(text.contains("\n\u0004rack\u0012\u0005rack1"));
+        ByteBuf value = Unpooled.buffer().writeByte(0x12).writeByte(9).writeByte(0x09).writeLong(Long.reverseBytes(Double.doubleToRawLongBits(12.5)));
+        Assert.assertTrue(text.contains(value.toString(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void testNegotiation()
+    {
+        Assert.assertEquals(PrometheusScrape.Format.TEXT, PrometheusScrape.Format.negotiate(null));
+        Assert.assertEquals(PrometheusScrape.Format.TEXT, PrometheusScrape.Format.negotiate("text/plain;version=0.0.4;q=1,*/*;q=0.1"));
+        // What prometheus asks for
+        Assert.assertEquals(PrometheusScrape.Format.OPENMETRICS, PrometheusScrape.Format.negotiate(
+                "application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        Assert.assertEquals(PrometheusScrape.Format.PROTOBUF, PrometheusScrape.Format.negotiate(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited,application/openmetrics-text;version=1.0.0;q=0.8"));
+        Assert.assertEquals(PrometheusScrape.Format.TEXT, PrometheusScrape.Format.negotiate(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text,text/plain;q=0.5"));
+    }
+
+    @Test
+    public void testScrapeCache() throws Exception
+    {
+        String expected = render(PrometheusScrape.Format.TEXT);
+        AtomicInteger rendered = new AtomicInteger();
+        PrometheusScrapeCache cache = new PrometheusScrapeCache((format, allocator) -> {
+            rendered.incrementAndGet();
+            return scrape(format, allocator);
+        }, 200);
+
+        // The second scrape joins the first one while it's rendered, and renders the last chunk for both
+        PrometheusExporter.Scrape first = cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT);
+        StringBuilder firstText = new StringBuilder(read(first.nextChunk()));
+        PrometheusExporter.Scrape second = cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT);
+        StringBuilder secondText = new StringBuilder();
+        while (!second.isComplete())
+            secondText.append(read(second.nextChunk()));
+        second.close();
+        while (!first.isComplete())
+            firstText.append(read(first.nextChunk()));
+        first.close();
+
+        Assert.assertEquals(expected, firstText.toString());
+        Assert.assertEquals(expected, secondText.toString());
+        Assert.assertEquals(1, rendered.get());
+
+        // Served from the cache until it expires, each format being rendered on its own
+        readAll(cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT));
+        readAll(cache.apply(PrometheusScrape.Format.PROTOBUF, UnpooledByteBufAllocator.DEFAULT));
+        Assert.assertEquals(2, rendered.get());
+        Thread.sleep(250);
+        Assert.assertEquals(expected, readAll(cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT)));
+        Assert.assertEquals(3, rendered.get());
+
+        cache.clear();
+    }
+
+    @Test
+    public void testFailedScrapeCache()
+    {
+        ByteBuf first = Unpooled.copiedBuffer("# first chunk\n", StandardCharsets.US_ASCII);
+        AtomicInteger rendered = new AtomicInteger();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        PrometheusScrapeCache cache = new PrometheusScrapeCache((format, allocator) -> {
+            rendered.incrementAndGet();
+            return new PrometheusExporter.Scrape()
+            {
+                @Override
+                public ByteBuf nextChunk()
+                {
+                    if (calls.incrementAndGet() == 1)
+                        return first;
+
+                    throw new IllegalStateException("Broken metric");
+                }
+
+                @Override
+                public boolean isComplete()
+                {
+                    return false;
+                }
+
+                @Override
+                public void close()
+                {
+                    closed.incrementAndGet();
+                }
+            };
+        }, 60_000);
+
+        PrometheusExporter.Scrape one = cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT);
+        PrometheusExporter.Scrape two = cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT);
+        read(one.nextChunk());
+
+        try
+        {
+            one.nextChunk();
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertEquals("Broken metric", e.getMessage());
+        }
+
+        // Closed at once, the other reader is cut short without calling it again
+        Assert.assertEquals(1, closed.get());
+        try
+        {
+            two.nextChunk();
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertEquals("The shared prometheus scrape failed", e.getMessage());
+        }
+        Assert.assertEquals(2, calls.get());
+        Assert.assertFalse(two.isComplete());
+
+        one.close();
+        two.close();
+        Assert.assertEquals(0, first.refCnt());
+        Assert.assertEquals(1, closed.get());
+
+        // The next scrape starts over
+        cache.apply(PrometheusScrape.Format.TEXT, UnpooledByteBufAllocator.DEFAULT).close();
+        Assert.assertEquals(2, rendered.get());
+        cache.clear();
+    }
+
+    private static String readAll(PrometheusExporter.Scrape scrape)
+    {
+        StringBuilder text = new StringBuilder();
+        while (!scrape.isComplete())
+            text.append(read(scrape.nextChunk()));
+        scrape.close();
+        return text.toString();
+    }
+
+    private static String read(ByteBuf chunk)
+    {
+        try
+        {
+            return chunk.toString(StandardCharsets.ISO_8859_1);
+        }
+        finally
+        {
+            chunk.release();
+        }
+    }
+
+    private static int readVarint(ByteBuf buf)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    @Test
+    public void testExporter() throws Exception
+    {
+        String expected = render(PrometheusScrape.Format.TEXT);
+        PrometheusExporter exporter = PrometheusExporter.start(new InetSocketAddress("127.0.0.1", 0), PrometheusScrapeTest::scrape, 0);
+        try
+        {
+            URL url = new URL("http://127.0.0.1:" + exporter.address().getPort() + "/metrics");
+
+            HttpURLConnection plain = (HttpURLConnection) url.openConnection();
+            Assert.assertEquals(200, plain.getResponseCode());
+            Assert.assertTrue(plain.getContentType().startsWith("text/plain; version=0.0.4"));
+            Assert.assertEquals(expected, read(plain.getInputStream()));
+
+            HttpURLConnection gzip = (HttpURLConnection) url.openConnection();
+            gzip.setRequestProperty("Accept-Encoding", "gzip");
+            Assert.assertEquals("gzip", gzip.getContentEncoding());
+            Assert.assertEquals(expected, read(new GZIPInputStream(gzip.getInputStream())));
+
+            HttpURLConnection openMetrics = (HttpURLConnection) url.openConnection();
+            openMetrics.setRequestProperty("Accept", "application/openmetrics-text;version=1.0.0,text/plain;version=0.0.4;q=0.5");
+            Assert.assertTrue(openMetrics.getContentType().startsWith("application/openmetrics-text"));
+            Assert.assertEquals(render(PrometheusScrape.Format.OPENMETRICS), read(openMetrics.getInputStream()));
+
+            HttpURLConnection post = (HttpURLConnection) url.openConnection();
+            post.setRequestMethod("POST");
+            Assert.assertEquals(405, post.getResponseCode());
+        }
+        finally
+        {
+            exporter.close();
+        }
+    }
+
+    private static String read(InputStream in) throws Exception
+    {
+        try (InputStream is = in)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; )
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReportingCursorTest
+{
+    private static List<Function<String, Integer>> processors(int count)
+    {
+        List<Function<String, Integer>> processors = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            processors.add((tags) -> 1);
+
+        return processors;
+    }
+
+    /**
+     * @return the number of metrics written until the cursor paused
+     */
+    private static int write(ReportingCursor cursor)
+    {
+        int written = 0;
+        while (!cursor.isPaused())
+        {
+            cursor.next();
+            written++;
+        }
+
+        return written;
+    }
+
+    @Test
+    public void testSlicesCoverThePassOnce()
+    {
+        ReportingCursor cursor = new ReportingCursor(processors(7), "", processors(3), "mcac_filtered=true");
+
+        int[] written = new int[3];
+        for (int slice = 0; slice < written.length; slice++)
+        {
+            cursor.limitTo(slice, written.length);
+            written[slice] = write(cursor);
+        }
+
+        // Rounded up, the last slice takes what's left
+        Assert.assertArrayEquals(new int[]{ 4, 3, 3 }, written);
+        Assert.assertTrue(cursor.isDone());
+    }
+
+    @Test
+    public void testMoreSlicesThanMetrics()
+    {
+        ReportingCursor cursor = new ReportingCursor(processors(2), "", Collections.emptyList(), "mcac_filtered=true");
+
+        int[] written = new int[5];
+        for (int slice = 0; slice < written.length; slice++)
+        {
+            cursor.limitTo(slice, written.length);
+            written[slice] = write(cursor);
+        }
+
+        Assert.assertArrayEquals(new int[]{ 1, 0, 1, 0, 0 }, written);
+        Assert.assertTrue(cursor.isDone());
+    }
+
+    @Test
+    public void testSliceGoesOnFromWhereThePassPaused()
+    {
+        ReportingCursor cursor = new ReportingCursor(processors(6), "", processors(4), "mcac_filtered=true");
+        cursor.limitTo(0, 2);
+
+        // Paused part way through the slice, e.g. as collectd stopped reading
+        for (int i = 0; i < 3; i++)
+            cursor.next();
+        Assert.assertFalse(cursor.isPaused());
+
+        // A slice late to finish still ends where the next one does
+        cursor.limitTo(1, 2);
+        Assert.assertEquals(7, write(cursor));
+        Assert.assertTrue(cursor.isDone());
+    }
+
+    @Test
+    public void testTagsAndAbandon()
+    {
+        ReportingCursor cursor = new ReportingCursor(processors(2), "", processors(2), "mcac_filtered=true");
+        cursor.limitTo(0, 2);
+
+        Assert.assertEquals("", cursor.tags());
+        cursor.next();
+        cursor.next();
+        Assert.assertTrue(cursor.isPaused());
+        Assert.assertFalse(cursor.isDone());
+        Assert.assertEquals("mcac_filtered=true", cursor.tags());
+
+        Assert.assertEquals(2, cursor.abandon());
+        Assert.assertTrue(cursor.isDone());
+        Assert.assertTrue(cursor.isPaused());
+    }
+}
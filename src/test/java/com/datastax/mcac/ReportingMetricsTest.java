@@ -0,0 +1,74 @@
+package com.datastax.mcac;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReportingMetricsTest
+{
+    private static final String PREFIX = "com.datastax.mcac.reporting.";
+
+    @Test
+    public void testTimedAddsTheWriteTime()
+    {
+        Counter nanos = new Counter();
+        Function<String, Integer> timed = ReportingMetrics.timed(nanos, (tags) -> {
+            try
+            {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return tags.length();
+        });
+
+        Assert.assertEquals(3, (int) timed.apply("abc"));
+        Assert.assertTrue(nanos.getCount() >= 5_000_000);
+
+        // A failed write still counts
+        long before = nanos.getCount();
+        Function<String, Integer> failing = ReportingMetrics.timed(nanos, (tags) -> {
+            throw new IllegalStateException();
+        });
+
+        try
+        {
+            failing.apply("");
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertTrue(nanos.getCount() > before);
+        }
+    }
+
+    @Test
+    public void testResponseGaugesAreBoundToTheLastClient()
+    {
+        MetricRegistry registry = new MetricRegistry();
+        AtomicLong success = new AtomicLong(1);
+        AtomicLong error = new AtomicLong(2);
+        ReportingMetrics first = new ReportingMetrics(registry, success, error);
+
+        Assert.assertEquals(1L, registry.getGauges().get(PREFIX + "collectd_success_responses").getValue());
+        Assert.assertEquals(2L, registry.getGauges().get(PREFIX + "collectd_error_responses").getValue());
+
+        // A restarted client replaces the gauges, but shares the counters and meters
+        ReportingMetrics second = new ReportingMetrics(registry, new AtomicLong(3), new AtomicLong(4));
+        Gauge<?> successGauge = registry.getGauges().get(PREFIX + "collectd_success_responses");
+        success.set(10);
+        Assert.assertEquals(3L, successGauge.getValue());
+        Assert.assertEquals(4L, registry.getGauges().get(PREFIX + "collectd_error_responses").getValue());
+
+        first.linesWritten.mark(2);
+        Assert.assertSame(first.linesWritten, second.linesWritten);
+        Assert.assertEquals(2, registry.meter(PREFIX + "lines_written").getCount());
+    }
+}
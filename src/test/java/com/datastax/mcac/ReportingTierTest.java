@@ -0,0 +1,59 @@
+package com.datastax.mcac;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReportingTierTest
+{
+    @Test
+    public void testRules()
+    {
+        List<ReportingIntervalRule> rules = Arrays.asList(
+                new ReportingIntervalRule("org.apache.cassandra.metrics.table", 120),
+                new ReportingIntervalRule("org.apache.cassandra.metrics.table.read_latency", 10));
+
+        Assert.assertEquals(Integer.valueOf(120), ReportingIntervalRule.applyRules("org.apache.cassandra.metrics.table.live_ss_table_count.ks.tbl", rules));
+        Assert.assertEquals(Integer.valueOf(10), ReportingIntervalRule.applyRules("org.apache.cassandra.metrics.table.read_latency.ks.tbl", rules));
+        Assert.assertNull(ReportingIntervalRule.applyRules("org.apache.cassandra.metrics.thread_pools.pending_tasks", rules));
+
+        try
+        {
+            new ReportingIntervalRule("table", 0);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDuePasses()
+    {
+        ReportingTier slow = new ReportingTier(1, 120);
+        Assert.assertEquals(4, slow.passes(30));
+        Assert.assertTrue(slow.isDue(0, 30));
+        Assert.assertFalse(slow.isDue(3, 30));
+        Assert.assertTrue(slow.isDue(8, 30));
+
+        // Rounded to the sampling interval, never more often than it
+        Assert.assertEquals(1, new ReportingTier(1, 10).passes(30));
+        Assert.assertEquals(2, new ReportingTier(1, 50).passes(30));
+        Assert.assertEquals(1, new ReportingTier(0, null).passes(30));
+
+        // The lines declare the interval the tier is actually reported at
+        Assert.assertEquals(120, slow.reportedIntervalInSeconds(30, 1));
+        Assert.assertEquals(60, new ReportingTier(1, 50).reportedIntervalInSeconds(30, 1));
+        Assert.assertEquals(30, new ReportingTier(1, 10).reportedIntervalInSeconds(30, 1));
+        Assert.assertEquals(30, new ReportingTier(0, null).reportedIntervalInSeconds(30, 1));
+
+        // Backing off, the tier waits for the first full pass past its own interval
+        Assert.assertEquals(240, new ReportingTier(0, null).reportedIntervalInSeconds(30, 8));
+        Assert.assertEquals(240, slow.reportedIntervalInSeconds(30, 8));
+        Assert.assertEquals(120, slow.reportedIntervalInSeconds(30, 2));
+        Assert.assertEquals(120, new ReportingTier(1, 90).reportedIntervalInSeconds(30, 2));
+    }
+}
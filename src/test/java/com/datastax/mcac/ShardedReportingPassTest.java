@@ -0,0 +1,96 @@
+package com.datastax.mcac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardedReportingPassTest
+{
+    private static List<Function<String, Integer>> processors(int count)
+    {
+        List<Function<String, Integer>> processors = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            processors.add((tags) -> 1);
+
+        return processors;
+    }
+
+    @Test
+    public void testShardsKeepTheOrderOfTheGroups()
+    {
+        List<Function<String, Integer>> metrics = processors(200);
+        List<Function<String, Integer>> filtered = processors(10);
+        ShardedReportingPass pass = new ShardedReportingPass(metrics, "", filtered, "mcac_filtered=true", 1);
+
+        // 64 metrics at least per shard, the insight filtered ones in shards of their own
+        Assert.assertEquals(5, pass.shards.size());
+
+        List<Function<String, Integer>> all = new ArrayList<>();
+        for (ShardedReportingPass.Shard shard : pass.shards)
+        {
+            Assert.assertEquals(shard == pass.shards.get(4) ? "mcac_filtered=true" : "", shard.tags);
+            all.addAll(shard.processors);
+        }
+
+        List<Function<String, Integer>> expected = new ArrayList<>(metrics);
+        expected.addAll(filtered);
+        Assert.assertEquals(expected, all);
+    }
+
+    @Test
+    public void testShardsAreWrittenInOrder()
+    {
+        ShardedReportingPass pass = new ShardedReportingPass(processors(200), "", processors(0), "", 1);
+        List<ShardedReportingPass.Shard> shards = pass.shards;
+        Assert.assertEquals(4, shards.size());
+
+        // A shard done early waits for the ones before it
+        shards.get(2).complete();
+        Assert.assertNull(pass.peek());
+
+        shards.get(0).complete();
+        Assert.assertSame(shards.get(0), pass.peek());
+        pass.advance();
+        Assert.assertNull(pass.peek());
+
+        shards.get(1).complete();
+        Assert.assertSame(shards.get(1), pass.peek());
+        pass.advance();
+        Assert.assertSame(shards.get(2), pass.peek());
+        pass.advance();
+        Assert.assertFalse(pass.isDone());
+
+        // The last shard's metrics are all that's left
+        Assert.assertEquals(shards.get(3).processors.size(), pass.abandon());
+
+        shards.get(3).complete();
+        pass.advance();
+        Assert.assertTrue(pass.isDone());
+        Assert.assertNull(pass.peek());
+    }
+
+    @Test
+    public void testReleaseUnwrittenLines()
+    {
+        ShardedReportingPass pass = new ShardedReportingPass(processors(1), "", processors(0), "", 1);
+        ShardedReportingPass.Shard shard = pass.shards.get(0);
+
+        ByteBuf written = Unpooled.buffer(8);
+        ByteBuf unwritten = Unpooled.buffer(8);
+        shard.add(written, 0);
+        shard.add(unwritten, 1);
+        shard.written = 1;
+
+        shard.release();
+
+        Assert.assertEquals(1, written.refCnt());
+        Assert.assertEquals(0, unwritten.refCnt());
+        Assert.assertTrue(shard.lines.isEmpty());
+        written.release();
+    }
+}
@@ -0,0 +1,469 @@
+package com.datastax.mcac;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.locator.SimpleSnitch;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UnixSocketClientTest
+{
+    private static final String PREFIX = "com.datastax.mcac.reporting.";
+    private static final String FILTERED = "mcac_filtered=true";
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    static
+    {
+        DatabaseDescriptor.clientInitialization();
+        DatabaseDescriptor.setEndpointSnitch(new SimpleSnitch());
+    }
+
+    /**
+     * @return a client started on the given channels, with the given configuration
+     */
+    private static UnixSocketClient client(Configuration config, Channel... channels)
+    {
+        UnixSocketClient client = new UnixSocketClient();
+        client.onConfigChanged(ConfigurationLoader.loadConfig(), config);
+        client.start(channels);
+        return client;
+    }
+
+    /**
+     * @return the name the metric was registered under, unique to the test so clients left over by other tests
+     * don't see it twice
+     */
+    private static String register(String name, Metric metric)
+    {
+        String unique = "com.datastax.mcac.test." + name + ids.incrementAndGet();
+        UnixSocketClient.agentAddedMetricsRegistry.register(unique, metric);
+        return unique;
+    }
+
+    private static int report(UnixSocketClient client, String name, String tags)
+    {
+        return client.processors.entry(name).processor.apply(tags);
+    }
+
+    private static Configuration deltaReporting(int heartbeatIntervals)
+    {
+        Configuration config = ConfigurationLoader.loadConfig();
+        config.delta_reporting_enabled = true;
+        config.delta_reporting_heartbeat_intervals = heartbeatIntervals;
+        return config;
+    }
+
+    private static List<String> lines(EmbeddedChannel channel)
+    {
+        channel.flush();
+
+        List<String> lines = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null)
+        {
+            if (msg instanceof ByteBuf)
+            {
+                lines.add(((ByteBuf) msg).toString(StandardCharsets.US_ASCII));
+                ((ByteBuf) msg).release();
+            }
+            else
+            {
+                lines.add((String) msg);
+            }
+        }
+
+        return lines;
+    }
+
+    @Test
+    public void testWritesAreCounted()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(ConfigurationLoader.loadConfig(), channel);
+        try
+        {
+            String name = register("written", (Gauge<Long>) () -> 42L);
+            long lines = UnixSocketClient.agentAddedMetricsRegistry.meter(PREFIX + "lines_written").getCount();
+            long bytes = UnixSocketClient.agentAddedMetricsRegistry.meter(PREFIX + "bytes_written").getCount();
+            long flushes = UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "flushes").getCount();
+
+            Assert.assertEquals(1, report(client, name, ""));
+            client.flush();
+
+            List<String> written = lines(channel);
+            Assert.assertEquals(1, written.size());
+            Assert.assertTrue(written.get(0), written.get(0).endsWith(":42\n"));
+            Assert.assertEquals(lines + 1, UnixSocketClient.agentAddedMetricsRegistry.meter(PREFIX + "lines_written").getCount());
+            Assert.assertEquals(bytes + written.get(0).length(), UnixSocketClient.agentAddedMetricsRegistry.meter(PREFIX + "bytes_written").getCount());
+            Assert.assertEquals(flushes + 1, UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "flushes").getCount());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDisconnectedDropsAreCounted()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(ConfigurationLoader.loadConfig(), channel);
+        try
+        {
+            String name = register("disconnected", (Gauge<Long>) () -> 42L);
+            long drops = UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "disconnected_drops").getCount();
+
+            channel.close();
+            report(client, name, "");
+
+            Assert.assertEquals(drops + 1, UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "disconnected_drops").getCount());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeltaReportingSkipsUnchangedValues()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(deltaReporting(5), channel);
+        try
+        {
+            AtomicLong value = new AtomicLong(1);
+            String gauge = register("delta_gauge", (Gauge<Long>) value::get);
+            Counter counter = new Counter();
+            String count = register("delta_counter", counter);
+            long skipped = UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "delta_skipped_lines").getCount();
+
+            report(client, gauge, FILTERED);
+            report(client, count, FILTERED);
+            Assert.assertEquals(2, lines(channel).size());
+
+            report(client, gauge, FILTERED);
+            report(client, count, FILTERED);
+            Assert.assertTrue(lines(channel).isEmpty());
+            Assert.assertEquals(skipped + 2, UnixSocketClient.agentAddedMetricsRegistry.counter(PREFIX + "delta_skipped_lines").getCount());
+
+            value.set(2);
+            counter.inc();
+            report(client, gauge, FILTERED);
+            report(client, count, FILTERED);
+            List<String> written = lines(channel);
+            Assert.assertEquals(2, written.size());
+            Assert.assertTrue(written.get(0), written.get(0).endsWith(":2\n"));
+            Assert.assertTrue(written.get(1), written.get(1).endsWith(":1\n"));
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeltaReportingSendsHeartbeats()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(deltaReporting(3), channel);
+        try
+        {
+            String name = register("heartbeat", (Gauge<Long>) () -> 7L);
+
+            int[] written = new int[7];
+            for (int pass = 0; pass < written.length; pass++)
+            {
+                report(client, name, FILTERED);
+                written[pass] = lines(channel).size();
+            }
+
+            // Unchanged values are re-sent every third pass
+            Assert.assertArrayEquals(new int[]{ 1, 0, 0, 1, 0, 0, 1 }, written);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeltaReportingHeartbeatIsValidated()
+    {
+        for (Integer heartbeatIntervals : new Integer[]{ null, 1, 10 })
+        {
+            Configuration config = ConfigurationLoader.loadConfig();
+            config.delta_reporting_heartbeat_intervals = heartbeatIntervals;
+            try
+            {
+                config.validateDeltaReporting();
+                Assert.fail(String.valueOf(heartbeatIntervals));
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+
+        // Not read at all while delta reporting is off
+        Configuration config = ConfigurationLoader.loadConfig();
+        config.delta_reporting_heartbeat_intervals = null;
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(config, channel);
+        try
+        {
+            String name = register("no_heartbeat", (Gauge<Long>) () -> 7L);
+            report(client, name, FILTERED);
+            report(client, name, FILTERED);
+            Assert.assertEquals(2, lines(channel).size());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeltaReportingKeepsInsightLines()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(deltaReporting(5), channel);
+        try
+        {
+            String name = register("insight", (Gauge<Long>) () -> 7L);
+
+            for (int pass = 0; pass < 3; pass++)
+            {
+                report(client, name, "");
+                Assert.assertEquals(1, lines(channel).size());
+            }
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeltaReportingStartsOverOnRestart()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = client(deltaReporting(5), channel);
+        String name = register("restart", (Gauge<Long>) () -> 7L);
+
+        report(client, name, FILTERED);
+        report(client, name, FILTERED);
+        Assert.assertEquals(1, lines(channel).size());
+        client.close();
+
+        // The metrics are added again, the value is sent to the new collectd right away
+        EmbeddedChannel restarted = new EmbeddedChannel();
+        client.start(restarted);
+        try
+        {
+            report(client, name, FILTERED);
+            Assert.assertEquals(1, lines(restarted).size());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    /**
+     * @return the channel the metric's line went to
+     */
+    private static int stripeOf(UnixSocketClient client, String name, EmbeddedChannel... channels)
+    {
+        report(client, name, "");
+
+        int stripe = -1;
+        for (int i = 0; i < channels.length; i++)
+        {
+            int written = lines(channels[i]).size();
+            if (written > 0)
+            {
+                Assert.assertEquals(-1, stripe);
+                Assert.assertEquals(1, written);
+                stripe = i;
+            }
+        }
+
+        return stripe;
+    }
+
+    @Test
+    public void testMetricsAreStripedByName()
+    {
+        EmbeddedChannel[] channels = new EmbeddedChannel[4];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new EmbeddedChannel();
+
+        UnixSocketClient client = client(ConfigurationLoader.loadConfig(), channels);
+        try
+        {
+            int[] metrics = new int[channels.length];
+            for (int i = 0; i < 64; i++)
+            {
+                String name = register("striped", (Gauge<Long>) () -> 1L);
+                int stripe = stripeOf(client, name, channels);
+                metrics[stripe]++;
+
+                // Always the same connection, so collectd gets the values of a metric in order
+                Assert.assertEquals(stripe, stripeOf(client, name, channels));
+            }
+
+            for (int stripe = 0; stripe < channels.length; stripe++)
+                Assert.assertTrue("No metric on connection " + stripe, metrics[stripe] > 0);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testReportingPhaseIsSpreadByHostId()
+    {
+        long intervalMillis = 30_000;
+        Set<Long> phases = new HashSet<>();
+        int firstHalf = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            String id = UUID.randomUUID().toString();
+            long phase = UnixSocketClient.reportingPhaseMillis(id, intervalMillis);
+
+            Assert.assertTrue(phase >= 0 && phase < intervalMillis);
+            // Kept across restarts
+            Assert.assertEquals(phase, UnixSocketClient.reportingPhaseMillis(id, intervalMillis));
+            phases.add(phase);
+            if (phase < intervalMillis / 2)
+                firstHalf++;
+        }
+
+        Assert.assertTrue(phases.size() > 90);
+        Assert.assertTrue(firstHalf > 20 && firstHalf < 80);
+    }
+
+    /**
+     * Runs the batch of metric events the client scheduled on the channel's event loop
+     */
+    private static void runMetricEvents(EmbeddedChannel channel) throws InterruptedException
+    {
+        Thread.sleep(150);
+        channel.runPendingTasks();
+    }
+
+    @Test
+    public void testMetricEventsAreBatched() throws InterruptedException
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = new UnixSocketClient();
+        client.start(channel.eventLoop(), channel);
+        try
+        {
+            runMetricEvents(channel);
+            MetricProcessors before = client.processors;
+
+            String first = register("batched", (Gauge<Long>) () -> 1L);
+            String second = register("batched", (Gauge<Long>) () -> 2L);
+            Assert.assertSame(before, client.processors);
+
+            // Both in the one snapshot built for the batch
+            runMetricEvents(channel);
+            MetricProcessors after = client.processors;
+            Assert.assertNotNull(after.entry(first));
+            Assert.assertNotNull(after.entry(second));
+            Assert.assertNull(before.entry(first));
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testMetricEventsOfTheSameNameAreCoalesced() throws InterruptedException
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = new UnixSocketClient();
+        client.start(channel.eventLoop(), channel);
+        try
+        {
+            runMetricEvents(channel);
+
+            // Added and removed within a batch, never placed nor written
+            String gone = register("coalesced", (Gauge<Long>) () -> 1L);
+            UnixSocketClient.agentAddedMetricsRegistry.remove(gone);
+
+            String replaced = register("coalesced", (Gauge<Long>) () -> 2L);
+            runMetricEvents(channel);
+            Assert.assertNull(client.processors.entry(gone));
+            Function<String, Integer> old = client.processors.entry(replaced).processor;
+            lines(channel);
+
+            // Replaced within a batch, the last value of the old one is written as it's removed
+            UnixSocketClient.agentAddedMetricsRegistry.remove(replaced);
+            UnixSocketClient.agentAddedMetricsRegistry.register(replaced, (Gauge<Long>) () -> 3L);
+            runMetricEvents(channel);
+
+            Assert.assertNotSame(old, client.processors.entry(replaced).processor);
+            List<String> written = lines(channel);
+            Assert.assertEquals(1, written.size());
+            Assert.assertTrue(written.get(0), written.get(0).endsWith(":2\n"));
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testMetricEventsSurviveRestarts() throws InterruptedException
+    {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        UnixSocketClient client = new UnixSocketClient();
+        client.start(channel.eventLoop(), channel);
+        runMetricEvents(channel);
+
+        // Queued as the client stops, applied rather than stranded with the event loop
+        String queued = register("restart_queued", (Gauge<Long>) () -> 1L);
+        client.close();
+        Assert.assertNotNull(client.processors.entry(queued));
+
+        // Applied as they come while stopped
+        String stopped = register("restart_stopped", (Gauge<Long>) () -> 1L);
+        Assert.assertNotNull(client.processors.entry(stopped));
+
+        EmbeddedChannel restarted = new EmbeddedChannel();
+        client.start(restarted.eventLoop(), restarted);
+        try
+        {
+            runMetricEvents(restarted);
+            String started = register("restart_started", (Gauge<Long>) () -> 1L);
+            Assert.assertNull(client.processors.entry(started));
+
+            runMetricEvents(restarted);
+            Assert.assertNotNull(client.processors.entry(started));
+            Assert.assertNotNull(client.processors.entry(queued));
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.datastax.mcac.insights.metrics;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.mcac.insights.InsightMetadata;
+import com.datastax.mcac.utils.JacksonUtil;
+import com.google.common.collect.ImmutableMap;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.flink.shaded.jackson2.com.fasterxml.jackson.databind.ser.BeanSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricSerializersTest
+{
+    // Bean introspection, as the metric insights were serialized before
+    private static final ObjectMapper beanMapper = new ObjectMapper();
+
+    @Test
+    public void testSameJsonAsBeanSerialization() throws Exception
+    {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "127.0.0.1");
+        tags.put("cluster", "Test \"Cluster\"\n");
+        tags.put("null", null);
+
+        SamplingStats samplingStats = new SamplingStats(Long.MIN_VALUE, Long.MAX_VALUE, 12.5, 0.1, 1e-10, 95.5, 1e21, Double.NaN,
+                Double.POSITIVE_INFINITY, -0.0);
+        RateStats rateStats = new RateStats(1.5, 5.5, Double.NEGATIVE_INFINITY, 0);
+
+        List<Metric> metrics = Arrays.asList(
+                new Gauge("gauge.int", 1L, tags, 42),
+                new Gauge("gauge.long", 1L, tags, Long.MIN_VALUE),
+                new Gauge("gauge.double", 1L, tags, 0.75),
+                new Gauge("gauge.float", 1L, tags, 0.1f),
+                new Gauge("gauge.short", 1L, tags, (short) 7),
+                new Gauge("gauge.byte", 1L, tags, (byte) -7),
+                new Gauge("gauge.big_decimal", 1L, tags, new BigDecimal("1234567890.0987654321")),
+                new Gauge("gauge.big_integer", 1L, tags, new BigInteger("123456789012345678901234567890")),
+                new Gauge("gauge.atomic_long", 1L, tags, new AtomicLong(11)),
+                new Gauge("gauge.atomic_integer", 1L, tags, new AtomicInteger(12)),
+                new Gauge("gauge.null", 1L, null, (Number) null),
+                new Counter("counter", 2L, ImmutableMap.of(), -1),
+                new Histogram("histogram", 3L, tags, 1234, samplingStats),
+                new Histogram("histogram.no_stats", 3L, tags, 0, null),
+                new Meter("meter", 4L, tags, 99, rateStats, "SECONDS"),
+                new Meter("meter.no_unit", 4L, tags, 99, null, null),
+                new Timer("timer", 5L, ImmutableMap.of("bucket_35", "1", "bucket_inf", "20"), 20, samplingStats, rateStats,
+                        "SECONDS", "MICROSECONDS"));
+
+        Gauge mapped = new Gauge("gauge.mapped", 6L, tags, 1);
+        mapped.metadata.insightMappingId = "collectd-v1";
+
+        for (Metric metric : metrics)
+        {
+            String expected = beanMapper.writeValueAsString(metric);
+            Assert.assertEquals(expected, JacksonUtil.writeValueAsString(metric));
+            Assert.assertEquals(beanMapper.writeValueAsString(metric.data), JacksonUtil.writeValueAsString(metric.data));
+
+            // And the JSON reads back the same
+            Assert.assertEquals(beanMapper.readTree(expected), JacksonUtil.readTree(JacksonUtil.writeValueAsString(metric)));
+        }
+
+        Assert.assertEquals(beanMapper.writeValueAsString(mapped), JacksonUtil.writeValueAsString(mapped));
+        Assert.assertEquals(beanMapper.writeValueAsString(samplingStats), JacksonUtil.writeValueAsString(samplingStats));
+        Assert.assertEquals(beanMapper.writeValueAsString(rateStats), JacksonUtil.writeValueAsString(rateStats));
+    }
+
+    @Test
+    public void testNoBeanSerializers() throws Exception
+    {
+        ObjectMapper mapper = JacksonUtil.getObjectMapper();
+        for (Class<?> type : new Class<?>[]{ Gauge.class, Counter.class, Histogram.class, Meter.class, Timer.class,
+                Gauge.Data.class, Counter.Data.class, Histogram.Data.class, Meter.Data.class, Timer.Data.class,
+                SamplingStats.class, RateStats.class })
+        {
+            Assert.assertFalse(type.getName(),
+                    mapper.getSerializerProviderInstance().findValueSerializer(type) instanceof BeanSerializer);
+        }
+
+        // Unrelated insights still go through bean introspection
+        Assert.assertTrue(mapper.getSerializerProviderInstance().findValueSerializer(InsightMetadata.class) instanceof BeanSerializer);
+    }
+}